@@ -0,0 +1,84 @@
+package cn.android.ocr;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Java 预处理回退路径（{@link OcrPreprocessor#scale} + {@link OcrPreprocessor#process}）的堆分配与结果。
+ */
+@RunWith(AndroidJUnit4.class)
+public class OcrPreprocessorTest {
+    private static final int FRAMES = 100;
+    private static final int MAX_SIDE_LEN = 960;
+    private static final float[] MEAN = new float[]{0.485f, 0.456f, 0.406f};
+    private static final float[] STD = new float[]{0.229f, 0.224f, 0.225f};
+
+    private static float[] runFrame(OcrPreprocessor preprocessor, Bitmap image) {
+        return preprocessor.process(preprocessor.scale(image, MAX_SIDE_LEN, 32));
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        OcrPreprocessor preprocessor = new OcrPreprocessor(3, "BGR", MEAN, STD);
+        Bitmap portrait = Bitmap.createBitmap(1080, 1440, Bitmap.Config.ARGB_8888);
+        Bitmap landscape = Bitmap.createBitmap(1440, 1080, Bitmap.Config.ARGB_8888);
+        // 每种尺寸的第一帧分配缩放目标与缓冲区
+        runFrame(preprocessor, portrait);
+        runFrame(preprocessor, landscape);
+        OcrPreprocessor.Stats stats = preprocessor.stats();
+        long allocations = stats.allocations;
+        long allocatedBytes = stats.allocatedBytes;
+        assertTrue(allocations > 0);
+
+        for (int i = 0; i < FRAMES; i++) {
+            runFrame(preprocessor, i % 2 == 0 ? portrait : landscape);
+            assertEquals("allocation in frame " + i, allocations, stats.allocations);
+        }
+        assertEquals(allocatedBytes, stats.allocatedBytes);
+        assertEquals(FRAMES + 2, stats.runs);
+    }
+
+    @Test
+    public void scaleMatchesResizeWithStep() {
+        OcrPreprocessor preprocessor = new OcrPreprocessor(3, "BGR", MEAN, STD);
+        Bitmap image = Bitmap.createBitmap(1000, 750, Bitmap.Config.ARGB_8888);
+        int color = Color.rgb(200, 100, 50);
+        image.eraseColor(color);
+
+        Bitmap expected = Utils.resizeWithStep(image, MAX_SIDE_LEN, 32);
+        Bitmap scaled = preprocessor.scale(image, MAX_SIDE_LEN, 32);
+        assertEquals(expected.getWidth(), scaled.getWidth());
+        assertEquals(expected.getHeight(), scaled.getHeight());
+        // 纯色图缩放后像素不变
+        assertEquals(color, scaled.getPixel(scaled.getWidth() / 2, scaled.getHeight() / 2));
+        // 同尺寸再次缩放复用同一个 Bitmap
+        assertSame(scaled, preprocessor.scale(image, MAX_SIDE_LEN, 32));
+        // 已是目标尺寸时不缩放
+        assertSame(scaled, preprocessor.scale(scaled, MAX_SIDE_LEN, 32));
+    }
+
+    @Test
+    public void processNormalizesToBgrPlanes() {
+        OcrPreprocessor preprocessor = new OcrPreprocessor(3, "BGR", MEAN, STD);
+        int width = 64;
+        int height = 32;
+        Bitmap image = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        image.eraseColor(Color.rgb(200, 100, 50));
+
+        float[] tensor = preprocessor.process(image);
+        int plane = width * height;
+        assertEquals(3 * plane, tensor.length);
+        assertEquals((50 / 255.0f - MEAN[0]) / STD[0], tensor[0], 1e-5f);
+        assertEquals((100 / 255.0f - MEAN[1]) / STD[1], tensor[plane], 1e-5f);
+        assertEquals((200 / 255.0f - MEAN[2]) / STD[2], tensor[2 * plane + plane - 1], 1e-5f);
+    }
+}
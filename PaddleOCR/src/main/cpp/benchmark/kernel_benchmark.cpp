@@ -0,0 +1,121 @@
+//
+// Host micro-benchmark of the SIMD kernels of the pre and post-processing,
+// for perf regression checks off-device. Built by host/CMakeLists.txt, run
+// once per backend to compare, e.g. against -DOCR_SIMD_SCALAR=ON.
+//
+//   kernel_benchmark [rec output tensor file]
+//
+// The CTC decode runs on the tensor file if one is given, as recorded on a
+// device by write_rec_output (see OCR_REC_RECORD_PATH in ocr_ppredictor.cpp),
+// and on uniform random probabilities otherwise. Random rows have no peaked
+// class and almost no repeats or blanks, so only a recorded output shows the
+// branch pattern of a real line.
+//
+
+#include "ocr_crnn_process.h"
+#include "ocr_ctc_decoder.h"
+#include "ocr_db_post_process.h"
+#include "ocr_resize_norm.h"
+#include "ocr_simd.h"
+#include "preprocess.h"
+#include <chrono>
+#include <cstdio>
+#include <vector>
+
+static const char *backend_name() {
+#if defined(OCR_SIMD_NEON)
+  return "neon";
+#elif defined(OCR_SIMD_AVX)
+  return "avx";
+#elif defined(OCR_SIMD_SSE2)
+  return "sse2";
+#else
+  return "scalar";
+#endif
+}
+
+template <class F> static double time_us(F f, int iterations) {
+  f();
+  auto start = std::chrono::steady_clock::now();
+  for (int i = 0; i < iterations; i++) {
+    f();
+  }
+  std::chrono::duration<double, std::micro> elapsed =
+      std::chrono::steady_clock::now() - start;
+  return elapsed.count() / iterations;
+}
+
+int main(int argc, char *argv[]) {
+  printf("backend %s, %d lanes\n", backend_name(), SIMD_LANES);
+  cv::RNG rng(1);
+
+  // det input of a 960 px page, BGR and RGBA as locked from a Bitmap
+  const std::vector<float> mean = {0.485f, 0.456f, 0.406f};
+  const std::vector<float> stddev = {0.229f, 0.224f, 0.225f};
+  cv::Mat page_bgr(960, 736, CV_8UC3);
+  rng.fill(page_bgr, cv::RNG::UNIFORM, 0, 256);
+  cv::Mat page_rgba;
+  cv::cvtColor(page_bgr, page_rgba, cv::COLOR_BGR2RGBA);
+  std::vector<float> det_input(3 * page_bgr.total());
+  for (const cv::Mat &page : {page_bgr, page_rgba}) {
+    printf("%-32s %10.2f us\n",
+           page.channels() == 4 ? "det_mean_scale rgba 736x960"
+                                : "det_mean_scale bgr 736x960",
+           time_us(
+               [&] { det_mean_scale(page, det_input.data(), mean, stddev); },
+               100));
+  }
+
+  // det output of the same page
+  cv::Mat pred(960, 736, CV_32F);
+  rng.fill(pred, cv::RNG::UNIFORM, 0.f, 1.f);
+  std::vector<uint8_t> bitmap(pred.total());
+  printf("%-32s %10.2f us\n", "threshold_to_bitmap 736x960",
+         time_us([&] {
+           threshold_to_bitmap(pred.ptr<float>(), int(pred.total()), 0.3f,
+                               bitmap.data());
+         },
+                 100));
+
+  // rec crops at the rec height and at the cls height
+  for (int height : {32, 48}) {
+    cv::Mat crop(height, 320 * height / 32, CV_8UC3);
+    rng.fill(crop, cv::RNG::UNIFORM, 0, 256);
+    std::vector<float> rec_input(3 * 32 * 320);
+    char name[64];
+    snprintf(name, sizeof(name), "crnn_resize_norm_pad %dx%d", crop.cols,
+             crop.rows);
+    printf("%-32s %10.2f us\n", name,
+           time_us([&] { crnn_resize_norm_pad(crop, 320, rec_input.data()); },
+                   2000));
+  }
+
+  // rec output of a 320 px line, 80 steps over the 6625 classes of the dict
+  int steps = 80;
+  int classes = 6625;
+  std::vector<float> probs;
+  const char *probs_source = "random";
+  if (argc > 1) {
+    if (!read_rec_output(argv[1], probs, steps, classes)) {
+      fprintf(stderr, "can not read rec output tensor file %s\n", argv[1]);
+      return 1;
+    }
+    probs_source = "recorded";
+  } else {
+    probs.resize(steps * classes);
+    cv::Mat probs_mat(1, int(probs.size()), CV_32F, probs.data());
+    rng.fill(probs_mat, cv::RNG::UNIFORM, 0.f, 1.f);
+  }
+  std::vector<int> indices(steps);
+  float score;
+  char name[64];
+  snprintf(name, sizeof(name), "ctc_greedy_decode %s %dx%d", probs_source,
+           steps, classes);
+  printf("%-32s %10.2f us\n", name,
+         time_us([&] {
+           ctc_greedy_decode(probs.data(), steps, classes, indices.data(),
+                             nullptr, score);
+         },
+                 200));
+  return 0;
+}
@@ -0,0 +1,84 @@
+//
+// Host micro-benchmark of the per crop rec preprocessing: cv::resize into an
+// 8 bit Mat then normalize into the tensor (the path before
+// resize_norm_chw), against resize_norm_chw. Built by host/CMakeLists.txt.
+//
+
+#include "ocr_resize_norm.h"
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <opencv2/opencv.hpp>
+#include <vector>
+
+static const int REC_H = 32;
+
+static void opencv_resize_norm(const cv::Mat &img, int resize_w, int out_w,
+                               float *dout) {
+  cv::Mat resize_img;
+  cv::resize(img, resize_img, cv::Size(resize_w, REC_H));
+  int plane_size = REC_H * out_w;
+  std::fill(dout, dout + 3 * plane_size, 0.f);
+  const float scale = 2 / 255.f;
+  for (int h = 0; h < REC_H; h++) {
+    const uchar *src = resize_img.ptr<uchar>(h);
+    float *dout_c0 = dout + h * out_w;
+    float *dout_c1 = dout_c0 + plane_size;
+    float *dout_c2 = dout_c1 + plane_size;
+    for (int w = 0; w < resize_w; w++) {
+      dout_c0[w] = src[3 * w] * scale - 1.f;
+      dout_c1[w] = src[3 * w + 1] * scale - 1.f;
+      dout_c2[w] = src[3 * w + 2] * scale - 1.f;
+    }
+  }
+}
+
+static void fused_resize_norm(const cv::Mat &img, int resize_w, int out_w,
+                              float *dout) {
+  resize_norm_chw(img.ptr<uint8_t>(), img.cols, img.rows, img.step, resize_w,
+                  REC_H, out_w, 2 / 255.f, -1.f, 0.f, dout);
+}
+
+template <class F>
+static double time_us(F f, int iterations) {
+  f();
+  auto start = std::chrono::steady_clock::now();
+  for (int i = 0; i < iterations; i++) {
+    f();
+  }
+  std::chrono::duration<double, std::micro> elapsed =
+      std::chrono::steady_clock::now() - start;
+  return elapsed.count() / iterations;
+}
+
+int main() {
+  // crop heights: as cropped for rec, for cls, and a large uncropped line
+  const int heights[] = {32, 48, 96};
+  const int widths[] = {96, 320, 960};
+  const int iterations = 2000;
+  cv::RNG rng(1);
+  printf("%8s %8s %12s %12s %10s\n", "crop", "tensor", "opencv us",
+         "fused us", "max diff");
+  for (int height : heights) {
+    for (int tensor_w : widths) {
+      int crop_w = tensor_w * height / REC_H;
+      cv::Mat img(height, crop_w, CV_8UC3);
+      rng.fill(img, cv::RNG::UNIFORM, 0, 256);
+      std::vector<float> before(3 * REC_H * tensor_w);
+      std::vector<float> after(before.size());
+      double t0 = time_us(
+          [&] { opencv_resize_norm(img, tensor_w, tensor_w, before.data()); },
+          iterations);
+      double t1 = time_us(
+          [&] { fused_resize_norm(img, tensor_w, tensor_w, after.data()); },
+          iterations);
+      float max_diff = 0;
+      for (size_t i = 0; i < before.size(); i++) {
+        max_diff = std::max(max_diff, std::abs(before[i] - after[i]));
+      }
+      printf("%4dx%-4d %8d %12.2f %12.2f %10.4f\n", crop_w, height, tensor_w,
+             t0, t1, max_diff);
+    }
+  }
+  return 0;
+}
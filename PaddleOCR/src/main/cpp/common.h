@@ -3,15 +3,16 @@
 //
 
 #pragma once
-#import <numeric>
-#import <vector>
+#include <functional>
+#include <numeric>
+#include <vector>
+
+#define LOG_TAG "OCR_NDK"
 
 #ifdef __ANDROID__
 
 #include <android/log.h>
 
-#define LOG_TAG "OCR_NDK"
-
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
 #define LOGW(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
@@ -25,7 +26,7 @@
   fprintf(stderr, "[" LOG_TAG "]Error: " format "\n", ##__VA_ARGS__)
 #endif
 
-enum RETURN_CODE { RETURN_OK = 0 };
+enum RETURN_CODE { RETURN_OK = 0, RETURN_ERROR = -1 };
 
 enum NET_TYPE { NET_OCR = 900100, NET_OCR_INTERNAL = 991008 };
 
@@ -5,16 +5,28 @@
 #include "native.h"
 #include "ocr_ppredictor.h"
 #include <algorithm>
+#include <android/asset_manager_jni.h>
+#include <memory>
 #include <paddle_api.h>
 #include <string>
 
 static paddle::lite_api::PowerMode str_to_cpu_mode(const std::string &cpu_mode);
 
+static DBConfig db_config_from_java(JNIEnv *env, jobject j_db_config);
+
+static jobject
+results_to_byte_buffer(JNIEnv *env, ppredictor::OCR_PPredictor *ppredictor,
+                       const std::vector<ppredictor::OCRPredictResult> &results,
+                       float det_postprocess_time);
+
 extern "C" JNIEXPORT jlong JNICALL
 Java_cn_android_ocr_OCRPredictorNative_init(
     JNIEnv *env, jobject thiz, jstring j_det_model_path,
     jstring j_rec_model_path, jstring j_cls_model_path, jint j_thread_num,
-    jstring j_cpu_mode) {
+    jstring j_cpu_mode, jint j_rec_replicas, jint j_rec_batch_size,
+    jintArray j_rec_bucket_widths, jint j_cls_mode, jboolean j_lazy_cls,
+    jboolean j_lazy_rec, jintArray j_warmup_det_sizes, jboolean j_warmup_rec,
+    jobject j_db_config, jobject j_asset_manager) {
   std::string det_model_path = jstring_to_cpp_string(env, j_det_model_path);
   std::string rec_model_path = jstring_to_cpp_string(env, j_rec_model_path);
   std::string cls_model_path = jstring_to_cpp_string(env, j_cls_model_path);
@@ -23,12 +35,80 @@ Java_cn_android_ocr_OCRPredictorNative_init(
   ppredictor::OCR_Config conf;
   conf.thread_num = thread_num;
   conf.mode = str_to_cpu_mode(cpu_mode);
+  conf.rec_replicas = j_rec_replicas;
+  conf.rec_batch_size = j_rec_batch_size;
+  std::vector<int> bucket_widths =
+      jintarray_to_int_vector(env, j_rec_bucket_widths);
+  if (!bucket_widths.empty()) {
+    std::sort(bucket_widths.begin(), bucket_widths.end());
+    conf.rec_bucket_widths = bucket_widths;
+  }
+  conf.cls_mode = j_cls_mode;
+  conf.lazy_cls = j_lazy_cls;
+  conf.lazy_rec = j_lazy_rec;
+  conf.det_warmup_sizes = jintarray_to_int_vector(env, j_warmup_det_sizes);
+  conf.rec_warmup = j_warmup_rec;
+  conf.db = db_config_from_java(env, j_db_config);
   ppredictor::OCR_PPredictor *orc_predictor =
       new ppredictor::OCR_PPredictor{conf};
-  orc_predictor->init_from_file(det_model_path, rec_model_path, cls_model_path);
+  if (j_asset_manager != nullptr) {
+    // model paths are asset paths, the models are read from the apk directly.
+    // The loads run on other threads, possibly lazily, the global ref keeps
+    // the java AssetManager and its native one alive until release
+    JavaVM *vm = nullptr;
+    env->GetJavaVM(&vm);
+    jobject asset_ref = env->NewGlobalRef(j_asset_manager);
+    std::shared_ptr<void> asset_owner(asset_ref, [vm](void *ref) {
+      JNIEnv *release_env = nullptr;
+      if (vm->GetEnv(reinterpret_cast<void **>(&release_env),
+                     JNI_VERSION_1_6) == JNI_OK) {
+        release_env->DeleteGlobalRef(static_cast<jobject>(ref));
+      } else {
+        LOGE("asset manager ref released off a java thread, leaked");
+      }
+    });
+    AAssetManager *asset_manager = AAssetManager_fromJava(env, asset_ref);
+    if (orc_predictor->init_from_asset(asset_manager, asset_owner,
+                                       det_model_path, rec_model_path,
+                                       cls_model_path) != RETURN_OK) {
+      LOGE("load models from assets failed");
+      delete orc_predictor;
+      return 0;
+    }
+  } else {
+    orc_predictor->init_from_file(det_model_path, rec_model_path,
+                                  cls_model_path);
+  }
   return reinterpret_cast<jlong>(orc_predictor);
 }
 
+/**
+ * read OCRPredictorNative.DbConfig, defaults if j_db_config is null
+ */
+static DBConfig db_config_from_java(JNIEnv *env, jobject j_db_config) {
+  DBConfig config;
+  if (j_db_config == nullptr) {
+    return config;
+  }
+  jclass clazz = env->GetObjectClass(j_db_config);
+  config.thresh =
+      env->GetFloatField(j_db_config, env->GetFieldID(clazz, "thresh", "F"));
+  config.box_thresh = env->GetFloatField(
+      j_db_config, env->GetFieldID(clazz, "boxThresh", "F"));
+  config.min_size =
+      env->GetIntField(j_db_config, env->GetFieldID(clazz, "minSize", "I"));
+  config.max_candidates = env->GetIntField(
+      j_db_config, env->GetFieldID(clazz, "maxCandidates", "I"));
+  config.unclip_ratio = env->GetFloatField(
+      j_db_config, env->GetFieldID(clazz, "unclipRatio", "F"));
+  config.unclip_mode =
+      env->GetIntField(j_db_config, env->GetFieldID(clazz, "unclipMode", "I"));
+  config.threads =
+      env->GetIntField(j_db_config, env->GetFieldID(clazz, "threads", "I"));
+  env->DeleteLocalRef(clazz);
+  return config;
+}
+
 /**
  * "LITE_POWER_HIGH" convert to paddle::lite_api::LITE_POWER_HIGH
  * @param cpu_mode
@@ -55,19 +135,19 @@ str_to_cpu_mode(const std::string &cpu_mode) {
   }
 }
 
-extern "C" JNIEXPORT jfloatArray JNICALL
+extern "C" JNIEXPORT jobject JNICALL
 Java_cn_android_ocr_OCRPredictorNative_forward(
     JNIEnv *env, jobject thiz, jlong java_pointer, jfloatArray buf,
     jfloatArray ddims, jobject original_image) {
   LOGI("begin to run native forward");
   if (java_pointer == 0) {
     LOGE("JAVA pointer is NULL");
-    return cpp_array_to_jfloatarray(env, nullptr, 0);
+    return nullptr;
   }
   cv::Mat origin = bitmap_to_cv_mat(env, original_image);
   if (origin.size == 0) {
     LOGE("origin bitmap cannot convert to CV Mat");
-    return cpp_array_to_jfloatarray(env, nullptr, 0);
+    return nullptr;
   }
   ppredictor::OCR_PPredictor *ppredictor =
       (ppredictor::OCR_PPredictor *)java_pointer;
@@ -82,23 +162,165 @@ Java_cn_android_ocr_OCRPredictorNative_forward(
   float *data = (jfloat *)buf_data;
   std::vector<ppredictor::OCRPredictResult> results =
       ppredictor->infer_ocr(dims_arr, data, buf_len, NET_OCR, origin);
+  env->ReleaseFloatArrayElements(buf, buf_data, JNI_ABORT);
   LOGI("infer_ocr finished with boxes %ld", results.size());
-  // 这里将std::vector<ppredictor::OCRPredictResult> 序列化成
-  // float数组，传输到java层再反序列化
-  std::vector<float> float_arr;
+  // still inside the det call serialized by the java side
+  return results_to_byte_buffer(env, ppredictor, results,
+                                ppredictor->det_postprocess_time());
+}
+
+/**
+ * 将 std::vector<ppredictor::OCRPredictResult> 序列化到 predictor 持有的 int32
+ * 缓冲区，以 direct ByteBuffer 形式零拷贝交给 java 层解析，布局(native byte order):
+ * [det_postprocess_time(float bits, ms), box_num] 之后每个 box 依次为
+ * [point_num, word_num, score(float bits), x0, y0, x1, y1 ..., word_index ...]
+ * 检测后处理耗时随结果返回，引擎被多个调用方共享时不会读到其他请求的耗时
+ */
+static jobject
+results_to_byte_buffer(JNIEnv *env, ppredictor::OCR_PPredictor *ppredictor,
+                       const std::vector<ppredictor::OCRPredictResult> &results,
+                       float det_postprocess_time) {
+  std::vector<int32_t> &buf = ppredictor->result_buffer();
+  size_t total = 2;
+  for (const ppredictor::OCRPredictResult &r : results) {
+    total += 3 + r.points.size() * 2 + r.word_index.size();
+  }
+  // capacity is kept between calls, resize only reallocates when growing
+  buf.resize(total);
+  int32_t *out = buf.data();
+  memcpy(out++, &det_postprocess_time, sizeof(float));
+  *(out++) = (int32_t)results.size();
   for (const ppredictor::OCRPredictResult &r : results) {
-    float_arr.push_back(r.points.size());
-    float_arr.push_back(r.word_index.size());
-    float_arr.push_back(r.score);
+    *(out++) = (int32_t)r.points.size();
+    *(out++) = (int32_t)r.word_index.size();
+    memcpy(out++, &r.score, sizeof(float));
     for (const std::vector<int> &point : r.points) {
-      float_arr.push_back(point.at(0));
-      float_arr.push_back(point.at(1));
+      *(out++) = point.at(0);
+      *(out++) = point.at(1);
     }
     for (int index : r.word_index) {
-      float_arr.push_back(index);
+      *(out++) = index;
     }
   }
-  return cpp_array_to_jfloatarray(env, float_arr.data(), float_arr.size());
+  return env->NewDirectByteBuffer(buf.data(), total * sizeof(int32_t));
+}
+
+extern "C" JNIEXPORT jobject JNICALL
+Java_cn_android_ocr_OCRPredictorNative_forwardBitmap(
+    JNIEnv *env, jobject thiz, jlong java_pointer, jobject original_image,
+    jint max_side_len, jfloatArray j_mean, jfloatArray j_std) {
+  LOGI("begin to run native forwardBitmap");
+  if (java_pointer == 0) {
+    LOGE("JAVA pointer is NULL");
+    return nullptr;
+  }
+  // pixels stay locked until the crops are done, no copy of the frame is made
+  LockedBitmap origin(env, original_image);
+  if (origin.mat().empty()) {
+    LOGE("origin bitmap cannot be locked");
+    return nullptr;
+  }
+  ppredictor::OCR_PPredictor *ppredictor =
+      (ppredictor::OCR_PPredictor *)java_pointer;
+  std::vector<float> mean = jfloatarray_to_float_vector(env, j_mean);
+  std::vector<float> stddev = jfloatarray_to_float_vector(env, j_std);
+  std::vector<ppredictor::OCRPredictResult> results =
+      ppredictor->infer_ocr(origin.mat(), max_side_len, mean, stddev);
+  LOGI("infer_ocr finished with boxes %ld", results.size());
+  // still inside the det call serialized by the java side
+  return results_to_byte_buffer(env, ppredictor, results,
+                                ppredictor->det_postprocess_time());
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_cn_android_ocr_OCRPredictorNative_detect(
+    JNIEnv *env, jobject thiz, jlong java_pointer, jobject original_image,
+    jint max_side_len, jfloatArray j_mean, jfloatArray j_std) {
+  if (java_pointer == 0) {
+    LOGE("JAVA pointer is NULL");
+    return 0;
+  }
+  LockedBitmap origin(env, original_image);
+  if (origin.mat().empty()) {
+    LOGE("origin bitmap cannot be locked");
+    return 0;
+  }
+  ppredictor::OCR_PPredictor *ppredictor =
+      (ppredictor::OCR_PPredictor *)java_pointer;
+  std::vector<float> mean = jfloatarray_to_float_vector(env, j_mean);
+  std::vector<float> stddev = jfloatarray_to_float_vector(env, j_std);
+  // crops own their pixels, the bitmap may be recycled once this returns
+  ppredictor::OCRDetResult *det = new ppredictor::OCRDetResult{
+      ppredictor->infer_det(origin.mat(), max_side_len, mean, stddev)};
+  return reinterpret_cast<jlong>(det);
+}
+
+extern "C" JNIEXPORT jobject JNICALL
+Java_cn_android_ocr_OCRPredictorNative_recognize(JNIEnv *env, jobject thiz,
+                                                 jlong java_pointer,
+                                                 jlong det_pointer) {
+  if (java_pointer == 0 || det_pointer == 0) {
+    LOGE("JAVA pointer is NULL");
+    return nullptr;
+  }
+  ppredictor::OCR_PPredictor *ppredictor =
+      (ppredictor::OCR_PPredictor *)java_pointer;
+  ppredictor::OCRDetResult *det = (ppredictor::OCRDetResult *)det_pointer;
+  std::vector<ppredictor::OCRPredictResult> results =
+      ppredictor->infer_rec(*det);
+  return results_to_byte_buffer(env, ppredictor, results,
+                                det->postprocess_time);
+}
+
+extern "C" JNIEXPORT jfloatArray JNICALL
+Java_cn_android_ocr_OCRPredictorNative_benchmarkRec(JNIEnv *env, jobject thiz,
+                                                    jlong java_pointer,
+                                                    jlong det_pointer,
+                                                    jint iterations) {
+  if (java_pointer == 0 || det_pointer == 0) {
+    LOGE("JAVA pointer is NULL");
+    return nullptr;
+  }
+  ppredictor::OCR_PPredictor *ppredictor =
+      (ppredictor::OCR_PPredictor *)java_pointer;
+  ppredictor::OCRDetResult *det = (ppredictor::OCRDetResult *)det_pointer;
+  std::vector<float> times = ppredictor->benchmark_rec(*det, iterations);
+  return cpp_array_to_jfloatarray(env, times.data(), times.size());
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_cn_android_ocr_OCRPredictorNative_releaseDetResult(JNIEnv *env,
+                                                        jobject thiz,
+                                                        jlong det_pointer) {
+  if (det_pointer == 0) {
+    return;
+  }
+  delete (ppredictor::OCRDetResult *)det_pointer;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_cn_android_ocr_OCRPredictorNative_waitLoaded(JNIEnv *env, jobject thiz,
+                                                  jlong java_pointer,
+                                                  jint timeout_ms) {
+  if (java_pointer == 0) {
+    LOGE("JAVA pointer is NULL");
+    return ppredictor::LOAD_FAILED;
+  }
+  ppredictor::OCR_PPredictor *ppredictor =
+      (ppredictor::OCR_PPredictor *)java_pointer;
+  return ppredictor->wait_loaded(timeout_ms);
+}
+
+extern "C" JNIEXPORT jlongArray JNICALL
+Java_cn_android_ocr_OCRPredictorNative_recShapeStats(JNIEnv *env, jobject thiz,
+                                                     jlong java_pointer) {
+  if (java_pointer == 0) {
+    LOGE("JAVA pointer is NULL");
+    return int64_vector_to_jlongarray(env, {0, 0});
+  }
+  ppredictor::OCR_PPredictor *ppredictor =
+      (ppredictor::OCR_PPredictor *)java_pointer;
+  return int64_vector_to_jlongarray(env, ppredictor->rec_shape_stats());
 }
 
 extern "C" JNIEXPORT void JNICALL
@@ -110,5 +332,6 @@ Java_cn_android_ocr_OCRPredictorNative_release(
   }
   ppredictor::OCR_PPredictor *ppredictor =
       (ppredictor::OCR_PPredictor *)java_pointer;
+  // also deletes the global ref on the AssetManager taken in init
   delete ppredictor;
 }
\ No newline at end of file
@@ -111,6 +111,17 @@ inline std::vector<float> jfloatarray_to_float_vector(JNIEnv *env,
   return data_vec;
 }
 
+inline std::vector<int> jintarray_to_int_vector(JNIEnv *env, jintArray data) {
+  if (data == nullptr) {
+    return std::vector<int>();
+  }
+  int data_size = env->GetArrayLength(data);
+  jint *data_ptr = env->GetIntArrayElements(data, nullptr);
+  std::vector<int> data_vec(data_ptr, data_ptr + data_size);
+  env->ReleaseIntArrayElements(data, data_ptr, JNI_ABORT);
+  return data_vec;
+}
+
 inline cv::Mat bitmap_to_cv_mat(JNIEnv *env, jobject bitmap) {
   AndroidBitmapInfo info;
   int result = AndroidBitmap_getInfo(env, bitmap, &info);
@@ -135,3 +146,48 @@ inline cv::Mat bitmap_to_cv_mat(JNIEnv *env, jobject bitmap) {
    */
   return mat;
 }
+
+/**
+ * Keeps the pixels of an RGBA_8888 Bitmap locked for its lifetime and exposes
+ * them as a CV_8UC4 Mat without copying.
+ */
+class LockedBitmap {
+public:
+  LockedBitmap(JNIEnv *env, jobject bitmap) : _env(env), _bitmap(bitmap) {
+    AndroidBitmapInfo info;
+    int result = AndroidBitmap_getInfo(env, bitmap, &info);
+    if (result != ANDROID_BITMAP_RESULT_SUCCESS) {
+      LOGE("AndroidBitmap_getInfo failed, result: %d", result);
+      return;
+    }
+    if (info.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+      LOGE("Bitmap format is not RGBA_8888 !");
+      return;
+    }
+    void *pixels = nullptr;
+    result = AndroidBitmap_lockPixels(env, bitmap, &pixels);
+    if (result != ANDROID_BITMAP_RESULT_SUCCESS || pixels == nullptr) {
+      LOGE("AndroidBitmap_lockPixels failed, result: %d", result);
+      return;
+    }
+    _locked = true;
+    _mat = cv::Mat(info.height, info.width, CV_8UC4, pixels, info.stride);
+  }
+
+  ~LockedBitmap() {
+    if (_locked) {
+      AndroidBitmap_unlockPixels(_env, _bitmap);
+    }
+  }
+
+  LockedBitmap(const LockedBitmap &) = delete;
+  LockedBitmap &operator=(const LockedBitmap &) = delete;
+
+  const cv::Mat &mat() const { return _mat; }
+
+private:
+  JNIEnv *_env;
+  jobject _bitmap;
+  bool _locked = false;
+  cv::Mat _mat;
+};
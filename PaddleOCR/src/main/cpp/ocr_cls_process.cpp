@@ -13,6 +13,8 @@
 // limitations under the License.
 
 #include "ocr_cls_process.h"
+#include "ocr_resize_norm.h"
+#include <algorithm>
 #include <cmath>
 #include <cstring>
 #include <fstream>
@@ -43,4 +45,15 @@ cv::Mat cls_resize_img(const cv::Mat &img) {
                        cv::BORDER_CONSTANT, {0, 0, 0});
   }
   return resize_img;
-}
\ No newline at end of file
+}
+
+void cls_resize_norm(const cv::Mat &img, float *dout) {
+  int imgW = CLS_IMAGE_SHAPE[2];
+  int imgH = CLS_IMAGE_SHAPE[1];
+
+  float ratio = float(img.cols) / float(img.rows);
+  int resize_w = std::min(imgW, int(ceilf(imgH * ratio)));
+  // the padding is black before normalization, as in cls_resize_img
+  resize_norm_chw(img.ptr<uint8_t>(), img.cols, img.rows, img.step, resize_w,
+                  imgH, imgW, 2 / 255.f, -1.f, -1.f, dout);
+}
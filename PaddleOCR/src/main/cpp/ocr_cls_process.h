@@ -20,4 +20,11 @@
 
 extern const std::vector<int> CLS_IMAGE_SHAPE;
 
-cv::Mat cls_resize_img(const cv::Mat &img);
\ No newline at end of file
+cv::Mat cls_resize_img(const cv::Mat &img);
+
+/**
+ * Resize a CV_8UC3 crop as cls_resize_img does (bilinear instead of cubic),
+ * normalize it ((v / 255 - 0.5) / 0.5) and write it as chw into one row of a
+ * {B, 3, 48, 192} cls tensor, in one pass with no intermediate image
+ */
+void cls_resize_norm(const cv::Mat &img, float *dout);
\ No newline at end of file
@@ -13,6 +13,8 @@
 // limitations under the License.
 
 #include "ocr_crnn_process.h"
+#include "ocr_resize_norm.h"
+#include <algorithm>
 #include <cmath>
 #include <cstring>
 #include <fstream>
@@ -82,61 +84,83 @@ cv::Mat crnn_resize_img(const cv::Mat &img, float wh_ratio) {
   return resize_img;
 }
 
-cv::Mat get_rotate_crop_image(const cv::Mat &srcimage,
-                              const std::vector<std::vector<int>> &box) {
-
-  std::vector<std::vector<int>> points = box;
-
-  int x_collect[4] = {box[0][0], box[1][0], box[2][0], box[3][0]};
-  int y_collect[4] = {box[0][1], box[1][1], box[2][1], box[3][1]};
-  int left = int(*std::min_element(x_collect, x_collect + 4));
-  int right = int(*std::max_element(x_collect, x_collect + 4));
-  int top = int(*std::min_element(y_collect, y_collect + 4));
-  int bottom = int(*std::max_element(y_collect, y_collect + 4));
+int crnn_resize_width(float wh_ratio) {
+  return std::max(1, int(REC_IMAGE_SHAPE[1] * wh_ratio));
+}
 
-  cv::Mat img_crop;
-  srcimage(cv::Rect(left, top, right - left, bottom - top)).copyTo(img_crop);
+void crnn_resize_norm_pad(const cv::Mat &img, int batch_w, float *dout) {
+  int imgH = REC_IMAGE_SHAPE[1];
+  float ratio = float(img.cols) / float(img.rows);
+  int resize_w = std::min(batch_w, crnn_resize_width(ratio));
+  resize_norm_chw(img.ptr<uint8_t>(), img.cols, img.rows, img.step, resize_w,
+                  imgH, batch_w, 2 / 255.f, -1.f, 0.f, dout);
+}
 
-  for (int i = 0; i < points.size(); i++) {
-    points[i][0] -= left;
-    points[i][1] -= top;
+cv::Mat get_rotate_crop_image(const cv::Mat &srcimage,
+                              const std::vector<std::vector<int>> &box,
+                              int max_height) {
+  cv::Point2f pointsf[4];
+  for (int i = 0; i < 4; i++) {
+    pointsf[i] = cv::Point2f(box[i][0], box[i][1]);
   }
-
-  int img_crop_width = int(sqrt(pow(points[0][0] - points[1][0], 2) +
-                                pow(points[0][1] - points[1][1], 2)));
-  int img_crop_height = int(sqrt(pow(points[0][0] - points[3][0], 2) +
-                                 pow(points[0][1] - points[3][1], 2)));
+  int img_crop_width = std::max(1, int(cv::norm(pointsf[0] - pointsf[1])));
+  int img_crop_height = std::max(1, int(cv::norm(pointsf[0] - pointsf[3])));
+
+  // tall boxes are vertical text, turned 90 degrees counterclockwise
+  bool vertical = float(img_crop_height) >= float(img_crop_width) * 1.5;
+  int out_w = vertical ? img_crop_height : img_crop_width;
+  int out_h = vertical ? img_crop_width : img_crop_height;
+  if (max_height > 0 && out_h > max_height) {
+    // resample once straight to the model height
+    out_w = std::max(1, int(std::round(float(out_w) * max_height / out_h)));
+    out_h = max_height;
+  }
+  cv::Size out_size(out_w, out_h);
 
   cv::Point2f pts_std[4];
-  pts_std[0] = cv::Point2f(0., 0.);
-  pts_std[1] = cv::Point2f(img_crop_width, 0.);
-  pts_std[2] = cv::Point2f(img_crop_width, img_crop_height);
-  pts_std[3] = cv::Point2f(0.f, img_crop_height);
-
-  cv::Point2f pointsf[4];
-  pointsf[0] = cv::Point2f(points[0][0], points[0][1]);
-  pointsf[1] = cv::Point2f(points[1][0], points[1][1]);
-  pointsf[2] = cv::Point2f(points[2][0], points[2][1]);
-  pointsf[3] = cv::Point2f(points[3][0], points[3][1]);
-
-  cv::Mat M = cv::getPerspectiveTransform(pointsf, pts_std);
+  if (vertical) {
+    pts_std[0] = cv::Point2f(0.f, out_h);
+    pts_std[1] = cv::Point2f(0.f, 0.f);
+    pts_std[2] = cv::Point2f(out_w, 0.f);
+    pts_std[3] = cv::Point2f(out_w, out_h);
+  } else {
+    pts_std[0] = cv::Point2f(0.f, 0.f);
+    pts_std[1] = cv::Point2f(out_w, 0.f);
+    pts_std[2] = cv::Point2f(out_w, out_h);
+    pts_std[3] = cv::Point2f(0.f, out_h);
+  }
 
   cv::Mat dst_img;
-  cv::warpPerspective(img_crop, dst_img, M,
-                      cv::Size(img_crop_width, img_crop_height),
-                      cv::BORDER_REPLICATE);
+  bool axis_aligned = !vertical && box[0][1] == box[1][1] &&
+                      box[2][1] == box[3][1] && box[0][0] == box[3][0] &&
+                      box[1][0] == box[2][0] && box[0][0] < box[1][0] &&
+                      box[0][1] < box[3][1];
+  if (axis_aligned) {
+    cv::Rect roi = cv::Rect(box[0][0], box[0][1], img_crop_width,
+                            img_crop_height) &
+                   cv::Rect(0, 0, srcimage.cols, srcimage.rows);
+    if (roi.area() > 0) {
+      if (roi.size() == out_size) {
+        return srcimage(roi);
+      }
+      cv::resize(srcimage(roi), dst_img, out_size);
+      return dst_img;
+    }
+  }
 
-  if (float(dst_img.rows) >= float(dst_img.cols) * 1.5) {
-    /*
-    cv::Mat srcCopy = cv::Mat(dst_img.rows, dst_img.cols, dst_img.depth());
-    cv::transpose(dst_img, srcCopy);
-    cv::flip(srcCopy, srcCopy, 0);
-    return srcCopy;
-    */
-    cv::transpose(dst_img, dst_img);
-    cv::flip(dst_img, dst_img, 0);
-    return dst_img;
-  } else {
+  // boxes from minAreaRect are parallelograms up to the rounding of their
+  // corners, for them an affine warp is exact enough and cheaper
+  cv::Point2f skew = pointsf[0] + pointsf[2] - pointsf[1] - pointsf[3];
+  if (std::abs(skew.x) <= 2 && std::abs(skew.y) <= 2) {
+    cv::Point2f src3[3] = {pointsf[0], pointsf[1], pointsf[3]};
+    cv::Point2f dst3[3] = {pts_std[0], pts_std[1], pts_std[3]};
+    cv::warpAffine(srcimage, dst_img, cv::getAffineTransform(src3, dst3),
+                   out_size, cv::INTER_LINEAR, cv::BORDER_REPLICATE);
     return dst_img;
   }
+
+  cv::Mat M = cv::getPerspectiveTransform(pointsf, pts_std);
+  cv::warpPerspective(srcimage, dst_img, M, out_size, cv::INTER_LINEAR,
+                      cv::BORDER_REPLICATE);
+  return dst_img;
 }
@@ -9,11 +9,35 @@
 
 extern const std::vector<int> REC_IMAGE_SHAPE;
 
+/**
+ * Crop the text in box (4 corners clockwise from top-left) upright, vertical
+ * text turned 90 degrees counterclockwise, in a single resampling pass:
+ * axis-aligned boxes are an ROI, rotated rectangles an affine warp, other
+ * quads a perspective warp
+ * @param max_height > 0 scales crops taller than it down to it in the same
+ * pass, e.g. to the rec input height
+ * @return a view of srcimage for an axis-aligned box that needs no scaling,
+ * otherwise a new Mat
+ */
 cv::Mat get_rotate_crop_image(const cv::Mat &srcimage,
-                              const std::vector<std::vector<int>> &box);
+                              const std::vector<std::vector<int>> &box,
+                              int max_height = 0);
 
 cv::Mat crnn_resize_img(const cv::Mat &img, float wh_ratio);
 
+/**
+ * Width crnn_resize_img resizes a crop of this aspect ratio to
+ */
+int crnn_resize_width(float wh_ratio);
+
+/**
+ * Resize a CV_8UC3 crop to height 32 as crnn_resize_img does, but no wider
+ * than batch_w, normalize it ((v / 255 - 0.5) / 0.5) and write it as chw into
+ * one row of a {B, 3, 32, batch_w} rec tensor, in one pass with no
+ * intermediate image. Columns right of the resized crop are padded with 0.
+ */
+void crnn_resize_norm_pad(const cv::Mat &img, int batch_w, float *dout);
+
 template <class ForwardIterator>
 inline size_t argmax(ForwardIterator first, ForwardIterator last) {
   return std::distance(first, std::max_element(first, last));
@@ -0,0 +1,145 @@
+//
+// Greedy CTC decoding of the rec model output.
+//
+
+#include "ocr_ctc_decoder.h"
+#include "ocr_simd.h"
+#include <cstdint>
+#include <cstdio>
+
+/**
+ * max of the 'lanes' candidates and the remaining elements from start, lane
+ * order is index order within equal values
+ */
+static int finish_argmax(const float *lane_max, const float *lane_idx,
+                         int lanes, const float *row, int start, int n,
+                         float &max_value) {
+  float best = lane_max[0];
+  int best_idx = int(lane_idx[0]);
+  for (int l = 1; l < lanes; l++) {
+    int idx = int(lane_idx[l]);
+    if (lane_max[l] > best || (lane_max[l] == best && idx < best_idx)) {
+      best = lane_max[l];
+      best_idx = idx;
+    }
+  }
+  for (int i = start; i < n; i++) {
+    if (row[i] > best) {
+      best = row[i];
+      best_idx = i;
+    }
+  }
+  max_value = best;
+  return best_idx;
+}
+
+int ctc_argmax(const float *row, int n, float &max_value) {
+#if SIMD_LANES > 1
+  // indices are kept as floats, exact below 2^24 classes
+  if (n >= SIMD_LANES) {
+    simd_f32 vmax = simd_load(row);
+    simd_f32 vidx = simd_iota();
+    simd_f32 cur = vidx;
+    const simd_f32 step = simd_set1(SIMD_LANES);
+    int i = SIMD_LANES;
+    for (; i + SIMD_LANES <= n; i += SIMD_LANES) {
+      cur = simd_add(cur, step);
+      simd_f32 v = simd_load(row + i);
+      simd_mask gt = simd_gt(v, vmax);
+      vmax = simd_max(v, vmax);
+      vidx = simd_select(gt, cur, vidx);
+    }
+    float lane_max[SIMD_LANES], lane_idx[SIMD_LANES];
+    simd_store(lane_max, vmax);
+    simd_store(lane_idx, vidx);
+    return finish_argmax(lane_max, lane_idx, SIMD_LANES, row, i, n,
+                         max_value);
+  }
+#endif
+  float lane_max[1] = {row[0]};
+  float lane_idx[1] = {0};
+  return finish_argmax(lane_max, lane_idx, 1, row, 1, n, max_value);
+}
+
+void ctc_argmax_steps(const float *probs, int steps, int classes,
+                      int *step_idx, float *step_max) {
+  for (int n = 0; n < steps; n++) {
+    step_idx[n] = ctc_argmax(probs + n * classes, classes, step_max[n]);
+  }
+}
+
+int ctc_collapse(const int *step_idx, const float *step_max, int steps,
+                 int *indices, float *confidences, float &score) {
+  int last_index = 0;
+  int count = 0;
+  float sum = 0.f;
+  for (int n = 0; n < steps; n++) {
+    int argmax_idx = step_idx[n];
+    if (argmax_idx > 0 && (!(n > 0 && argmax_idx == last_index))) {
+      sum += step_max[n];
+      indices[count] = argmax_idx;
+      if (confidences != nullptr) {
+        confidences[count] = step_max[n];
+      }
+      count++;
+    }
+    last_index = argmax_idx;
+  }
+  score = count == 0 ? 0.f : sum / count;
+  return count;
+}
+
+int ctc_greedy_decode(const float *probs, int steps, int classes, int *indices,
+                      float *confidences, float &score) {
+  int last_index = 0;
+  int count = 0;
+  float sum = 0.f;
+  for (int n = 0; n < steps; n++) {
+    float max_value;
+    int argmax_idx = ctc_argmax(probs + n * classes, classes, max_value);
+    if (argmax_idx > 0 && (!(n > 0 && argmax_idx == last_index))) {
+      sum += max_value;
+      indices[count] = argmax_idx;
+      if (confidences != nullptr) {
+        confidences[count] = max_value;
+      }
+      count++;
+    }
+    last_index = argmax_idx;
+  }
+  score = count == 0 ? 0.f : sum / count;
+  return count;
+}
+
+bool write_rec_output(const char *path, const float *probs, int steps,
+                      int classes) {
+  FILE *file = fopen(path, "wb");
+  if (file == nullptr) {
+    return false;
+  }
+  const int32_t header[2] = {steps, classes};
+  const size_t size = size_t(steps) * classes;
+  bool ok = fwrite(header, sizeof(int32_t), 2, file) == 2 &&
+            fwrite(probs, sizeof(float), size, file) == size;
+  return fclose(file) == 0 && ok;
+}
+
+bool read_rec_output(const char *path, std::vector<float> &probs, int &steps,
+                     int &classes) {
+  FILE *file = fopen(path, "rb");
+  if (file == nullptr) {
+    return false;
+  }
+  int32_t header[2] = {0, 0};
+  bool ok = fread(header, sizeof(int32_t), 2, file) == 2 && header[0] > 0 &&
+            header[1] > 0;
+  if (ok) {
+    steps = header[0];
+    classes = header[1];
+    probs.resize(size_t(steps) * classes);
+    ok = fread(probs.data(), sizeof(float), probs.size(), file) ==
+         probs.size();
+  }
+  fclose(file);
+  return ok;
+}
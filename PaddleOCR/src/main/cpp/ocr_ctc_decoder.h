@@ -0,0 +1,60 @@
+//
+// Greedy CTC decoding of the rec model output. Depends on nothing but the C++
+// standard library so it builds and runs on a Linux host as well.
+//
+#pragma once
+
+#include <vector>
+
+/**
+ * Index and value of the max of row in one pass, the first index on ties as
+ * std::max_element
+ * @param n > 0
+ */
+int ctc_argmax(const float *row, int n, float &max_value);
+
+/**
+ * ctc_argmax of every step of probs
+ * @param probs steps * classes
+ * @param step_idx, step_max at least steps entries each
+ */
+void ctc_argmax_steps(const float *probs, int steps, int classes,
+                      int *step_idx, float *step_max);
+
+/**
+ * Collapse repeats and drop blanks (class 0) of per step argmax results, for
+ * steps gathered from several rec runs
+ * @param indices, confidences as ctc_greedy_decode
+ * @return number of decoded characters
+ */
+int ctc_collapse(const int *step_idx, const float *step_max, int steps,
+                 int *indices, float *confidences, float &score);
+
+/**
+ * Collapse repeats and drop blanks of the per step argmax of probs, the same
+ * as ctc_argmax_steps + ctc_collapse without the step buffers
+ * @param probs steps * classes, class 0 is the blank
+ * @param indices at least steps entries, receives the decoded class indices
+ * @param confidences nullptr or at least steps entries, receives the
+ * probability of every decoded character
+ * @param score receives the mean probability of the decoded characters, 0 if
+ * there are none
+ * @return number of decoded characters
+ */
+int ctc_greedy_decode(const float *probs, int steps, int classes, int *indices,
+                      float *confidences, float &score);
+
+/**
+ * Record one rec output as a tensor file for the host benchmark: int32 steps,
+ * int32 classes, then steps * classes float32, all in host byte order
+ * @return false if the file can not be written
+ */
+bool write_rec_output(const char *path, const float *probs, int steps,
+                      int classes);
+
+/**
+ * Read a tensor file written by write_rec_output
+ * @return false if the file can not be read or is truncated
+ */
+bool read_rec_output(const char *path, std::vector<float> &probs, int &steps,
+                     int &classes);
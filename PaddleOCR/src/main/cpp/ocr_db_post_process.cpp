@@ -12,175 +12,198 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
-#include "ocr_clipper.hpp"
+#include "ocr_db_post_process.h"
+#include "ocr_simd.h"
 #include "opencv2/core.hpp"
 #include "opencv2/imgcodecs.hpp"
 #include "opencv2/imgproc.hpp"
+#include <algorithm>
+#include <atomic>
 #include <iostream>
 #include <math.h>
 #include <vector>
 
-static void getcontourarea(float **box, float unclip_ratio, float &distance) {
+void DBScratch::reset() {
+  boxes.clear();
+  filtered.clear();
+}
+
+size_t DBScratch::reserved_bytes() const {
+  size_t bytes = contours.capacity() * sizeof(std::vector<cv::Point>) +
+                 hierarchy.capacity() * sizeof(cv::Vec4i) +
+                 bitmap.total() * bitmap.elemSize() +
+                 integral.total() * integral.elemSize() +
+                 (candidates.capacity() + boxes.capacity() +
+                  filtered.capacity()) *
+                     sizeof(DBQuad) +
+                 kept.capacity() + parity_iou.capacity() * sizeof(float) +
+                 order.capacity() * sizeof(int) +
+                 areas.capacity() * sizeof(double);
+  for (const std::vector<cv::Point> &contour : contours) {
+    bytes += contour.capacity() * sizeof(cv::Point);
+  }
+  for (const std::unique_ptr<DBContourScratch> &worker : workers) {
+    bytes += sizeof(DBContourScratch) +
+             worker->path.capacity() * sizeof(ClipperLib::IntPoint) +
+             worker->unclip_points.capacity() * sizeof(cv::Point2f);
+    for (const ClipperLib::Path &p : worker->solution) {
+      bytes += p.capacity() * sizeof(ClipperLib::IntPoint);
+    }
+  }
+  return bytes;
+}
+
+static float getcontourarea(const cv::Point2f box[4], float unclip_ratio) {
   int pts_num = 4;
   float area = 0.0f;
   float dist = 0.0f;
   for (int i = 0; i < pts_num; i++) {
-    area += box[i][0] * box[(i + 1) % pts_num][1] -
-            box[i][1] * box[(i + 1) % pts_num][0];
-    dist += sqrtf((box[i][0] - box[(i + 1) % pts_num][0]) *
-                      (box[i][0] - box[(i + 1) % pts_num][0]) +
-                  (box[i][1] - box[(i + 1) % pts_num][1]) *
-                      (box[i][1] - box[(i + 1) % pts_num][1]));
+    const cv::Point2f &p = box[i];
+    const cv::Point2f &q = box[(i + 1) % pts_num];
+    area += p.x * q.y - p.y * q.x;
+    dist += sqrtf((p.x - q.x) * (p.x - q.x) + (p.y - q.y) * (p.y - q.y));
   }
   area = fabs(float(area / 2.0));
 
-  distance = area * unclip_ratio / dist;
+  return area * unclip_ratio / dist;
 }
 
-static cv::RotatedRect unclip(float **box) {
-  float unclip_ratio = 2.0;
-  float distance = 1.0;
-
-  getcontourarea(box, unclip_ratio, distance);
-
-  ClipperLib::ClipperOffset offset;
-  ClipperLib::Path p;
-  p << ClipperLib::IntPoint(int(box[0][0]), int(box[0][1]))
-    << ClipperLib::IntPoint(int(box[1][0]), int(box[1][1]))
-    << ClipperLib::IntPoint(int(box[2][0]), int(box[2][1]))
-    << ClipperLib::IntPoint(int(box[3][0]), int(box[3][1]));
-  offset.AddPath(p, ClipperLib::jtRound, ClipperLib::etClosedPolygon);
+static cv::RotatedRect unclip(const cv::Point2f box[4], float unclip_ratio,
+                              DBContourScratch &scratch) {
+  float distance = getcontourarea(box, unclip_ratio);
 
-  ClipperLib::Paths soln;
-  offset.Execute(soln, distance);
-  std::vector<cv::Point2f> points;
-
-  for (int j = 0; j < soln.size(); j++) {
-    for (int i = 0; i < soln[soln.size() - 1].size(); i++) {
-      points.emplace_back(soln[j][i].X, soln[j][i].Y);
+  ClipperLib::Path &p = scratch.path;
+  p.clear();
+  for (int i = 0; i < 4; i++) {
+    p << ClipperLib::IntPoint(int(box[i].x), int(box[i].y));
+  }
+  scratch.offset.Clear();
+  scratch.offset.AddPath(p, ClipperLib::jtRound, ClipperLib::etClosedPolygon);
+
+  ClipperLib::Paths &soln = scratch.solution;
+  scratch.offset.Execute(soln, distance);
+  std::vector<cv::Point2f> &points = scratch.unclip_points;
+  points.clear();
+  for (const ClipperLib::Path &path : soln) {
+    for (const ClipperLib::IntPoint &pt : path) {
+      points.emplace_back(pt.X, pt.Y);
     }
   }
-  cv::RotatedRect res = cv::minAreaRect(points);
-
-  return res;
+  return cv::minAreaRect(points);
 }
 
-static float **Mat2Vec(cv::Mat mat) {
-  auto **array = new float *[mat.rows];
-  for (int i = 0; i < mat.rows; ++i) {
-    array[i] = new float[mat.cols];
-  }
-  for (int i = 0; i < mat.rows; ++i) {
-    for (int j = 0; j < mat.cols; ++j) {
-      array[i][j] = mat.at<float>(i, j);
-    }
+/**
+ * Same expansion as unclip without the polygon offset. The offset of a
+ * rectangle by d is the rectangle grown by d on every side with rounded
+ * corners, whose min area rect is the grown rectangle itself, so only the
+ * size changes. distance = area * unclip_ratio / perimeter as in unclip
+ */
+static cv::RotatedRect unclip_quad(const cv::RotatedRect &box,
+                                   float unclip_ratio) {
+  float w = box.size.width;
+  float h = box.size.height;
+  if (w + h <= 0) {
+    return box;
   }
-
-  return array;
+  float distance = w * h * unclip_ratio / (2 * (w + h));
+  return cv::RotatedRect(box.center,
+                         cv::Size2f(w + 2 * distance, h + 2 * distance),
+                         box.angle);
 }
 
-static void quickSort(float **s, int l, int r) {
-  if (l < r) {
-    int i = l, j = r;
-    float x = s[l][0];
-    float *xp = s[l];
-    while (i < j) {
-      while (i < j && s[j][0] >= x) {
-        j--;
-      }
-      if (i < j) {
-        std::swap(s[i++], s[j]);
-      }
-      while (i < j && s[i][0] < x) {
-        i++;
-      }
-      if (i < j) {
-        std::swap(s[j--], s[i]);
-      }
-    }
-    s[i] = xp;
-    quickSort(s, l, i - 1);
-    quickSort(s, i + 1, r);
+float rotated_rect_iou(const cv::RotatedRect &a, const cv::RotatedRect &b) {
+  std::vector<cv::Point2f> region;
+  if (cv::rotatedRectangleIntersection(a, b, region) == cv::INTERSECT_NONE ||
+      region.size() < 3) {
+    return 0;
   }
+  std::vector<cv::Point2f> hull;
+  cv::convexHull(region, hull);
+  float inter = float(cv::contourArea(hull));
+  float uni = a.size.area() + b.size.area() - inter;
+  return uni <= 0 ? 0 : inter / uni;
 }
 
-static void quickSort_vector(std::vector<std::vector<int>> &box, int l, int r,
-                             int axis) {
-  if (l < r) {
-    int i = l, j = r;
-    int x = box[l][axis];
-    std::vector<int> xp(box[l]);
-    while (i < j) {
-      while (i < j && box[j][axis] >= x) {
-        j--;
-      }
-      if (i < j) {
-        std::swap(box[i++], box[j]);
-      }
-      while (i < j && box[i][axis] < x) {
-        i++;
-      }
-      if (i < j) {
-        std::swap(box[j--], box[i]);
-      }
+/**
+ * stable sort of 4 points by x
+ */
+template <class P> static void sort4_by_x(P pts[4]) {
+  for (int i = 1; i < 4; i++) {
+    P p = pts[i];
+    int j = i - 1;
+    for (; j >= 0 && pts[j].x > p.x; j--) {
+      pts[j + 1] = pts[j];
     }
-    box[i] = xp;
-    quickSort_vector(box, l, i - 1, axis);
-    quickSort_vector(box, i + 1, r, axis);
+    pts[j + 1] = p;
   }
 }
 
-static std::vector<std::vector<int>>
-order_points_clockwise(std::vector<std::vector<int>> pts) {
-  std::vector<std::vector<int>> box = pts;
-  quickSort_vector(box, 0, int(box.size() - 1), 0);
-  std::vector<std::vector<int>> leftmost = {box[0], box[1]};
-  std::vector<std::vector<int>> rightmost = {box[2], box[3]};
+static DBQuad order_points_clockwise(const DBQuad &quad) {
+  DBQuad box = quad;
+  sort4_by_x(box.pts);
+  cv::Point leftmost[2] = {box.pts[0], box.pts[1]};
+  cv::Point rightmost[2] = {box.pts[2], box.pts[3]};
 
-  if (leftmost[0][1] > leftmost[1][1]) {
+  if (leftmost[0].y > leftmost[1].y) {
     std::swap(leftmost[0], leftmost[1]);
   }
 
-  if (rightmost[0][1] > rightmost[1][1]) {
+  if (rightmost[0].y > rightmost[1].y) {
     std::swap(rightmost[0], rightmost[1]);
   }
 
-  std::vector<std::vector<int>> rect = {leftmost[0], rightmost[0], rightmost[1],
-                                        leftmost[1]};
+  DBQuad rect;
+  rect.pts[0] = leftmost[0];
+  rect.pts[1] = rightmost[0];
+  rect.pts[2] = rightmost[1];
+  rect.pts[3] = leftmost[1];
   return rect;
 }
 
-static float **get_mini_boxes(cv::RotatedRect box, float &ssid) {
-  ssid = box.size.width >= box.size.height ? box.size.height : box.size.width;
+/**
+ * corners of box ordered top-left, top-right, bottom-right, bottom-left
+ * @return length of the short side
+ */
+static float get_mini_boxes(const cv::RotatedRect &box, cv::Point2f quad[4]) {
+  float ssid =
+      box.size.width >= box.size.height ? box.size.height : box.size.width;
 
-  cv::Mat points;
-  cv::boxPoints(box, points);
+  cv::Point2f pts[4];
+  box.points(pts);
   // sorted box points
-  auto array = Mat2Vec(points);
-  quickSort(array, 0, 3);
+  sort4_by_x(pts);
 
-  float *idx1 = array[0], *idx2 = array[1], *idx3 = array[2], *idx4 = array[3];
-  if (array[3][1] <= array[2][1]) {
-    idx2 = array[3];
-    idx3 = array[2];
+  int idx1, idx2, idx3, idx4;
+  if (pts[3].y <= pts[2].y) {
+    idx2 = 3;
+    idx3 = 2;
   } else {
-    idx2 = array[2];
-    idx3 = array[3];
+    idx2 = 2;
+    idx3 = 3;
   }
-  if (array[1][1] <= array[0][1]) {
-    idx1 = array[1];
-    idx4 = array[0];
+  if (pts[1].y <= pts[0].y) {
+    idx1 = 1;
+    idx4 = 0;
   } else {
-    idx1 = array[0];
-    idx4 = array[1];
+    idx1 = 0;
+    idx4 = 1;
   }
 
-  array[0] = idx1;
-  array[1] = idx2;
-  array[2] = idx3;
-  array[3] = idx4;
+  quad[0] = pts[idx1];
+  quad[1] = pts[idx2];
+  quad[2] = pts[idx3];
+  quad[3] = pts[idx4];
+  return ssid;
+}
 
-  return array;
+cv::RotatedRect unclip_box(const cv::RotatedRect &box, float unclip_ratio,
+                           int unclip_mode, DBContourScratch &scratch) {
+  if (unclip_mode == UNCLIP_QUAD) {
+    return unclip_quad(box, unclip_ratio);
+  }
+  cv::Point2f array[4];
+  get_mini_boxes(box, array);
+  return unclip(array, unclip_ratio, scratch);
 }
 
 template <class T> T clamp(T x, T min, T max) {
@@ -201,142 +224,287 @@ static float clampf(float x, float min, float max) {
   return x;
 }
 
-float box_score_fast(float **box_array, cv::Mat pred) {
-  auto array = box_array;
+/**
+ * mean of pred over a convex quad without building a mask: every row between
+ * the top and bottom corner sums the pixels from the leftmost to the rightmost
+ * edge crossing, the pixels cv::fillPoly would set
+ */
+static float quad_mean(const cv::Mat &pred, const cv::Point pts[4]) {
   int width = pred.cols;
   int height = pred.rows;
+  int ymin = pts[0].y, ymax = pts[0].y;
+  for (int i = 1; i < 4; i++) {
+    ymin = std::min(ymin, pts[i].y);
+    ymax = std::max(ymax, pts[i].y);
+  }
+  ymin = clamp(ymin, 0, height - 1);
+  ymax = clamp(ymax, 0, height - 1);
+
+  double sum = 0;
+  long count = 0;
+  for (int y = ymin; y <= ymax; y++) {
+    float xl = float(width), xr = -1.0f;
+    for (int i = 0; i < 4; i++) {
+      const cv::Point &p = pts[i];
+      const cv::Point &q = pts[(i + 1) % 4];
+      if ((y < p.y && y < q.y) || (y > p.y && y > q.y)) {
+        continue;
+      }
+      if (p.y == q.y) {
+        xl = std::min(xl, float(std::min(p.x, q.x)));
+        xr = std::max(xr, float(std::max(p.x, q.x)));
+        continue;
+      }
+      float x = p.x + float(q.x - p.x) * (y - p.y) / float(q.y - p.y);
+      xl = std::min(xl, x);
+      xr = std::max(xr, x);
+    }
+    int x0 = std::max(0, int(std::floor(xl + 0.5f)));
+    int x1 = std::min(width - 1, int(std::floor(xr + 0.5f)));
+    if (x1 < x0) {
+      continue;
+    }
+    const float *row = pred.ptr<float>(y);
+    float row_sum = 0;
+    for (int x = x0; x <= x1; x++) {
+      row_sum += row[x];
+    }
+    sum += row_sum;
+    count += x1 - x0 + 1;
+  }
+  return count == 0 ? 0.0f : float(sum / count);
+}
 
-  float box_x[4] = {array[0][0], array[1][0], array[2][0], array[3][0]};
-  float box_y[4] = {array[0][1], array[1][1], array[2][1], array[3][1]};
-
-  int xmin = clamp(int(std::floorf(*(std::min_element(box_x, box_x + 4)))), 0,
-                   width - 1);
-  int xmax = clamp(int(std::ceilf(*(std::max_element(box_x, box_x + 4)))), 0,
-                   width - 1);
-  int ymin = clamp(int(std::floorf(*(std::min_element(box_y, box_y + 4)))), 0,
-                   height - 1);
-  int ymax = clamp(int(std::ceilf(*(std::max_element(box_y, box_y + 4)))), 0,
-                   height - 1);
-
-  cv::Mat mask;
-  mask = cv::Mat::zeros(ymax - ymin + 1, xmax - xmin + 1, CV_8UC1);
-
-  cv::Point root_point[4];
-  root_point[0] = cv::Point(int(array[0][0]) - xmin, int(array[0][1]) - ymin);
-  root_point[1] = cv::Point(int(array[1][0]) - xmin, int(array[1][1]) - ymin);
-  root_point[2] = cv::Point(int(array[2][0]) - xmin, int(array[2][1]) - ymin);
-  root_point[3] = cv::Point(int(array[3][0]) - xmin, int(array[3][1]) - ymin);
-  const cv::Point *ppt[1] = {root_point};
-  int npt[] = {4};
-  cv::fillPoly(mask, ppt, npt, 1, cv::Scalar(1));
-
-  cv::Mat croppedImg;
-  pred(cv::Rect(xmin, ymin, xmax - xmin + 1, ymax - ymin + 1))
-      .copyTo(croppedImg);
-
-  auto score = cv::mean(croppedImg, mask)[0];
-  return score;
+/**
+ * mean of pred over the inclusive rect, from the integral image of pred
+ */
+static float rect_mean(const cv::Mat &integral, int x0, int y0, int x1,
+                       int y1) {
+  const double *top = integral.ptr<double>(y0);
+  const double *bottom = integral.ptr<double>(y1 + 1);
+  double sum = bottom[x1 + 1] - bottom[x0] - top[x1 + 1] + top[x0];
+  return float(sum / (double(x1 - x0 + 1) * (y1 - y0 + 1)));
 }
 
-std::vector<std::vector<std::vector<int>>>
-boxes_from_bitmap(const cv::Mat &pred, const cv::Mat &bitmap) {
-  const int min_size = 3;
-  const int max_candidates = 1000;
-  const float box_thresh = 0.5;
+/**
+ * @param integral integral image of pred to score axis-aligned boxes from, or
+ * nullptr
+ */
+static float box_score_fast(const cv::Point2f box[4], const cv::Mat &pred,
+                            const cv::Mat *integral) {
+  // same integer corners the mask polygon used to be drawn with
+  cv::Point pts[4];
+  for (int i = 0; i < 4; i++) {
+    pts[i] = cv::Point(int(box[i].x), int(box[i].y));
+  }
+  // corners are ordered top-left, top-right, bottom-right, bottom-left
+  bool axis_aligned = pts[0].y == pts[1].y && pts[2].y == pts[3].y &&
+                      pts[0].x == pts[3].x && pts[1].x == pts[2].x;
+  if (!axis_aligned || integral == nullptr) {
+    return quad_mean(pred, pts);
+  }
 
-  int width = bitmap.cols;
-  int height = bitmap.rows;
+  int x0 = clamp(std::min(pts[0].x, pts[1].x), 0, pred.cols - 1);
+  int x1 = clamp(std::max(pts[0].x, pts[1].x), 0, pred.cols - 1);
+  int y0 = clamp(std::min(pts[0].y, pts[3].y), 0, pred.rows - 1);
+  int y1 = clamp(std::max(pts[0].y, pts[3].y), 0, pred.rows - 1);
+  return rect_mean(*integral, x0, y0, x1, y1);
+}
 
-  std::vector<std::vector<cv::Point>> contours;
-  std::vector<cv::Vec4i> hierarchy;
+/**
+ * box of one contour, in the coordinates of pred
+ * @return false if the contour is too small or scores too low
+ */
+static bool box_from_contour(const std::vector<cv::Point> &contour,
+                             const cv::Mat &pred, const cv::Size &bitmap_size,
+                             const cv::Mat *integral, const DBConfig &config,
+                             DBContourScratch &scratch, DBQuad &quad,
+                             float &parity_iou) {
+  const int min_size = config.min_size;
+  const float unclip_ratio = config.unclip_ratio;
+  const int unclip_mode = config.unclip_mode;
+
+  cv::Point2f array[4];
+  cv::RotatedRect box = cv::minAreaRect(contour);
+  float ssid = get_mini_boxes(box, array);
+  // end get_mini_box
+
+  if (ssid < min_size) {
+    return false;
+  }
 
-  cv::findContours(bitmap, contours, hierarchy, cv::RETR_LIST,
-                   cv::CHAIN_APPROX_SIMPLE);
+  float score = box_score_fast(array, pred, integral);
+  // end box_score_fast
+  if (score < config.box_thresh) {
+    return false;
+  }
 
-  int num_contours =
-      contours.size() >= max_candidates ? max_candidates : contours.size();
+  // start for unclip
+  cv::RotatedRect clipbox = unclip_box(box, unclip_ratio, unclip_mode, scratch);
+  if (unclip_mode == UNCLIP_PARITY) {
+    parity_iou = rotated_rect_iou(unclip_quad(box, unclip_ratio), clipbox);
+  }
+  // end for unclip
+
+  cv::Point2f cliparray[4];
+  ssid = get_mini_boxes(clipbox, cliparray);
+
+  if (ssid < min_size + 2)
+    return false;
+
+  int width = bitmap_size.width;
+  int height = bitmap_size.height;
+  int dest_width = pred.cols;
+  int dest_height = pred.rows;
+  for (int num_pt = 0; num_pt < 4; num_pt++) {
+    quad.pts[num_pt].x = int(
+        clampf(roundf(cliparray[num_pt].x / float(width) * float(dest_width)),
+               0, float(dest_width)));
+    quad.pts[num_pt].y = int(clampf(
+        roundf(cliparray[num_pt].y / float(height) * float(dest_height)), 0,
+        float(dest_height)));
+  }
+  return true;
+}
 
-  std::vector<std::vector<std::vector<int>>> boxes;
+void threshold_to_bitmap(const float *pred, int size, float thresh,
+                         uint8_t *bitmap) {
+  int i = 0;
+  const simd_f32 vthresh = simd_set1(thresh);
+  for (; i + SIMD_LANES <= size; i += SIMD_LANES) {
+    simd_store_mask_u8(bitmap + i, simd_gt(simd_load(pred + i), vthresh));
+  }
+  for (; i < size; i++) {
+    bitmap[i] = pred[i] > thresh ? 1 : 0;
+  }
+}
 
-  for (int _i = 0; _i < num_contours; _i++) {
-    float ssid;
-    cv::RotatedRect box = cv::minAreaRect(contours[_i]);
-    auto array = get_mini_boxes(box, ssid);
+/**
+ * indices of the contours to turn into boxes, the max_candidates largest by
+ * area, ascending so the boxes keep the contour order
+ */
+static void select_candidates(const std::vector<std::vector<cv::Point>> &contours,
+                              int max_candidates, DBScratch &scratch) {
+  const int contour_num = int(contours.size());
+  std::vector<int> &order = scratch.order;
+  order.resize(contour_num);
+  for (int i = 0; i < contour_num; i++) {
+    order[i] = i;
+  }
+  if (max_candidates < 1 || contour_num <= max_candidates) {
+    return;
+  }
+  std::vector<double> &areas = scratch.areas;
+  areas.resize(contour_num);
+  for (int i = 0; i < contour_num; i++) {
+    areas[i] = cv::contourArea(contours[i]);
+  }
+  std::nth_element(order.begin(), order.begin() + max_candidates, order.end(),
+                   [&areas](int a, int b) { return areas[a] > areas[b]; });
+  order.resize(max_candidates);
+  std::sort(order.begin(), order.end());
+}
 
-    auto box_for_unclip = array;
-    // end get_mini_box
+void boxes_from_bitmap(const cv::Mat &pred, const cv::Mat &bitmap,
+                       const DBConfig &config, DBScratch &scratch,
+                       std::vector<DBQuad> &boxes, WorkerPool *pool) {
+  const int unclip_mode = config.unclip_mode;
+  // below this many contours per thread, handing them to a pool thread costs
+  // more than it saves
+  const int min_contours_per_thread = 16;
 
-    if (ssid < min_size) {
-      continue;
-    }
+  std::vector<std::vector<cv::Point>> &contours = scratch.contours;
+  cv::findContours(bitmap, contours, scratch.hierarchy, cv::RETR_LIST,
+                   cv::CHAIN_APPROX_SIMPLE);
 
-    float score;
-    score = box_score_fast(array, pred);
-    // end box_score_fast
-    if (score < box_thresh) {
-      continue;
-    }
+  select_candidates(contours, config.max_candidates, scratch);
+  int num_contours = int(scratch.order.size());
 
-    // start for unclip
-    cv::RotatedRect points = unclip(box_for_unclip);
-    // end for unclip
+  // one pass over the map for the integral image pays off on dense pages
+  const cv::Mat *integral = nullptr;
+  if (num_contours >= 64) {
+    cv::integral(pred, scratch.integral, CV_64F);
+    integral = &scratch.integral;
+  }
 
-    cv::RotatedRect clipbox = points;
-    auto cliparray = get_mini_boxes(clipbox, ssid);
+  int max_workers =
+      pool == nullptr ? 1 : std::min(config.threads, pool->size());
+  int worker_num = std::max(
+      1, std::min(max_workers, num_contours / min_contours_per_thread));
+  while (int(scratch.workers.size()) < worker_num) {
+    scratch.workers.emplace_back(new DBContourScratch());
+  }
+  scratch.candidates.resize(num_contours);
+  scratch.kept.assign(num_contours, 0);
+  if (unclip_mode == UNCLIP_PARITY) {
+    scratch.parity_iou.assign(num_contours, -1.0f);
+  }
 
-    if (ssid < min_size + 2)
-      continue;
+  // every worker takes the next unclaimed contour, results go to the
+  // contour's own slot so the order does not depend on the threads
+  std::atomic<int> next_contour{0};
+  cv::Size bitmap_size = bitmap.size();
+  auto run_worker = [&](DBContourScratch &worker) {
+    float unused_iou;
+    int i;
+    while ((i = next_contour.fetch_add(1)) < num_contours) {
+      float &parity_iou =
+          unclip_mode == UNCLIP_PARITY ? scratch.parity_iou[i] : unused_iou;
+      scratch.kept[i] = box_from_contour(contours[scratch.order[i]], pred,
+                                         bitmap_size, integral, config, worker,
+                                         scratch.candidates[i], parity_iou);
+    }
+  };
+  if (worker_num == 1) {
+    run_worker(*scratch.workers[0]);
+  } else {
+    pool->run(worker_num, [&](int w) { run_worker(*scratch.workers[w]); });
+  }
 
-    int dest_width = pred.cols;
-    int dest_height = pred.rows;
-    std::vector<std::vector<int>> intcliparray;
-
-    for (int num_pt = 0; num_pt < 4; num_pt++) {
-      std::vector<int> a{int(clampf(roundf(cliparray[num_pt][0] / float(width) *
-                                           float(dest_width)),
-                                    0, float(dest_width))),
-                         int(clampf(roundf(cliparray[num_pt][1] /
-                                           float(height) * float(dest_height)),
-                                    0, float(dest_height)))};
-      intcliparray.emplace_back(std::move(a));
+  boxes.clear();
+  for (int i = 0; i < num_contours; i++) {
+    if (scratch.kept[i]) {
+      boxes.push_back(scratch.candidates[i]);
     }
-    boxes.emplace_back(std::move(intcliparray));
+  }
 
-  } // end for
-  return boxes;
+  if (unclip_mode == UNCLIP_PARITY) {
+    scratch.parity_count = 0;
+    scratch.parity_min_iou = 1;
+    double iou_sum = 0;
+    for (int i = 0; i < num_contours; i++) {
+      float iou = scratch.parity_iou[i];
+      if (iou < 0) {
+        continue;
+      }
+      scratch.parity_count++;
+      scratch.parity_min_iou = std::min(scratch.parity_min_iou, iou);
+      iou_sum += iou;
+    }
+    scratch.parity_mean_iou =
+        scratch.parity_count == 0 ? 1 : float(iou_sum / scratch.parity_count);
+  }
 }
 
-int _max(int a, int b) { return a >= b ? a : b; }
-
-int _min(int a, int b) { return a >= b ? b : a; }
-
-std::vector<std::vector<std::vector<int>>>
-filter_tag_det_res(const std::vector<std::vector<std::vector<int>>> &o_boxes,
-                   float ratio_h, float ratio_w, const cv::Mat &srcimg) {
+void filter_tag_det_res(const std::vector<DBQuad> &o_boxes, float ratio_h,
+                        float ratio_w, const cv::Mat &srcimg,
+                        std::vector<DBQuad> &boxes) {
   int oriimg_h = srcimg.rows;
   int oriimg_w = srcimg.cols;
-  std::vector<std::vector<std::vector<int>>> boxes{o_boxes};
-  std::vector<std::vector<std::vector<int>>> root_points;
-  for (int n = 0; n < boxes.size(); n++) {
-    boxes[n] = order_points_clockwise(boxes[n]);
-    for (int m = 0; m < boxes[0].size(); m++) {
-      boxes[n][m][0] /= ratio_w;
-      boxes[n][m][1] /= ratio_h;
-
-      boxes[n][m][0] = int(_min(_max(boxes[n][m][0], 0), oriimg_w - 1));
-      boxes[n][m][1] = int(_min(_max(boxes[n][m][1], 0), oriimg_h - 1));
+  boxes.clear();
+  for (const DBQuad &o_box : o_boxes) {
+    DBQuad box = order_points_clockwise(o_box);
+    for (cv::Point &pt : box.pts) {
+      pt.x = clamp(int(pt.x / ratio_w), 0, oriimg_w - 1);
+      pt.y = clamp(int(pt.y / ratio_h), 0, oriimg_h - 1);
     }
-  }
 
-  for (int n = 0; n < boxes.size(); n++) {
-    int rect_width, rect_height;
-    rect_width = int(sqrt(pow(boxes[n][0][0] - boxes[n][1][0], 2) +
-                          pow(boxes[n][0][1] - boxes[n][1][1], 2)));
-    rect_height = int(sqrt(pow(boxes[n][0][0] - boxes[n][3][0], 2) +
-                           pow(boxes[n][0][1] - boxes[n][3][1], 2)));
+    int rect_width = int(sqrt(pow(box.pts[0].x - box.pts[1].x, 2) +
+                              pow(box.pts[0].y - box.pts[1].y, 2)));
+    int rect_height = int(sqrt(pow(box.pts[0].x - box.pts[3].x, 2) +
+                               pow(box.pts[0].y - box.pts[3].y, 2)));
     if (rect_width <= 10 || rect_height <= 10)
       continue;
-    root_points.push_back(boxes[n]);
+    boxes.push_back(box);
   }
-  return root_points;
-}
\ No newline at end of file
+}
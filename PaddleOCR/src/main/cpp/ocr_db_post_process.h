@@ -2,12 +2,134 @@
 // Created by fujiayi on 2020/7/2.
 //
 #pragma once
+#include "ocr_clipper.hpp"
+#include "ocr_worker_thread.h"
+#include <memory>
 #include <opencv2/opencv.hpp>
 #include <vector>
 
-std::vector<std::vector<std::vector<int>>>
-boxes_from_bitmap(const cv::Mat &pred, const cv::Mat &bitmap);
+/**
+ * How a box is expanded back to the full text region
+ */
+enum UNCLIP_MODE {
+  // closed form: the rotated rect grown by the offset distance on every side
+  UNCLIP_QUAD = 0,
+  // ClipperLib round offset of the 4 corners, then minAreaRect
+  UNCLIP_CLIPPER = 1,
+  // UNCLIP_CLIPPER boxes, with the IoU of UNCLIP_QUAD against them recorded
+  // in DBScratch for a parity check
+  UNCLIP_PARITY = 2,
+};
 
-std::vector<std::vector<std::vector<int>>>
-filter_tag_det_res(const std::vector<std::vector<std::vector<int>>> &o_boxes,
-                   float ratio_h, float ratio_w, const cv::Mat &srcimg);
\ No newline at end of file
+/**
+ * Parameters of the DB post-processing, lower thresholds and larger budgets
+ * raise recall at the cost of latency
+ */
+struct DBConfig {
+  float thresh = 0.3f;     // probability a pixel needs to be text
+  float box_thresh = 0.5f; // mean probability a box needs to be kept
+  int min_size = 3;        // min short side of a box before unclip
+  int max_candidates = 1000; // contours turned into boxes per image, the
+                             // largest first; < 1 means all
+  float unclip_ratio = 2.0f; // how far boxes are expanded
+  int unclip_mode = UNCLIP_QUAD;
+  int threads = 0; // max threads the contours are spread over, including the
+                   // calling one, capped by the pool. Few contours run on
+                   // fewer threads, OCR_PPredictor uses thread_num if < 1
+};
+
+/**
+ * A text box found by the DB post-processing, 4 corners in pixels
+ */
+struct DBQuad {
+  cv::Point pts[4];
+};
+
+/**
+ * Per worker scratch of the contour to box step
+ */
+struct DBContourScratch {
+  ClipperLib::ClipperOffset offset;
+  ClipperLib::Path path;
+  ClipperLib::Paths solution;
+  std::vector<cv::Point2f> unclip_points;
+};
+
+/**
+ * Scratch memory of the DB post-processing, owned by the caller and reused
+ * across images. reset() drops the content but keeps the capacity, so once the
+ * largest image has been seen no more memory is taken from the heap. Not
+ * thread safe, one per det predictor.
+ */
+struct DBScratch {
+  std::vector<std::vector<cv::Point>> contours;
+  std::vector<cv::Vec4i> hierarchy;
+  cv::Mat bitmap;
+  // integral image of the probability map (CV_64F), built for dense images
+  // to score their axis-aligned boxes
+  cv::Mat integral;
+  // one per contour worker, held by pointer as ClipperOffset must not be copied
+  std::vector<std::unique_ptr<DBContourScratch>> workers;
+  // contours within the candidate budget, ascending
+  std::vector<int> order;
+  std::vector<double> areas;
+  // box of every contour in order and whether it was kept
+  std::vector<DBQuad> candidates;
+  std::vector<char> kept;
+  // UNCLIP_PARITY only, IoU per candidate, < 0 where no box reached unclip
+  std::vector<float> parity_iou;
+  // UNCLIP_PARITY only, summary of parity_iou for the last image
+  int parity_count = 0;
+  float parity_min_iou = 1;
+  float parity_mean_iou = 1;
+  std::vector<DBQuad> boxes;
+  std::vector<DBQuad> filtered;
+
+  void reset();
+
+  /**
+   * bytes currently held, grows only while larger inputs are seen
+   */
+  size_t reserved_bytes() const;
+};
+
+/**
+ * box expanded back to the full text region as unclip_mode says,
+ * UNCLIP_PARITY expands as UNCLIP_CLIPPER
+ * @param box min area rect of a contour
+ * @param scratch used by the Clipper modes only
+ */
+cv::RotatedRect unclip_box(const cv::RotatedRect &box, float unclip_ratio,
+                           int unclip_mode, DBContourScratch &scratch);
+
+/**
+ * intersection over union of two rotated rects, 0 if they do not overlap
+ */
+float rotated_rect_iou(const cv::RotatedRect &a, const cv::RotatedRect &b);
+
+/**
+ * bitmap[i] = pred[i] > thresh, in one pass over the float map
+ */
+void threshold_to_bitmap(const float *pred, int size, float thresh,
+                         uint8_t *bitmap);
+
+/**
+ * @param pred probability map of the det model
+ * @param bitmap binarized pred
+ * @param boxes cleared, then filled with the boxes in bitmap coordinates, in
+ * contour order whatever config.threads is
+ * @param pool threads the contours are spread over, nullptr runs them all on
+ * the calling thread
+ */
+void boxes_from_bitmap(const cv::Mat &pred, const cv::Mat &bitmap,
+                       const DBConfig &config, DBScratch &scratch,
+                       std::vector<DBQuad> &boxes, WorkerPool *pool = nullptr);
+
+/**
+ * map boxes back to srcimg, order corners clockwise from top-left and drop the
+ * small ones
+ * @param boxes cleared, then filled with the kept boxes
+ */
+void filter_tag_det_res(const std::vector<DBQuad> &o_boxes, float ratio_h,
+                        float ratio_w, const cv::Mat &srcimg,
+                        std::vector<DBQuad> &boxes);
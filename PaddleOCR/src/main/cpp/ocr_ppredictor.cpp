@@ -6,46 +6,297 @@
 #include "common.h"
 #include "ocr_cls_process.h"
 #include "ocr_crnn_process.h"
+#include "ocr_ctc_decoder.h"
 #include "ocr_db_post_process.h"
 #include "preprocess.h"
+#include <algorithm>
+#include <atomic>
+#include <chrono>
 
 namespace ppredictor {
 
 OCR_PPredictor::OCR_PPredictor(const OCR_Config &config) : _config(config) {}
 
+OCR_PPredictor::~OCR_PPredictor() {
+  // cut the warmups short, then wait for them and the background loads, both
+  // still use the predictors. Lazy loads never started
+  _det_gate.requested = true;
+  _rec_gate.requested = true;
+  for (std::future<void> *warmup : {&_det_warmup, &_rec_warmup}) {
+    if (warmup->valid()) {
+      warmup->wait();
+    }
+  }
+  for (const std::shared_future<int> *loaded :
+       {&_det_loaded, &_rec_loaded, &_cls_loaded}) {
+    if (loaded->valid() &&
+        loaded->wait_for(std::chrono::seconds(0)) !=
+            std::future_status::deferred) {
+      loaded->wait();
+    }
+  }
+}
+
 int OCR_PPredictor::init(const std::string &det_model_content,
                          const std::string &rec_model_content,
                          const std::string &cls_model_content) {
-  _det_predictor = std::unique_ptr<PPredictor>(
-      new PPredictor{_config.thread_num, NET_OCR, _config.mode});
-  _det_predictor->init_nb(det_model_content);
-
-  _rec_predictor = std::unique_ptr<PPredictor>(
-      new PPredictor{_config.thread_num, NET_OCR_INTERNAL, _config.mode});
-  _rec_predictor->init_nb(rec_model_content);
-
-  _cls_predictor = std::unique_ptr<PPredictor>(
-      new PPredictor{_config.thread_num, NET_OCR_INTERNAL, _config.mode});
-  _cls_predictor->init_nb(cls_model_content);
+  ModelSource det, rec, cls;
+  det.content = std::make_shared<const std::string>(det_model_content);
+  rec.content = std::make_shared<const std::string>(rec_model_content);
+  cls.content = std::make_shared<const std::string>(cls_model_content);
+  start_loading(det, rec, cls);
   return RETURN_OK;
 }
 
 int OCR_PPredictor::init_from_file(const std::string &det_model_path,
                                    const std::string &rec_model_path,
                                    const std::string &cls_model_path) {
+  ModelSource det, rec, cls;
+  det.path = det_model_path;
+  rec.path = rec_model_path;
+  cls.path = cls_model_path;
+  start_loading(det, rec, cls);
+  return RETURN_OK;
+}
+
+int OCR_PPredictor::init_from_asset(AAssetManager *asset_manager,
+                                    std::shared_ptr<void> asset_owner,
+                                    const std::string &det_model_path,
+                                    const std::string &rec_model_path,
+                                    const std::string &cls_model_path) {
+  _asset_owner = std::move(asset_owner);
+  ModelSource det, rec, cls;
+  det.asset_manager = rec.asset_manager = cls.asset_manager = asset_manager;
+  det.path = det_model_path;
+  rec.path = rec_model_path;
+  cls.path = cls_model_path;
+  start_loading(det, rec, cls);
+  return RETURN_OK;
+}
+
+/**
+ * readiness probe: run a zero input of a small fixed shape through a loaded
+ * model, the output must be non-empty and finite
+ */
+static bool probe_model(PPredictor &predictor,
+                        const std::vector<int64_t> &dims) {
+  PredictorInput input = predictor.get_first_input();
+  input.set_dims(dims);
+  float *data = input.get_mutable_float_data();
+  std::fill(data, data + product(dims), 0.f);
+  std::vector<PredictorOutput> outputs = predictor.infer();
+  if (outputs.empty() || outputs[0].get_size() <= 0) {
+    return false;
+  }
+  const float *out = outputs[0].get_float_data();
+  for (int64_t i = 0; i < outputs[0].get_size(); i++) {
+    // bit test, std::isfinite is folded away under -ffast-math
+    uint32_t bits;
+    memcpy(&bits, &out[i], sizeof(bits));
+    if ((bits & 0x7f800000u) == 0x7f800000u) {
+      return false;
+    }
+  }
+  return true;
+}
+
+/**
+ * load one model into every predictor and probe each of them once, the
+ * model is read only once
+ * @param probe_dims input shape of the readiness probe
+ * @return RETURN_OK or RETURN_ERROR
+ */
+static int load_model(const ModelSource &source,
+                      const std::vector<PPredictor *> &predictors,
+                      const std::vector<int64_t> &probe_dims) {
+  auto start = std::chrono::steady_clock::now();
+  std::shared_ptr<const std::string> content = source.content;
+  if (!content && source.asset_manager != nullptr) {
+    std::shared_ptr<std::string> asset_content =
+        std::make_shared<std::string>();
+    if (!read_asset(source.asset_manager, source.path, *asset_content)) {
+      return RETURN_ERROR;
+    }
+    content = asset_content;
+  }
+  for (PPredictor *predictor : predictors) {
+    if (content) {
+      predictor->init_nb(*content);
+    } else {
+      predictor->init_from_file(source.path);
+    }
+    if (!probe_model(*predictor, probe_dims)) {
+      LOGE("model probe failed %s", source.path.c_str());
+      return RETURN_ERROR;
+    }
+  }
+  std::chrono::duration<float, std::milli> elapsed =
+      std::chrono::steady_clock::now() - start;
+  LOGI("model loaded and probed %s in %f ms", source.path.c_str(),
+       elapsed.count());
+  return RETURN_OK;
+}
+
+/**
+ * run the warmup shapes once on every predictor of the model behind loaded,
+ * so the first requests of these shapes do not pay for planning them. Runs
+ * after the model is READY, one predictor run at a time under gate, and stops
+ * at the first real request
+ * @param on_shape called under gate once a shape ran on every predictor
+ */
+static void warmup_model(
+    const std::shared_future<int> &loaded, const char *name,
+    const std::vector<PPredictor *> &predictors,
+    const std::vector<std::vector<int64_t>> &warmup_dims, WarmupGate &gate,
+    const std::function<void(const std::vector<int64_t> &)> &on_shape) {
+  if (loaded.get() != RETURN_OK) {
+    return;
+  }
+  for (const std::vector<int64_t> &dims : warmup_dims) {
+    auto start = std::chrono::steady_clock::now();
+    for (PPredictor *predictor : predictors) {
+      std::lock_guard<std::mutex> lock(gate.mutex);
+      if (gate.requested) {
+        LOGI("%s warmup skipped, requests arrived", name);
+        return;
+      }
+      if (!probe_model(*predictor, dims)) {
+        // the model passed its probe, a request will show the error
+        LOGE("%s warmup failed", name);
+        return;
+      }
+    }
+    if (on_shape) {
+      std::lock_guard<std::mutex> lock(gate.mutex);
+      on_shape(dims);
+    }
+    std::chrono::duration<float, std::milli> elapsed =
+        std::chrono::steady_clock::now() - start;
+    LOGI("%s warmup shape {%ld, %ld, %ld, %ld} in %f ms", name, (long)dims[0],
+         (long)dims[1], (long)dims[2], (long)dims[3], elapsed.count());
+  }
+}
+
+void OCR_PPredictor::start_loading(const ModelSource &det,
+                                   const ModelSource &rec,
+                                   const ModelSource &cls) {
   _det_predictor = std::unique_ptr<PPredictor>(
       new PPredictor{_config.thread_num, NET_OCR, _config.mode});
-  _det_predictor->init_from_file(det_model_path);
+  // the contours of a det output are spread over up to thread_num threads,
+  // the thread calling det being one of them
+  _db_pool = std::unique_ptr<WorkerPool>(
+      new WorkerPool(std::max(1, _config.thread_num)));
+  int replicas = std::max(1, _config.rec_replicas);
+  // the thread budget is split between the replicas
+  int thread_num = std::max(1, _config.thread_num / replicas);
+  _rec_workers.clear();
+  _rec_workers.resize(replicas);
+  std::vector<PPredictor *> rec_predictors;
+  std::vector<PPredictor *> cls_predictors;
+  for (RecWorker &worker : _rec_workers) {
+    worker.rec = std::unique_ptr<PPredictor>(
+        new PPredictor{thread_num, NET_OCR_INTERNAL, _config.mode});
+    worker.cls = std::unique_ptr<PPredictor>(
+        new PPredictor{thread_num, NET_OCR_INTERNAL, _config.mode});
+    if (&worker != &_rec_workers[0]) {
+      worker.thread = std::unique_ptr<WorkerThread>(new WorkerThread());
+    }
+    rec_predictors.push_back(worker.rec.get());
+    cls_predictors.push_back(worker.cls.get());
+  }
+  LOGI("rec replicas %d, threads per replica %d", replicas, thread_num);
+
+  bool lazy_cls = _config.lazy_cls || _config.cls_mode == CLS_UPRIGHT ||
+                  _config.cls_mode == CLS_ROTATED;
+  std::vector<PPredictor *> det_predictors = {_det_predictor.get()};
+  std::vector<int64_t> det_probe = {1, 3, 64, 64};
+  std::vector<int64_t> rec_probe = {1, 3, REC_IMAGE_SHAPE[1], 64};
+  std::vector<int64_t> cls_probe = {1, CLS_IMAGE_SHAPE[0], CLS_IMAGE_SHAPE[1],
+                                    CLS_IMAGE_SHAPE[2]};
+  std::vector<std::vector<int64_t>> det_warmup;
+  for (size_t i = 0; i + 1 < _config.det_warmup_sizes.size(); i += 2) {
+    det_warmup.push_back({1, 3, _config.det_warmup_sizes[i + 1],
+                          _config.det_warmup_sizes[i]});
+  }
+  std::vector<std::vector<int64_t>> rec_warmup;
+  if (_config.rec_warmup) {
+    // the shapes the rec stage runs: bucket widths at the max batch size
+    for (int width : _config.rec_bucket_widths) {
+      rec_warmup.push_back(
+          {std::max(1, _config.rec_batch_size), 3, REC_IMAGE_SHAPE[1], width});
+    }
+  }
+
+  _det_loaded = std::async(std::launch::async, load_model, det,
+                           det_predictors, det_probe)
+                    .share();
+  _rec_loaded = std::async(_config.lazy_rec ? std::launch::deferred
+                                            : std::launch::async,
+                           load_model, rec, rec_predictors, rec_probe)
+                    .share();
+  _cls_loaded = std::async(lazy_cls ? std::launch::deferred
+                                    : std::launch::async,
+                           load_model, cls, cls_predictors, cls_probe)
+                    .share();
+
+  // the warmups wait for READY and run in the background, requests do not
+  // wait for them. A lazy model is loaded by its first request, there is
+  // nothing left to warm up then
+  if (!det_warmup.empty()) {
+    _det_warmup = std::async(std::launch::async, [this, det_predictors,
+                                                  det_warmup] {
+      warmup_model(_det_loaded, "det", det_predictors, det_warmup, _det_gate,
+                   nullptr);
+    });
+  }
+  if (!rec_warmup.empty() && !_config.lazy_rec) {
+    _rec_warmup = std::async(std::launch::async, [this, rec_predictors,
+                                                  rec_warmup] {
+      warmup_model(_rec_loaded, "rec", rec_predictors, rec_warmup, _rec_gate,
+                   [this](const std::vector<int64_t> &dims) {
+                     for (RecWorker &worker : _rec_workers) {
+                       worker.shapes.insert(std::make_pair(dims[0], dims[3]));
+                     }
+                   });
+    });
+  }
+}
 
-  _rec_predictor = std::unique_ptr<PPredictor>(
-      new PPredictor{_config.thread_num, NET_OCR_INTERNAL, _config.mode});
-  _rec_predictor->init_from_file(rec_model_path);
+bool OCR_PPredictor::ensure_loaded(const std::shared_future<int> &loaded,
+                                   const char *name) {
+  if (!loaded.valid() || loaded.get() != RETURN_OK) {
+    LOGE("%s model is not loaded", name);
+    return false;
+  }
+  return true;
+}
 
-  _cls_predictor = std::unique_ptr<PPredictor>(
-      new PPredictor{_config.thread_num, NET_OCR_INTERNAL, _config.mode});
-  _cls_predictor->init_from_file(cls_model_path);
-  return RETURN_OK;
+int OCR_PPredictor::wait_loaded(int timeout_ms) {
+  auto deadline = std::chrono::steady_clock::now() +
+                  std::chrono::milliseconds(std::max(0, timeout_ms));
+  for (const std::shared_future<int> *loaded :
+       {&_det_loaded, &_rec_loaded, &_cls_loaded}) {
+    if (!loaded->valid()) {
+      return LOAD_FAILED;
+    }
+    if (loaded->wait_for(std::chrono::seconds(0)) ==
+        std::future_status::deferred) {
+      // lazy, loaded on first use
+      continue;
+    }
+    if (timeout_ms < 0) {
+      loaded->wait();
+    } else if (loaded->wait_until(deadline) ==
+               std::future_status::timeout) {
+      return LOAD_LOADING;
+    }
+    if (loaded->get() != RETURN_OK) {
+      return LOAD_FAILED;
+    }
+  }
+  return LOAD_READY;
 }
+
 /**
  * for debug use, show result of First Step
  * @param filter_boxes
@@ -80,143 +331,534 @@ std::vector<OCRPredictResult>
 OCR_PPredictor::infer_ocr(const std::vector<int64_t> &dims,
                           const float *input_data, int input_len, int net_flag,
                           cv::Mat &origin) {
+  if (!ensure_loaded(_det_loaded, "det")) {
+    return std::vector<OCRPredictResult>();
+  }
+  std::vector<std::vector<std::vector<int>>> filtered_box;
+  {
+    _det_gate.requested = true;
+    std::lock_guard<std::mutex> det_lock(_det_gate.mutex);
+    PredictorInput input = _det_predictor->get_first_input();
+    input.set_dims(dims);
+    input.set_data(input_data, input_len);
+    std::vector<PredictorOutput> results = _det_predictor->infer();
+    PredictorOutput &res = results.at(0);
+    filtered_box = calc_filtered_boxes(res.get_float_data(), res.get_size(),
+                                       (int)dims[2], (int)dims[3], origin);
+  }
+  LOGI("Filter_box size %ld", filtered_box.size());
+  return infer_rec(filtered_box, origin);
+}
+
+std::vector<OCRPredictResult>
+OCR_PPredictor::infer_ocr(const cv::Mat &origin, int max_side_len,
+                          const std::vector<float> &mean,
+                          const std::vector<float> &stddev) {
+  OCRDetResult det = infer_det(origin, max_side_len, mean, stddev);
+  return infer_rec(det);
+}
+
+OCRDetResult OCR_PPredictor::infer_det(const cv::Mat &origin, int max_side_len,
+                                       const std::vector<float> &mean,
+                                       const std::vector<float> &stddev) {
+  if (!ensure_loaded(_det_loaded, "det")) {
+    return OCRDetResult();
+  }
+  // the warmup stops after the run it is in
+  _det_gate.requested = true;
+  std::lock_guard<std::mutex> det_lock(_det_gate.mutex);
+  cv::Size det_size = det_resize_size(origin.cols, origin.rows, max_side_len);
+  cv::Mat det_img;
+  cv::resize(origin, det_img, det_size, 0.f, 0.f, cv::INTER_LINEAR);
+  std::vector<int64_t> dims = {1, 3, det_size.height, det_size.width};
+
   PredictorInput input = _det_predictor->get_first_input();
   input.set_dims(dims);
-  input.set_data(input_data, input_len);
+  det_mean_scale(det_img, input.get_mutable_float_data(), mean, stddev);
+  det_img.release();
+
   std::vector<PredictorOutput> results = _det_predictor->infer();
   PredictorOutput &res = results.at(0);
   std::vector<std::vector<std::vector<int>>> filtered_box = calc_filtered_boxes(
       res.get_float_data(), res.get_size(), (int)dims[2], (int)dims[3], origin);
   LOGI("Filter_box size %ld", filtered_box.size());
-  return infer_rec(filtered_box, origin);
+  OCRDetResult det = crop_boxes(filtered_box, origin);
+  det.postprocess_time = _det_postprocess_time;
+  return det;
+}
+
+OCRDetResult OCR_PPredictor::crop_boxes(
+    const std::vector<std::vector<std::vector<int>>> &boxes,
+    const cv::Mat &origin_img) {
+  OCRDetResult det;
+  det.boxes = boxes;
+  det.crops.reserve(boxes.size());
+  // crop at the height of the first model the crops go through, rec and cls
+  // resizes are then no-ops or small
+  bool need_cls =
+      _config.cls_mode != CLS_UPRIGHT && _config.cls_mode != CLS_ROTATED;
+  int crop_height = need_cls ? CLS_IMAGE_SHAPE[1] : REC_IMAGE_SHAPE[1];
+  for (const std::vector<std::vector<int>> &box : boxes) {
+    cv::Mat crop_img = get_rotate_crop_image(origin_img, box, crop_height);
+    if (crop_img.channels() == 4) {
+      // crop straight from the locked RGBA bitmap pixels
+      cv::cvtColor(crop_img, crop_img, cv::COLOR_RGBA2BGR);
+    } else if (crop_img.datastart == origin_img.datastart) {
+      // a view, the crops must outlive origin
+      crop_img = crop_img.clone();
+    }
+    det.crops.emplace_back(std::move(crop_img));
+  }
+  return det;
 }
 
 std::vector<OCRPredictResult> OCR_PPredictor::infer_rec(
     const std::vector<std::vector<std::vector<int>>> &boxes,
     const cv::Mat &origin_img) {
-  std::vector<float> mean = {0.5f, 0.5f, 0.5f};
-  std::vector<float> scale = {1 / 0.5f, 1 / 0.5f, 1 / 0.5f};
-  std::vector<int64_t> dims = {1, 3, 0, 0};
-  std::vector<OCRPredictResult> ocr_results;
+  return infer_rec(crop_boxes(boxes, origin_img));
+}
 
-  PredictorInput input = _rec_predictor->get_first_input();
-  for (auto bp = boxes.crbegin(); bp != boxes.crend(); ++bp) {
-    const std::vector<std::vector<int>> &box = *bp;
-    cv::Mat crop_img = get_rotate_crop_image(origin_img, box);
-    crop_img = infer_cls(crop_img);
+std::vector<OCRPredictResult>
+OCR_PPredictor::infer_rec(const OCRDetResult &det) {
+  return infer_rec(det, _config.rec_batch_size);
+}
 
-    float wh_ratio = float(crop_img.cols) / float(crop_img.rows);
-    cv::Mat input_image = crnn_resize_img(crop_img, wh_ratio);
-    input_image.convertTo(input_image, CV_32FC3, 1 / 255.0f);
-    const float *dimg = reinterpret_cast<const float *>(input_image.data);
-    int input_size = input_image.rows * input_image.cols;
+std::vector<OCRPredictResult>
+OCR_PPredictor::infer_rec(const OCRDetResult &det, int batch_size) {
+  if (!ensure_loaded(_rec_loaded, "rec")) {
+    return std::vector<OCRPredictResult>();
+  }
+  _rec_gate.requested = true;
+  std::lock_guard<std::mutex> rec_lock(_rec_gate.mutex);
+  const int crop_num = int(det.crops.size());
+  std::vector<OCRPredictResult> crop_results(crop_num);
+  std::vector<char> recognized(crop_num, 0);
+
+  std::vector<cv::Mat> oriented = orient_crops(det.crops);
+  std::vector<RecSegment> segments = split_rec_segments(oriented);
+  std::vector<cv::Mat> images;
+  images.reserve(segments.size());
+  for (const RecSegment &segment : segments) {
+    images.push_back(segment.image);
+  }
+  std::vector<RecBatch> batches =
+      plan_rec_batches(images, std::max(1, batch_size));
+  run_on_rec_workers(int(batches.size()), [&](RecWorker &worker, int b) {
+    infer_rec_batch(worker, batches[b], segments, crop_results, recognized);
+  });
+  stitch_rec_segments(segments, crop_results, recognized);
+  LOGI("rec crops %d segments %ld in batches %ld, shape hits %lld misses %lld",
+       crop_num, segments.size(), batches.size(),
+       (long long)_rec_shape_hits.load(), (long long)_rec_shape_misses.load());
+
+  // merge back in the original (reversed box) order
+  std::vector<OCRPredictResult> ocr_results;
+  for (int i = crop_num - 1; i >= 0; i--) {
+    if (!recognized[i]) {
+      continue;
+    }
+    crop_results[i].points = det.boxes[i];
+    ocr_results.emplace_back(std::move(crop_results[i]));
+  }
+  LOGI("ocr_results finished %lu", ocr_results.size());
+  return ocr_results;
+}
 
-    dims[2] = input_image.rows;
-    dims[3] = input_image.cols;
-    input.set_dims(dims);
+void OCR_PPredictor::run_on_rec_workers(
+    int task_num, const std::function<void(RecWorker &, int)> &task) {
+  // every worker takes the next unclaimed task until none is left
+  std::atomic<int> next_task{0};
+  auto run_worker = [&](RecWorker &worker) {
+    int i;
+    while ((i = next_task.fetch_add(1)) < task_num) {
+      task(worker, i);
+    }
+  };
+  int worker_num = std::min(int(_rec_workers.size()), task_num);
+  TaskLatch done(worker_num - 1);
+  for (int w = 1; w < worker_num; w++) {
+    RecWorker &worker = _rec_workers[w];
+    worker.thread->post([&run_worker, &worker, &done] {
+      run_worker(worker);
+      done.count_down();
+    });
+  }
+  if (task_num > 0) {
+    run_worker(_rec_workers[0]);
+  }
+  done.wait();
+}
 
-    neon_mean_scale(dimg, input.get_mutable_float_data(), input_size, mean,
-                    scale);
-
-    std::vector<PredictorOutput> results = _rec_predictor->infer();
-    const float *predict_batch = results.at(0).get_float_data();
-    const std::vector<int64_t> predict_shape = results.at(0).get_shape();
-
-    OCRPredictResult res;
-
-    // ctc decode
-    int argmax_idx;
-    int last_index = 0;
-    float score = 0.f;
-    int count = 0;
-    float max_value = 0.0f;
-
-    for (int n = 0; n < predict_shape[1]; n++) {
-      argmax_idx = int(argmax(&predict_batch[n * predict_shape[2]],
-                              &predict_batch[(n + 1) * predict_shape[2]]));
-      max_value =
-          float(*std::max_element(&predict_batch[n * predict_shape[2]],
-                                  &predict_batch[(n + 1) * predict_shape[2]]));
-      if (argmax_idx > 0 && (!(n > 0 && argmax_idx == last_index))) {
-        score += max_value;
-        count += 1;
-        res.word_index.push_back(argmax_idx);
+std::vector<OCR_PPredictor::RecSegment>
+OCR_PPredictor::split_rec_segments(const std::vector<cv::Mat> &crops) {
+  const std::vector<int> &buckets = _config.rec_bucket_widths;
+  const int max_width = buckets.empty() ? 0 : buckets.back();
+  const int height = REC_IMAGE_SHAPE[1];
+  const int overlap =
+      std::max(0, std::min(_config.rec_segment_overlap, max_width / 2));
+  const int stride = max_width - overlap;
+  std::vector<RecSegment> segments;
+  segments.reserve(crops.size());
+  for (int i = 0; i < int(crops.size()); i++) {
+    const cv::Mat &crop = crops[i];
+    int width = crnn_resize_width(float(crop.cols) / crop.rows);
+    RecSegment segment;
+    segment.crop = i;
+    segment.x = 0;
+    if (max_width <= 0 || width <= max_width) {
+      segment.whole = true;
+      segment.image = crop;
+      segments.push_back(std::move(segment));
+      continue;
+    }
+    // the segments are views of the crop resized to the rec height
+    cv::Mat line;
+    cv::resize(crop, line, cv::Size(width, height));
+    segment.whole = false;
+    for (int x = 0;; x += stride) {
+      x = std::min(x, width - max_width);
+      segment.x = x;
+      segment.image = line(cv::Rect(x, 0, max_width, height));
+      segments.push_back(segment);
+      if (x + max_width >= width) {
+        break;
       }
-      last_index = argmax_idx;
     }
-    score /= count;
-    if (res.word_index.empty()) {
+  }
+  return segments;
+}
+
+void OCR_PPredictor::stitch_rec_segments(
+    std::vector<RecSegment> &segments, std::vector<OCRPredictResult> &results,
+    std::vector<char> &recognized) {
+  std::vector<int> step_idx;
+  std::vector<float> step_max;
+  for (size_t first = 0; first < segments.size();) {
+    size_t last = first + 1;
+    while (last < segments.size() && !segments[first].whole &&
+           segments[last].crop == segments[first].crop) {
+      last++;
+    }
+    if (segments[first].whole) {
+      first = last;
       continue;
     }
-    res.score = score;
-    res.points = box;
-    ocr_results.emplace_back(std::move(res));
+    step_idx.clear();
+    step_max.clear();
+    for (size_t k = first; k < last; k++) {
+      const RecSegment &segment = segments[k];
+      int steps = int(segment.step_idx.size());
+      if (steps == 0) {
+        continue;
+      }
+      int segment_width = segment.image.cols;
+      // cut in the middle of the overlap with the neighbours
+      float left = k == first ? -1.0f
+                              : (segments[k - 1].x + segments[k - 1].image.cols +
+                                 segment.x) *
+                                    0.5f;
+      float right = k + 1 == last ? float(segment.x + segment_width + 1)
+                                  : (segment.x + segment_width +
+                                     segments[k + 1].x) *
+                                        0.5f;
+      float step_width = float(segment.tensor_width) / steps;
+      for (int t = 0; t < steps; t++) {
+        float center = segment.x + (t + 0.5f) * step_width;
+        if (center >= left && center < right) {
+          step_idx.push_back(segment.step_idx[t]);
+          step_max.push_back(segment.step_max[t]);
+        }
+      }
+    }
+    OCRPredictResult &res = results[segments[first].crop];
+    res.word_index.resize(step_idx.size());
+    int count = ctc_collapse(step_idx.data(), step_max.data(),
+                             int(step_idx.size()), res.word_index.data(),
+                             nullptr, res.score);
+    res.word_index.resize(count);
+    recognized[segments[first].crop] = count > 0;
+    first = last;
   }
-  LOGI("ocr_results finished %lu", ocr_results.size());
-  return ocr_results;
 }
 
-cv::Mat OCR_PPredictor::infer_cls(const cv::Mat &img, float thresh) {
-  std::vector<float> mean = {0.5f, 0.5f, 0.5f};
-  std::vector<float> scale = {1 / 0.5f, 1 / 0.5f, 1 / 0.5f};
-  std::vector<int64_t> dims = {1, 3, 0, 0};
-  std::vector<OCRPredictResult> ocr_results;
+std::vector<OCR_PPredictor::RecBatch>
+OCR_PPredictor::plan_rec_batches(const std::vector<cv::Mat> &crops,
+                                 int batch_size) const {
+  const int crop_num = int(crops.size());
+  std::vector<int> widths(crop_num);
+  for (int i = 0; i < crop_num; i++) {
+    widths[i] = crnn_resize_width(float(crops[i].cols) / crops[i].rows);
+  }
+  std::vector<int> order(crop_num);
+  for (int i = 0; i < crop_num; i++) {
+    order[i] = i;
+  }
+  std::stable_sort(order.begin(), order.end(),
+                   [&](int a, int b) { return widths[a] < widths[b]; });
+
+  const std::vector<int> &buckets = _config.rec_bucket_widths;
+  std::vector<RecBatch> batches;
+  for (int i : order) {
+    auto bucket = std::lower_bound(buckets.begin(), buckets.end(), widths[i]);
+    int width = bucket == buckets.end() ? widths[i] : *bucket;
+    if (batches.empty() || batches.back().width != width ||
+        int(batches.back().segments.size()) >= batch_size) {
+      // the last batch of a bucket is padded to batch_size rows as well, a
+      // partial batch would add one batch dimension per bucket and crop count
+      batches.push_back(RecBatch{width, batch_size, {}});
+    }
+    batches.back().segments.push_back(i);
+  }
+  return batches;
+}
 
-  PredictorInput input = _cls_predictor->get_first_input();
+/**
+ * ctc greedy decode of one row of the rec output
+ * @param probs steps * classes, class 0 is the blank
+ * @return false if no word is recognized
+ */
+static bool decode_rec_row(const float *probs, int steps, int classes,
+                           OCRPredictResult &res) {
+  res.word_index.resize(steps);
+  int count = ctc_greedy_decode(probs, steps, classes, res.word_index.data(),
+                                nullptr, res.score);
+  res.word_index.resize(count);
+  return count > 0;
+}
 
-  cv::Mat input_image = cls_resize_img(img);
-  input_image.convertTo(input_image, CV_32FC3, 1 / 255.0f);
-  const float *dimg = reinterpret_cast<const float *>(input_image.data);
-  int input_size = input_image.rows * input_image.cols;
+void OCR_PPredictor::infer_rec_batch(RecWorker &worker, const RecBatch &batch,
+                                     std::vector<RecSegment> &segments,
+                                     std::vector<OCRPredictResult> &results,
+                                     std::vector<char> &recognized) {
+  const int batch_num = int(batch.segments.size());
+  const int height = REC_IMAGE_SHAPE[1];
+  std::vector<int64_t> dims = {batch.rows, 3, height, batch.width};
+  if (worker.shapes.insert(std::make_pair(dims[0], dims[3])).second) {
+    _rec_shape_misses++;
+  } else {
+    _rec_shape_hits++;
+  }
 
-  dims[2] = input_image.rows;
-  dims[3] = input_image.cols;
+  PredictorInput input = worker.rec->get_first_input();
   input.set_dims(dims);
+  float *dout = input.get_mutable_float_data();
+  const int row_size = 3 * height * batch.width;
+  for (int b = 0; b < batch_num; b++) {
+    crnn_resize_norm_pad(segments[batch.segments[b]].image, batch.width,
+                         dout + b * row_size);
+  }
+  // padding rows, their output is not read
+  std::fill(dout + batch_num * row_size, dout + batch.rows * row_size, 0.f);
+
+  std::vector<PredictorOutput> outputs = worker.rec->infer();
+  const float *predict_batch = outputs.at(0).get_float_data();
+  const std::vector<int64_t> predict_shape = outputs.at(0).get_shape();
+  const int steps = int(predict_shape[1]);
+  const int classes = int(predict_shape[2]);
+#ifdef OCR_REC_RECORD_PATH
+  // build with -DOCR_REC_RECORD_PATH=\"<file>\" to record the first rec
+  // output for benchmark/kernel_benchmark.cpp
+  static std::atomic<bool> recorded(false);
+  if (!recorded.exchange(true)) {
+    bool ok = write_rec_output(OCR_REC_RECORD_PATH, predict_batch, steps,
+                               classes);
+    LOGI("rec output %dx%d recorded to %s: %d", steps, classes,
+         OCR_REC_RECORD_PATH, ok);
+  }
+#endif
+  for (int b = 0; b < batch_num; b++) {
+    RecSegment &segment = segments[batch.segments[b]];
+    const float *probs = predict_batch + b * steps * classes;
+    if (segment.whole) {
+      recognized[segment.crop] =
+          decode_rec_row(probs, steps, classes, results[segment.crop]);
+      continue;
+    }
+    segment.step_idx.resize(steps);
+    segment.step_max.resize(steps);
+    segment.tensor_width = batch.width;
+    ctc_argmax_steps(probs, steps, classes, segment.step_idx.data(),
+                     segment.step_max.data());
+  }
+}
 
-  neon_mean_scale(dimg, input.get_mutable_float_data(), input_size, mean,
-                  scale);
-
-  std::vector<PredictorOutput> results = _cls_predictor->infer();
+std::vector<float> OCR_PPredictor::benchmark_rec(const OCRDetResult &det,
+                                                 int iterations) {
+  iterations = std::max(1, iterations);
+  int batch_sizes[2] = {1, std::max(2, _config.rec_batch_size)};
+  std::vector<float> times;
+  for (int batch_size : batch_sizes) {
+    // first run plans the shapes, not timed
+    infer_rec(det, batch_size);
+    auto start = std::chrono::steady_clock::now();
+    for (int i = 0; i < iterations; i++) {
+      infer_rec(det, batch_size);
+    }
+    std::chrono::duration<float, std::milli> elapsed =
+        std::chrono::steady_clock::now() - start;
+    times.push_back(elapsed.count() / iterations);
+    LOGI("benchmark rec crops %ld batch size %d: %f ms", det.crops.size(),
+         batch_size, times.back());
+  }
+  return times;
+}
 
-  const float *scores = results.at(0).get_float_data();
-  float score = 0;
-  int label = 0;
-  for (int64_t i = 0; i < results.at(0).get_size(); i++) {
-    LOGI("output scores [%f]", scores[i]);
-    if (scores[i] > score) {
-      score = scores[i];
-      label = i;
+std::vector<cv::Mat>
+OCR_PPredictor::orient_crops(const std::vector<cv::Mat> &crops) {
+  bool need_cls =
+      _config.cls_mode != CLS_UPRIGHT && _config.cls_mode != CLS_ROTATED;
+  if (need_cls && !ensure_loaded(_cls_loaded, "cls")) {
+    // recognize the crops as they are
+    return crops;
+  }
+  const int crop_num = int(crops.size());
+  std::vector<char> rotated(crop_num, 0);
+  int classified = 0;
+  switch (_config.cls_mode) {
+  case CLS_UPRIGHT:
+    break;
+  case CLS_ROTATED:
+    std::fill(rotated.begin(), rotated.end(), 1);
+    break;
+  case CLS_AUTO: {
+    // the widest crops carry the most text, they decide for the page
+    std::vector<int> order(crop_num);
+    for (int i = 0; i < crop_num; i++) {
+      order[i] = i;
+    }
+    std::stable_sort(order.begin(), order.end(), [&](int a, int b) {
+      return crops[a].cols * crops[b].rows > crops[b].cols * crops[a].rows;
+    });
+    int sample_num = std::min(crop_num, std::max(1, _config.cls_sample_size));
+    std::vector<int> sample(order.begin(), order.begin() + sample_num);
+    infer_cls(crops, sample, rotated);
+    classified = sample_num;
+    if (std::find(rotated.begin(), rotated.end(), 1) != rotated.end()) {
+      std::vector<int> rest(order.begin() + sample_num, order.end());
+      infer_cls(crops, rest, rotated);
+      classified = crop_num;
     }
+    break;
   }
-  cv::Mat srcimg;
-  img.copyTo(srcimg);
-  if (label % 2 == 1 && score > thresh) {
-    cv::rotate(srcimg, srcimg, 1);
+  default: {
+    std::vector<int> all(crop_num);
+    for (int i = 0; i < crop_num; i++) {
+      all[i] = i;
+    }
+    infer_cls(crops, all, rotated);
+    classified = crop_num;
+    break;
   }
-  return srcimg;
+  }
+
+  // upright crops share their pixels with the input
+  std::vector<cv::Mat> oriented(crops);
+  int rotated_num = 0;
+  for (int i = 0; i < crop_num; i++) {
+    if (rotated[i]) {
+      cv::Mat flipped;
+      cv::rotate(crops[i], flipped, cv::ROTATE_180);
+      oriented[i] = flipped;
+      rotated_num++;
+    }
+  }
+  LOGI("cls mode %d crops %d classified %d rotated %d", _config.cls_mode,
+       crop_num, classified, rotated_num);
+  return oriented;
+}
+
+void OCR_PPredictor::infer_cls(const std::vector<cv::Mat> &crops,
+                               const std::vector<int> &indices,
+                               std::vector<char> &rotated) {
+  const int batch_size = std::max(1, _config.cls_batch_size);
+  const int index_num = int(indices.size());
+  const int batch_num = (index_num + batch_size - 1) / batch_size;
+  const int row_size =
+      CLS_IMAGE_SHAPE[0] * CLS_IMAGE_SHAPE[1] * CLS_IMAGE_SHAPE[2];
+
+  run_on_rec_workers(batch_num, [&](RecWorker &worker, int b) {
+    const int first = b * batch_size;
+    const int num = std::min(batch_size, index_num - first);
+    std::vector<int64_t> dims = {num, CLS_IMAGE_SHAPE[0], CLS_IMAGE_SHAPE[1],
+                                 CLS_IMAGE_SHAPE[2]};
+    PredictorInput input = worker.cls->get_first_input();
+    input.set_dims(dims);
+    float *dout = input.get_mutable_float_data();
+    for (int k = 0; k < num; k++) {
+      cls_resize_norm(crops[indices[first + k]], dout + k * row_size);
+    }
+
+    std::vector<PredictorOutput> results = worker.cls->infer();
+    const float *scores = results.at(0).get_float_data();
+    const int label_num = int(results.at(0).get_size() / num);
+    for (int k = 0; k < num; k++) {
+      const float *row = scores + k * label_num;
+      int label = int(argmax(row, row + label_num));
+      // odd labels are 180 degree
+      rotated[indices[first + k]] =
+          label % 2 == 1 && row[label] > _config.cls_thresh;
+    }
+  });
 }
 
 std::vector<std::vector<std::vector<int>>>
 OCR_PPredictor::calc_filtered_boxes(const float *pred, int pred_size,
                                     int output_height, int output_width,
                                     const cv::Mat &origin) {
-  const double threshold = 0.3;
-  const double maxvalue = 1;
-
-  cv::Mat pred_map = cv::Mat::zeros(output_height, output_width, CV_32F);
-  memcpy(pred_map.data, pred, pred_size * sizeof(float));
-  cv::Mat cbuf_map;
-  pred_map.convertTo(cbuf_map, CV_8UC1);
-
-  cv::Mat bit_map;
-  cv::threshold(cbuf_map, bit_map, threshold, maxvalue, cv::THRESH_BINARY);
-
-  std::vector<std::vector<std::vector<int>>> boxes =
-      boxes_from_bitmap(pred_map, bit_map);
+  if (pred_size < output_height * output_width) {
+    LOGE("det output size %d smaller than %d x %d", pred_size, output_height,
+         output_width);
+    return std::vector<std::vector<std::vector<int>>>();
+  }
+  auto start = std::chrono::steady_clock::now();
+  DBScratch &scratch = _db_scratch;
+  scratch.reset();
+  DBConfig db = _config.db;
+  if (db.threads < 1) {
+    db.threads = _config.thread_num;
+  }
+  // read the det output in place, no copy
+  cv::Mat pred_map(output_height, output_width, CV_32F,
+                   const_cast<float *>(pred));
+  scratch.bitmap.create(output_height, output_width, CV_8UC1);
+  threshold_to_bitmap(pred, output_height * output_width, db.thresh,
+                      scratch.bitmap.data);
+
+  boxes_from_bitmap(pred_map, scratch.bitmap, db, scratch, scratch.boxes,
+                    _db_pool.get());
   float ratio_h = output_height * 1.0f / origin.rows;
   float ratio_w = output_width * 1.0f / origin.cols;
-  std::vector<std::vector<std::vector<int>>> filter_boxes =
-      filter_tag_det_res(boxes, ratio_h, ratio_w, origin);
+  filter_tag_det_res(scratch.boxes, ratio_h, ratio_w, origin,
+                     scratch.filtered);
+  _det_postprocess_time = std::chrono::duration<float, std::milli>(
+                              std::chrono::steady_clock::now() - start)
+                              .count();
+  LOGI("det postprocess contours %ld candidates %ld boxes %ld threads %d in "
+       "%f ms",
+       scratch.contours.size(), scratch.order.size(), scratch.filtered.size(),
+       db.threads, _det_postprocess_time);
+  if (db.unclip_mode == UNCLIP_PARITY) {
+    LOGI("unclip parity boxes %d min iou %f mean iou %f", scratch.parity_count,
+         scratch.parity_min_iou, scratch.parity_mean_iou);
+  }
+
+  size_t scratch_bytes = scratch.reserved_bytes();
+  if (scratch_bytes > _db_scratch_bytes) {
+    // stays flat once the largest input has been seen
+    LOGI("db scratch grew from %zu to %zu bytes", _db_scratch_bytes,
+         scratch_bytes);
+    _db_scratch_bytes = scratch_bytes;
+  }
+
+  std::vector<std::vector<std::vector<int>>> filter_boxes;
+  filter_boxes.reserve(scratch.filtered.size());
+  for (const DBQuad &quad : scratch.filtered) {
+    std::vector<std::vector<int>> box(4);
+    for (int i = 0; i < 4; i++) {
+      box[i] = {quad.pts[i].x, quad.pts[i].y};
+    }
+    filter_boxes.emplace_back(std::move(box));
+  }
   return filter_boxes;
 }
 
@@ -4,13 +4,63 @@
 
 #pragma once
 
+#include "ocr_db_post_process.h"
+#include "ocr_worker_thread.h"
 #include "ppredictor.h"
 #include <opencv2/opencv.hpp>
 #include <paddle_api.h>
+#include <atomic>
+#include <functional>
+#include <future>
+#include <memory>
+#include <mutex>
+#include <set>
 #include <string>
+#include <utility>
+#include <vector>
 
 namespace ppredictor {
 
+/**
+ * How the 180 degree direction of the crops is decided
+ */
+enum CLS_MODE {
+  CLS_ALWAYS = 0,  // run cls on every crop
+  CLS_UPRIGHT = 1, // page orientation known upright, cls is skipped
+  CLS_ROTATED = 2, // page orientation known upside down, every crop is
+                   // rotated, cls is skipped
+  CLS_AUTO = 3     // run cls on a sample of the widest crops, the rest is
+                   // only classified if a sampled crop is upside down
+};
+
+/**
+ * Load state of the models that are not loaded lazily. A model is READY once
+ * it is loaded and passed its readiness probe, a zero input of a small fixed
+ * shape run once right after loading; the state is kept by the engine and the
+ * probe never runs again. The warmup profile runs afterwards in the
+ * background and does not delay READY
+ */
+enum LOAD_STATE { LOAD_LOADING = 0, LOAD_READY = 1, LOAD_FAILED = 2 };
+
+/**
+ * Serializes the predictors of one stage between real requests and the
+ * background warmup. The warmup runs one shape at a time and stops at the
+ * first request, which plans its own shape anyway
+ */
+struct WarmupGate {
+  std::mutex mutex;
+  std::atomic<bool> requested{false};
+};
+
+/**
+ * Where a model is loaded from: content in memory, an apk asset or a file
+ */
+struct ModelSource {
+  std::shared_ptr<const std::string> content;
+  AAssetManager *asset_manager = nullptr; // path is an asset path if set
+  std::string path;
+};
+
 /**
  * Config
  */
@@ -18,6 +68,29 @@ struct OCR_Config {
   int thread_num = 4; // Thread num
   paddle::lite_api::PowerMode mode =
       paddle::lite_api::LITE_POWER_HIGH; // PaddleLite Mode
+  int rec_replicas = 1; // cls/rec predictor replicas, crops of one image
+                        // are recognized in parallel across them
+  int rec_batch_size = 1; // max crops per rec run
+  std::vector<int> rec_bucket_widths = {96, 192, 320, 480, 640, 960};
+  // rec tensor widths crops are padded to, ascending, so the rec input takes
+  // a few stable shapes. A crop wider than the last bucket is split into
+  // segments of that width
+  int rec_segment_overlap = 64; // width the segments of a long crop share,
+                                // at the rec height
+  int cls_mode = CLS_ALWAYS;
+  int cls_batch_size = 32; // max crops per cls run, the cls input is fixed
+                           // 48x192 so crops batch without padding waste
+  int cls_sample_size = 4; // crops sampled by CLS_AUTO
+  float cls_thresh = 0.9f; // min score of the 180 degree label to rotate
+  bool lazy_cls = false; // load cls on first use instead of at init, never
+                         // loaded with CLS_UPRIGHT or CLS_ROTATED
+  bool lazy_rec = false; // load rec on first use, for detect-only callers
+  std::vector<int> det_warmup_sizes; // det input sizes run once in the
+                                     // background after load, width, height
+                                     // pairs
+  bool rec_warmup = false; // run every rec bucket width once in the
+                           // background after load
+  DBConfig db; // det box post-processing
 };
 
 /**
@@ -29,6 +102,16 @@ struct OCRPredictResult {
   float score;
 };
 
+/**
+ * Boxes found by det and their crops (BGR, same order as boxes), the handoff
+ * between the det and the cls/rec stage
+ */
+struct OCRDetResult {
+  std::vector<std::vector<std::vector<int>>> boxes;
+  std::vector<cv::Mat> crops;
+  float postprocess_time = 0; // ms det output to boxes took for this image
+};
+
 /**
  * OCR there are 2 models
  * 1. First model（det），select polygones to show where are the texts
@@ -38,10 +121,13 @@ class OCR_PPredictor : public PPredictor_Interface {
 public:
   OCR_PPredictor(const OCR_Config &config);
 
-  virtual ~OCR_PPredictor() {}
+  virtual ~OCR_PPredictor();
 
   /**
-   * 初始化二个模型的Predictor
+   * 初始化二个模型的Predictor. The init functions only start loading: det,
+   * rec and cls are loaded concurrently on background threads (lazy ones on
+   * first use), every infer call waits for the models it needs. Use
+   * wait_loaded to wait for readiness
    * @param det_model_content
    * @param rec_model_content
    * @return
@@ -52,6 +138,19 @@ public:
   int init_from_file(const std::string &det_model_path,
                      const std::string &rec_model_path,
                      const std::string &cls_model_path);
+  /**
+   * Load the models from apk assets without copying them to storage, every
+   * model is read once and shared by all rec replicas
+   * @param asset_owner keeps whatever asset_manager belongs to alive (the
+   * java AssetManager), held until the predictor is deleted as background
+   * and lazy loads read assets long after this call
+   * @return RETURN_OK, failures to read an asset show up in wait_loaded
+   */
+  int init_from_asset(AAssetManager *asset_manager,
+                      std::shared_ptr<void> asset_owner,
+                      const std::string &det_model_path,
+                      const std::string &rec_model_path,
+                      const std::string &cls_model_path);
   /**
    * Return OCR result
    * @param dims
@@ -65,8 +164,85 @@ public:
   infer_ocr(const std::vector<int64_t> &dims, const float *input_data,
             int input_len, int net_flag, cv::Mat &origin);
 
+  /**
+   * Return OCR result, det input is resized and normalized from origin
+   * directly into the det tensor
+   * @param origin CV_8UC4 RGBA (pixels of a locked Bitmap) or CV_8UC3 BGR,
+   * also used as the crop source
+   * @param max_side_len limit of the longer side of the det input
+   * @param mean det mean, BGR order
+   * @param stddev det std, BGR order
+   * @return
+   */
+  virtual std::vector<OCRPredictResult>
+  infer_ocr(const cv::Mat &origin, int max_side_len,
+            const std::vector<float> &mean,
+            const std::vector<float> &stddev);
+
+  /**
+   * Det stage only: det model, box filtering and cropping. Only touches the
+   * det predictor, so it may run concurrently with infer_rec(const
+   * OCRDetResult &) of another image on the same OCR_PPredictor
+   * @param origin CV_8UC4 RGBA or CV_8UC3 BGR
+   * @return boxes and their crops, independent of origin
+   */
+  OCRDetResult infer_det(const cv::Mat &origin, int max_side_len,
+                         const std::vector<float> &mean,
+                         const std::vector<float> &stddev);
+
+  /**
+   * Cls/rec stage for the crops of infer_det. Only touches the cls and rec
+   * predictors
+   * @param det
+   * @return
+   */
+  std::vector<OCRPredictResult> infer_rec(const OCRDetResult &det);
+
+  /**
+   * Same as infer_rec(const OCRDetResult &) with the rec batch size
+   * overridden, batch_size 1 runs the crops one by one, still padded to
+   * the bucket widths
+   */
+  std::vector<OCRPredictResult> infer_rec(const OCRDetResult &det,
+                                          int batch_size);
+
+  /**
+   * Time the cls/rec stage on the crops of det, once one by one and once
+   * batched with OCR_Config::rec_batch_size, iterations runs each
+   * @return average ms per run, {per crop, batched}
+   */
+  std::vector<float> benchmark_rec(const OCRDetResult &det, int iterations);
+
+  /**
+   * @return {hits, misses} of rec input shapes, a miss is a {batch, width}
+   * shape a rec predictor runs for the first time and sizes its buffers for
+   */
+  std::vector<int64_t> rec_shape_stats() const {
+    return {_rec_shape_hits.load(), _rec_shape_misses.load()};
+  }
+
+  /**
+   * Wait up to timeout_ms for the models that are not lazy
+   * @param timeout_ms < 0 waits until loading finishes
+   * @return LOAD_STATE
+   */
+  int wait_loaded(int timeout_ms);
+
+  /**
+   * @return ms the last det call spent turning the det output into boxes,
+   * read it in the same serialized call as the det, or use
+   * OCRDetResult::postprocess_time
+   */
+  float det_postprocess_time() const { return _det_postprocess_time; }
+
   virtual NET_TYPE get_net_flag() const;
 
+  /**
+   * Reusable buffer the results are serialized into for the java side,
+   * valid until the next call on this predictor
+   */
+  std::vector<int32_t> &result_buffer() { return _result_buffer; }
+
 private:
   /**
    * calcul Polygone from the result image of first model
@@ -92,13 +268,121 @@ private:
             const cv::Mat &origin);
 
   /**
-  * infer for cls model
-  *
-  * @param boxes
-  * @param origin
-  * @return
-  */
-  cv::Mat infer_cls(const cv::Mat &origin, float thresh = 0.9);
+   * crop every box from origin, RGBA crops are converted to BGR
+   * @param boxes
+   * @param origin
+   * @return
+   */
+  OCRDetResult
+  crop_boxes(const std::vector<std::vector<std::vector<int>>> &boxes,
+             const cv::Mat &origin);
+
+  /**
+   * One cls + rec predictor pair, a crop is handled entirely by one worker
+   */
+  struct RecWorker {
+    std::unique_ptr<PPredictor> rec;
+    std::unique_ptr<PPredictor> cls;
+    // {batch, width} rec input shapes this worker has run
+    std::set<std::pair<int64_t, int64_t>> shapes;
+    // runs the tasks of this worker, created once in start_loading. Null for
+    // the first worker, whose tasks run on the calling thread
+    std::unique_ptr<WorkerThread> thread;
+  };
+
+  /**
+   * A crop, or for a crop wider than the last bucket a piece of it resized to
+   * the rec height, run through rec as one row
+   */
+  struct RecSegment {
+    int crop;
+    bool whole;  // the segment is the entire crop
+    int x;       // left of the segment in the resized crop
+    cv::Mat image;
+    // !whole only, per step argmax of the rec output and the tensor width
+    std::vector<int> step_idx;
+    std::vector<float> step_max;
+    int tensor_width = 0;
+  };
+
+  /**
+   * Segments run through the rec model together, all padded to width. The
+   * rec input always has rows rows, the rows past the segments are zero and
+   * their output is discarded, so every bucket takes a single shape
+   */
+  struct RecBatch {
+    int width;
+    int rows;
+    std::vector<int> segments;
+  };
+
+  /**
+   * create the det predictor and OCR_Config::rec_replicas workers, then start
+   * loading the models into them
+   */
+  void start_loading(const ModelSource &det, const ModelSource &rec,
+                     const ModelSource &cls);
+
+  /**
+   * wait for a model to be loaded, runs the load here if it is lazy and not
+   * loaded yet
+   * @return false if the model failed to load
+   */
+  bool ensure_loaded(const std::shared_future<int> &loaded, const char *name);
+
+  /**
+   * run task(worker, i) for i in [0, task_num), tasks are handed out to the
+   * rec workers through a shared counter. The calling thread is worker 0, the
+   * others run on their own long-lived thread
+   */
+  void run_on_rec_workers(int task_num,
+                          const std::function<void(RecWorker &, int)> &task);
+
+  /**
+   * one segment per crop, crops wider than the last bucket are split into
+   * overlapping segments of the last bucket width
+   */
+  std::vector<RecSegment> split_rec_segments(const std::vector<cv::Mat> &crops);
+
+  /**
+   * ctc decode the segments of every split crop as one line, each step taken
+   * from the segment whose share of the overlaps it falls in
+   */
+  void stitch_rec_segments(std::vector<RecSegment> &segments,
+                           std::vector<OCRPredictResult> &results,
+                           std::vector<char> &recognized);
+
+  /**
+   * sort crops by aspect ratio and group them into batches of at most
+   * batch_size crops sharing a bucket width, every batch padded to batch_size
+   * rows
+   */
+  std::vector<RecBatch> plan_rec_batches(const std::vector<cv::Mat> &crops,
+                                         int batch_size) const;
+
+  /**
+   * Orient the crops according to OCR_Config::cls_mode. Crops that stay
+   * upright are shared with the input, only rotated ones are new Mats
+   */
+  std::vector<cv::Mat> orient_crops(const std::vector<cv::Mat> &crops);
+
+  /**
+   * run cls on the given crops in batches of OCR_Config::cls_batch_size
+   * @param rotated set for the crops labeled 180 degree
+   */
+  void infer_cls(const std::vector<cv::Mat> &crops,
+                 const std::vector<int> &indices, std::vector<char> &rotated);
+
+  /**
+   * rec + ctc decode of one batch of segments of cls oriented crops
+   * @param results filled for the whole crops of the batch, split ones keep
+   * their step argmax in the segment
+   * @param recognized set for the crops with at least one word
+   */
+  void infer_rec_batch(RecWorker &worker, const RecBatch &batch,
+                       std::vector<RecSegment> &segments,
+                       std::vector<OCRPredictResult> &results,
+                       std::vector<char> &recognized);
 
   /**
    * Postprocess or sencod model to extract text
@@ -115,8 +399,25 @@ private:
   float postprocess_rec_score(const PredictorOutput &res);
 
   std::unique_ptr<PPredictor> _det_predictor;
-  std::unique_ptr<PPredictor> _rec_predictor;
-  std::unique_ptr<PPredictor> _cls_predictor;
+  std::shared_future<int> _det_loaded;
+  std::shared_future<int> _rec_loaded;
+  std::shared_future<int> _cls_loaded;
+  // det and rec/cls predictor access, shared by requests and the warmup
+  WarmupGate _det_gate;
+  WarmupGate _rec_gate;
+  std::future<void> _det_warmup;
+  std::future<void> _rec_warmup;
+  std::vector<RecWorker> _rec_workers;
+  std::shared_ptr<void> _asset_owner;
   OCR_Config _config;
+  std::vector<int32_t> _result_buffer;
+  // DB post-processing memory and threads, reused by every det call (det
+  // calls are serialized by the caller)
+  DBScratch _db_scratch;
+  std::unique_ptr<WorkerPool> _db_pool;
+  size_t _db_scratch_bytes = 0;
+  float _det_postprocess_time = 0;
+  std::atomic<int64_t> _rec_shape_hits{0};
+  std::atomic<int64_t> _rec_shape_misses{0};
 };
 }
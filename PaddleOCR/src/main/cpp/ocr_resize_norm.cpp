@@ -0,0 +1,150 @@
+//
+// Resize + normalize of 8 bit crops straight into a model input tensor.
+//
+
+#include "ocr_resize_norm.h"
+#include "ocr_simd.h"
+#include <algorithm>
+#include <cmath>
+#include <vector>
+
+/**
+ * byte offsets of the left and right source pixels and weight of the right
+ * one for every output position, pixel centers aligned as cv::resize
+ */
+static void linear_taps(int src_size, int dst_size, int pixel_bytes,
+                        std::vector<int> &offset0, std::vector<int> &offset1,
+                        std::vector<float> &weight) {
+  offset0.resize(dst_size);
+  offset1.resize(dst_size);
+  weight.resize(dst_size);
+  const float ratio = float(src_size) / dst_size;
+  for (int i = 0; i < dst_size; i++) {
+    float s = (i + 0.5f) * ratio - 0.5f;
+    int i0 = int(std::floor(s));
+    float w = s - i0;
+    if (i0 < 0) {
+      i0 = 0;
+      w = 0.f;
+    }
+    if (i0 >= src_size - 1) {
+      i0 = src_size - 1;
+      w = 0.f;
+    }
+    offset0[i] = i0 * pixel_bytes;
+    offset1[i] = std::min(i0 + 1, src_size - 1) * pixel_bytes;
+    weight[i] = w;
+  }
+}
+
+/**
+ * horizontal pass of one source row, split into 3 planes of resize_w
+ */
+static void resize_row(const uint8_t *src, int resize_w, const int *x0,
+                       const int *x1, const float *wx, float *row) {
+  float *r0 = row;
+  float *r1 = r0 + resize_w;
+  float *r2 = r1 + resize_w;
+  for (int x = 0; x < resize_w; x++) {
+    const uint8_t *p0 = src + x0[x];
+    const uint8_t *p1 = src + x1[x];
+    float w = wx[x];
+    r0[x] = p0[0] + (p1[0] - p0[0]) * w;
+    r1[x] = p0[1] + (p1[1] - p0[1]) * w;
+    r2[x] = p0[2] + (p1[2] - p0[2]) * w;
+  }
+}
+
+void resize_norm_chw(const uint8_t *src, int src_w, int src_h,
+                     size_t src_step, int resize_w, int resize_h, int out_w,
+                     float scale, float bias, float pad, float *dout) {
+  const int plane_size = resize_h * out_w;
+  float *dout_c0 = dout;
+  float *dout_c1 = dout_c0 + plane_size;
+  float *dout_c2 = dout_c1 + plane_size;
+  if (resize_w < out_w) {
+    for (int h = 0; h < resize_h; h++) {
+      std::fill(dout_c0 + h * out_w + resize_w, dout_c0 + (h + 1) * out_w,
+                pad);
+      std::fill(dout_c1 + h * out_w + resize_w, dout_c1 + (h + 1) * out_w,
+                pad);
+      std::fill(dout_c2 + h * out_w + resize_w, dout_c2 + (h + 1) * out_w,
+                pad);
+    }
+  }
+
+  const simd_f32 vscale = simd_set1(scale);
+  const simd_f32 vbias = simd_set1(bias);
+  if (src_w == resize_w && src_h == resize_h) {
+    // the crop already has the model size, only normalize
+    for (int h = 0; h < resize_h; h++) {
+      const uint8_t *row = src + h * src_step;
+      float *c0 = dout_c0 + h * out_w;
+      float *c1 = dout_c1 + h * out_w;
+      float *c2 = dout_c2 + h * out_w;
+      int w = 0;
+      for (; w + SIMD_LANES <= resize_w; w += SIMD_LANES) {
+        simd_f32 v0, v1, v2;
+        simd_load3_u8(row + 3 * w, v0, v1, v2);
+        simd_store(c0 + w, simd_madd(v0, vscale, vbias));
+        simd_store(c1 + w, simd_madd(v1, vscale, vbias));
+        simd_store(c2 + w, simd_madd(v2, vscale, vbias));
+      }
+      for (; w < resize_w; w++) {
+        c0[w] = row[3 * w] * scale + bias;
+        c1[w] = row[3 * w + 1] * scale + bias;
+        c2[w] = row[3 * w + 2] * scale + bias;
+      }
+    }
+    return;
+  }
+
+  std::vector<int> x0, x1, y0s, y1s;
+  std::vector<float> wx, wy;
+  linear_taps(src_w, resize_w, 3, x0, x1, wx);
+  linear_taps(src_h, resize_h, 1, y0s, y1s, wy);
+  // the two source rows of the current output row, horizontally resized.
+  // Consecutive output rows mostly share them, each is resized once
+  std::vector<float> rows(6 * resize_w);
+  float *top = rows.data();
+  float *bottom = top + 3 * resize_w;
+  int top_y = -1;
+  int bottom_y = -1;
+  for (int h = 0; h < resize_h; h++) {
+    int y0 = y0s[h];
+    int y1 = y1s[h];
+    if (y0 == bottom_y) {
+      std::swap(top, bottom);
+      std::swap(top_y, bottom_y);
+    }
+    if (y0 != top_y) {
+      resize_row(src + y0 * src_step, resize_w, x0.data(), x1.data(),
+                 wx.data(), top);
+      top_y = y0;
+    }
+    if (y1 != bottom_y) {
+      resize_row(src + y1 * src_step, resize_w, x0.data(), x1.data(),
+                 wx.data(), bottom);
+      bottom_y = y1;
+    }
+    // fold the normalization into the vertical weights, the rows are planar
+    // so this is a plain loop over 3 contiguous planes
+    const float s0 = (1.f - wy[h]) * scale;
+    const float s1 = wy[h] * scale;
+    const simd_f32 vs0 = simd_set1(s0);
+    const simd_f32 vs1 = simd_set1(s1);
+    for (int c = 0; c < 3; c++) {
+      const float *t = top + c * resize_w;
+      const float *b = bottom + c * resize_w;
+      float *out = dout + c * plane_size + h * out_w;
+      int w = 0;
+      for (; w + SIMD_LANES <= resize_w; w += SIMD_LANES) {
+        simd_f32 v = simd_madd(simd_load(t + w), vs0, vbias);
+        simd_store(out + w, simd_madd(simd_load(b + w), vs1, v));
+      }
+      for (; w < resize_w; w++) {
+        out[w] = t[w] * s0 + b[w] * s1 + bias;
+      }
+    }
+  }
+}
@@ -0,0 +1,23 @@
+//
+// Resize + normalize of 8 bit crops straight into a model input tensor.
+// Depends on nothing but the C++ standard library so it builds and runs on a
+// Linux host as well.
+//
+#pragma once
+
+#include <cstddef>
+#include <cstdint>
+
+/**
+ * Bilinear resize of a 3 channel hwc image (same sampling as cv::resize with
+ * INTER_LINEAR) fused with v * scale + bias, written as chw in one pass, with
+ * no intermediate image
+ * @param src src_h rows of src_w pixels, row i at src + i * src_step bytes
+ * @param resize_w, resize_h size the image is resized to, resize_w <= out_w
+ * @param out_w width of the output planes, columns from resize_w on are set to
+ * pad
+ * @param dout 3 planes of resize_h * out_w floats
+ */
+void resize_norm_chw(const uint8_t *src, int src_w, int src_h,
+                     size_t src_step, int resize_w, int resize_h, int out_w,
+                     float scale, float bias, float pad, float *dout);
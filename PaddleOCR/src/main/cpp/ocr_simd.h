@@ -0,0 +1,343 @@
+//
+// Thin wrappers over the vector instructions of the target, so the pre and
+// post-processing kernels are written once and build for the ARM ABIs (NEON),
+// x86/x86_64 (AVX or SSE2) and anything else (scalar, 1 lane). Depends on
+// nothing but the C++ standard library and the compiler intrinsics.
+//
+// Define OCR_SIMD_SCALAR to force the scalar backend, e.g. to compare against
+// it on a host.
+//
+// A kernel processes SIMD_LANES elements per step while at least that many
+// are left, then finishes the tail in plain C++:
+//
+//   int i = 0;
+//   for (; i + SIMD_LANES <= n; i += SIMD_LANES) {
+//     simd_store(out + i, simd_madd(simd_load(in + i), vscale, vbias));
+//   }
+//   for (; i < n; i++) { ... }
+//
+#pragma once
+
+#include <cstdint>
+#include <cstring>
+
+#if !defined(OCR_SIMD_SCALAR) && (defined(__ARM_NEON) || defined(__ARM_NEON__))
+#define OCR_SIMD_NEON 1
+#include <arm_neon.h>
+#elif !defined(OCR_SIMD_SCALAR) && defined(__AVX__)
+#define OCR_SIMD_AVX 1
+#include <immintrin.h>
+#elif !defined(OCR_SIMD_SCALAR) && defined(__SSE2__)
+#define OCR_SIMD_SSE2 1
+#include <emmintrin.h>
+#else
+#define OCR_SIMD_SCALAR_BACKEND 1
+#endif
+
+#if defined(OCR_SIMD_SSE2) || defined(OCR_SIMD_AVX)
+/**
+ * 4 bytes widened to 4 floats
+ */
+static inline __m128 simd_sse_u8x4(const uint8_t *src) {
+  int32_t word;
+  std::memcpy(&word, src, 4);
+  const __m128i zero = _mm_setzero_si128();
+  __m128i v = _mm_unpacklo_epi8(_mm_cvtsi32_si128(word), zero);
+  return _mm_cvtepi32_ps(_mm_unpacklo_epi16(v, zero));
+}
+
+/**
+ * 4 interleaved pixels of 3 channels in a, b, c split into one per channel
+ */
+static inline void simd_sse_split3(__m128 a, __m128 b, __m128 c, __m128 &c0,
+                                   __m128 &c1, __m128 &c2) {
+  // a = x0 y0 z0 x1, b = y1 z1 x2 y2, c = z2 x3 y3 z3
+  __m128 t = _mm_shuffle_ps(b, c, _MM_SHUFFLE(0, 1, 0, 2));   // x2 _ x3 _
+  c0 = _mm_shuffle_ps(a, t, _MM_SHUFFLE(2, 0, 3, 0));         // x0 x1 x2 x3
+  __m128 u = _mm_shuffle_ps(a, b, _MM_SHUFFLE(0, 0, 0, 1));   // y0 _ y1 _
+  __m128 v = _mm_shuffle_ps(b, c, _MM_SHUFFLE(0, 2, 0, 3));   // y2 _ y3 _
+  c1 = _mm_shuffle_ps(u, v, _MM_SHUFFLE(2, 0, 2, 0));         // y0 y1 y2 y3
+  u = _mm_shuffle_ps(a, b, _MM_SHUFFLE(0, 1, 0, 2));          // z0 _ z1 _
+  v = _mm_shuffle_ps(c, c, _MM_SHUFFLE(0, 3, 0, 0));          // z2 _ z3 _
+  c2 = _mm_shuffle_ps(u, v, _MM_SHUFFLE(2, 0, 2, 0));         // z0 z1 z2 z3
+}
+
+static inline void simd_sse_load3(const float *src, __m128 &c0, __m128 &c1,
+                                  __m128 &c2) {
+  simd_sse_split3(_mm_loadu_ps(src), _mm_loadu_ps(src + 4),
+                  _mm_loadu_ps(src + 8), c0, c1, c2);
+}
+
+static inline void simd_sse_load3_u8(const uint8_t *src, __m128 &c0,
+                                     __m128 &c1, __m128 &c2) {
+  simd_sse_split3(simd_sse_u8x4(src), simd_sse_u8x4(src + 4),
+                  simd_sse_u8x4(src + 8), c0, c1, c2);
+}
+
+static inline void simd_sse_load4_u8(const uint8_t *src, __m128 &c0,
+                                     __m128 &c1, __m128 &c2, __m128 &c3) {
+  c0 = simd_sse_u8x4(src);
+  c1 = simd_sse_u8x4(src + 4);
+  c2 = simd_sse_u8x4(src + 8);
+  c3 = simd_sse_u8x4(src + 12);
+  _MM_TRANSPOSE4_PS(c0, c1, c2, c3);
+}
+
+/**
+ * lanes of a compare result as 4 bytes of 0 or 1
+ */
+static inline void simd_sse_store_mask_u8(uint8_t *dst, __m128 mask) {
+  __m128i bits = _mm_and_si128(_mm_castps_si128(mask), _mm_set1_epi32(1));
+  bits = _mm_packs_epi32(bits, bits);
+  bits = _mm_packus_epi16(bits, bits);
+  int32_t word = _mm_cvtsi128_si32(bits);
+  std::memcpy(dst, &word, 4);
+}
+#endif
+
+#if defined(OCR_SIMD_NEON)
+
+#define SIMD_LANES 4
+typedef float32x4_t simd_f32;
+typedef uint32x4_t simd_mask;
+
+static inline simd_f32 simd_load(const float *src) { return vld1q_f32(src); }
+static inline void simd_store(float *dst, simd_f32 v) { vst1q_f32(dst, v); }
+static inline simd_f32 simd_set1(float v) { return vdupq_n_f32(v); }
+static inline simd_f32 simd_add(simd_f32 a, simd_f32 b) {
+  return vaddq_f32(a, b);
+}
+static inline simd_f32 simd_mul(simd_f32 a, simd_f32 b) {
+  return vmulq_f32(a, b);
+}
+// a * b + c, vmlaq_f32 also exists on armeabi-v7a
+static inline simd_f32 simd_madd(simd_f32 a, simd_f32 b, simd_f32 c) {
+  return vmlaq_f32(c, a, b);
+}
+static inline simd_f32 simd_max(simd_f32 a, simd_f32 b) {
+  return vmaxq_f32(a, b);
+}
+static inline simd_mask simd_gt(simd_f32 a, simd_f32 b) {
+  return vcgtq_f32(a, b);
+}
+static inline simd_f32 simd_select(simd_mask m, simd_f32 a, simd_f32 b) {
+  return vbslq_f32(m, a, b);
+}
+// the lane indices 0, 1, ... as floats
+static inline simd_f32 simd_iota() {
+  const float lanes[4] = {0, 1, 2, 3};
+  return vld1q_f32(lanes);
+}
+static inline void simd_load3(const float *src, simd_f32 &c0, simd_f32 &c1,
+                              simd_f32 &c2) {
+  float32x4x3_t v = vld3q_f32(src);
+  c0 = v.val[0];
+  c1 = v.val[1];
+  c2 = v.val[2];
+}
+// 4 pixels as two byte vectors, one channel per half, by table lookup: vtbl
+// exists on armeabi-v7a too and the loads read exactly the pixels
+static inline void simd_neon_split_u8(uint8x8x2_t table, const uint8_t *lo,
+                                      const uint8_t *hi, uint16x8_t &v01,
+                                      uint16x8_t &v23) {
+  v01 = vmovl_u8(vtbl2_u8(table, vld1_u8(lo)));
+  v23 = vmovl_u8(vtbl2_u8(table, vld1_u8(hi)));
+}
+static inline void simd_load3_u8(const uint8_t *src, simd_f32 &c0,
+                                 simd_f32 &c1, simd_f32 &c2) {
+  static const uint8_t lo[8] = {0, 3, 6, 9, 1, 4, 7, 10};
+  static const uint8_t hi[8] = {2, 5, 8, 11, 2, 5, 8, 11};
+  uint32_t tail;
+  std::memcpy(&tail, src + 8, 4);
+  uint8x8x2_t table;
+  table.val[0] = vld1_u8(src);
+  table.val[1] = vreinterpret_u8_u32(vdup_n_u32(tail));
+  uint16x8_t v01, v23;
+  simd_neon_split_u8(table, lo, hi, v01, v23);
+  c0 = vcvtq_f32_u32(vmovl_u16(vget_low_u16(v01)));
+  c1 = vcvtq_f32_u32(vmovl_u16(vget_high_u16(v01)));
+  c2 = vcvtq_f32_u32(vmovl_u16(vget_low_u16(v23)));
+}
+static inline void simd_load4_u8(const uint8_t *src, simd_f32 &c0,
+                                 simd_f32 &c1, simd_f32 &c2, simd_f32 &c3) {
+  static const uint8_t lo[8] = {0, 4, 8, 12, 1, 5, 9, 13};
+  static const uint8_t hi[8] = {2, 6, 10, 14, 3, 7, 11, 15};
+  uint8x16_t v = vld1q_u8(src);
+  uint8x8x2_t table;
+  table.val[0] = vget_low_u8(v);
+  table.val[1] = vget_high_u8(v);
+  uint16x8_t v01, v23;
+  simd_neon_split_u8(table, lo, hi, v01, v23);
+  c0 = vcvtq_f32_u32(vmovl_u16(vget_low_u16(v01)));
+  c1 = vcvtq_f32_u32(vmovl_u16(vget_high_u16(v01)));
+  c2 = vcvtq_f32_u32(vmovl_u16(vget_low_u16(v23)));
+  c3 = vcvtq_f32_u32(vmovl_u16(vget_high_u16(v23)));
+}
+static inline void simd_store_mask_u8(uint8_t *dst, simd_mask m) {
+  uint16x4_t half = vmovn_u32(vshrq_n_u32(m, 31));
+  uint8x8_t bytes = vmovn_u16(vcombine_u16(half, half));
+  uint32_t word = vget_lane_u32(vreinterpret_u32_u8(bytes), 0);
+  std::memcpy(dst, &word, 4);
+}
+
+#elif defined(OCR_SIMD_AVX)
+
+#define SIMD_LANES 8
+typedef __m256 simd_f32;
+typedef __m256 simd_mask;
+
+static inline simd_f32 simd_load(const float *src) {
+  return _mm256_loadu_ps(src);
+}
+static inline void simd_store(float *dst, simd_f32 v) {
+  _mm256_storeu_ps(dst, v);
+}
+static inline simd_f32 simd_set1(float v) { return _mm256_set1_ps(v); }
+static inline simd_f32 simd_add(simd_f32 a, simd_f32 b) {
+  return _mm256_add_ps(a, b);
+}
+static inline simd_f32 simd_mul(simd_f32 a, simd_f32 b) {
+  return _mm256_mul_ps(a, b);
+}
+// a * b + c, FMA is not part of AVX
+static inline simd_f32 simd_madd(simd_f32 a, simd_f32 b, simd_f32 c) {
+  return _mm256_add_ps(_mm256_mul_ps(a, b), c);
+}
+static inline simd_f32 simd_max(simd_f32 a, simd_f32 b) {
+  return _mm256_max_ps(a, b);
+}
+static inline simd_mask simd_gt(simd_f32 a, simd_f32 b) {
+  return _mm256_cmp_ps(a, b, _CMP_GT_OQ);
+}
+// and/andnot/or, blendv is slower on the loop carried chain of an argmax
+static inline simd_f32 simd_select(simd_mask m, simd_f32 a, simd_f32 b) {
+  return _mm256_or_ps(_mm256_and_ps(m, a), _mm256_andnot_ps(m, b));
+}
+static inline simd_f32 simd_iota() {
+  return _mm256_setr_ps(0, 1, 2, 3, 4, 5, 6, 7);
+}
+// the 8 lane loads are two 4 lane ones, AVX has no 256 bit shuffles across
+// the halves
+static inline void simd_load3(const float *src, simd_f32 &c0, simd_f32 &c1,
+                              simd_f32 &c2) {
+  __m128 l0, l1, l2, h0, h1, h2;
+  simd_sse_load3(src, l0, l1, l2);
+  simd_sse_load3(src + 12, h0, h1, h2);
+  c0 = _mm256_insertf128_ps(_mm256_castps128_ps256(l0), h0, 1);
+  c1 = _mm256_insertf128_ps(_mm256_castps128_ps256(l1), h1, 1);
+  c2 = _mm256_insertf128_ps(_mm256_castps128_ps256(l2), h2, 1);
+}
+static inline void simd_load3_u8(const uint8_t *src, simd_f32 &c0,
+                                 simd_f32 &c1, simd_f32 &c2) {
+  __m128 l0, l1, l2, h0, h1, h2;
+  simd_sse_load3_u8(src, l0, l1, l2);
+  simd_sse_load3_u8(src + 12, h0, h1, h2);
+  c0 = _mm256_insertf128_ps(_mm256_castps128_ps256(l0), h0, 1);
+  c1 = _mm256_insertf128_ps(_mm256_castps128_ps256(l1), h1, 1);
+  c2 = _mm256_insertf128_ps(_mm256_castps128_ps256(l2), h2, 1);
+}
+static inline void simd_load4_u8(const uint8_t *src, simd_f32 &c0,
+                                 simd_f32 &c1, simd_f32 &c2, simd_f32 &c3) {
+  __m128 l0, l1, l2, l3, h0, h1, h2, h3;
+  simd_sse_load4_u8(src, l0, l1, l2, l3);
+  simd_sse_load4_u8(src + 16, h0, h1, h2, h3);
+  c0 = _mm256_insertf128_ps(_mm256_castps128_ps256(l0), h0, 1);
+  c1 = _mm256_insertf128_ps(_mm256_castps128_ps256(l1), h1, 1);
+  c2 = _mm256_insertf128_ps(_mm256_castps128_ps256(l2), h2, 1);
+  c3 = _mm256_insertf128_ps(_mm256_castps128_ps256(l3), h3, 1);
+}
+static inline void simd_store_mask_u8(uint8_t *dst, simd_mask m) {
+  simd_sse_store_mask_u8(dst, _mm256_castps256_ps128(m));
+  simd_sse_store_mask_u8(dst + 4, _mm256_extractf128_ps(m, 1));
+}
+
+#elif defined(OCR_SIMD_SSE2)
+
+#define SIMD_LANES 4
+typedef __m128 simd_f32;
+typedef __m128 simd_mask;
+
+static inline simd_f32 simd_load(const float *src) { return _mm_loadu_ps(src); }
+static inline void simd_store(float *dst, simd_f32 v) { _mm_storeu_ps(dst, v); }
+static inline simd_f32 simd_set1(float v) { return _mm_set1_ps(v); }
+static inline simd_f32 simd_add(simd_f32 a, simd_f32 b) {
+  return _mm_add_ps(a, b);
+}
+static inline simd_f32 simd_mul(simd_f32 a, simd_f32 b) {
+  return _mm_mul_ps(a, b);
+}
+static inline simd_f32 simd_madd(simd_f32 a, simd_f32 b, simd_f32 c) {
+  return _mm_add_ps(_mm_mul_ps(a, b), c);
+}
+static inline simd_f32 simd_max(simd_f32 a, simd_f32 b) {
+  return _mm_max_ps(a, b);
+}
+static inline simd_mask simd_gt(simd_f32 a, simd_f32 b) {
+  return _mm_cmpgt_ps(a, b);
+}
+static inline simd_f32 simd_select(simd_mask m, simd_f32 a, simd_f32 b) {
+  return _mm_or_ps(_mm_and_ps(m, a), _mm_andnot_ps(m, b));
+}
+static inline simd_f32 simd_iota() { return _mm_setr_ps(0, 1, 2, 3); }
+static inline void simd_load3(const float *src, simd_f32 &c0, simd_f32 &c1,
+                              simd_f32 &c2) {
+  simd_sse_load3(src, c0, c1, c2);
+}
+static inline void simd_load3_u8(const uint8_t *src, simd_f32 &c0,
+                                 simd_f32 &c1, simd_f32 &c2) {
+  simd_sse_load3_u8(src, c0, c1, c2);
+}
+static inline void simd_load4_u8(const uint8_t *src, simd_f32 &c0,
+                                 simd_f32 &c1, simd_f32 &c2, simd_f32 &c3) {
+  simd_sse_load4_u8(src, c0, c1, c2, c3);
+}
+static inline void simd_store_mask_u8(uint8_t *dst, simd_mask m) {
+  simd_sse_store_mask_u8(dst, m);
+}
+
+#else
+
+#define SIMD_LANES 1
+typedef float simd_f32;
+typedef bool simd_mask;
+
+static inline simd_f32 simd_load(const float *src) { return *src; }
+static inline void simd_store(float *dst, simd_f32 v) { *dst = v; }
+static inline simd_f32 simd_set1(float v) { return v; }
+static inline simd_f32 simd_add(simd_f32 a, simd_f32 b) { return a + b; }
+static inline simd_f32 simd_mul(simd_f32 a, simd_f32 b) { return a * b; }
+static inline simd_f32 simd_madd(simd_f32 a, simd_f32 b, simd_f32 c) {
+  return a * b + c;
+}
+static inline simd_f32 simd_max(simd_f32 a, simd_f32 b) {
+  return a > b ? a : b;
+}
+static inline simd_mask simd_gt(simd_f32 a, simd_f32 b) { return a > b; }
+static inline simd_f32 simd_select(simd_mask m, simd_f32 a, simd_f32 b) {
+  return m ? a : b;
+}
+static inline simd_f32 simd_iota() { return 0.f; }
+static inline void simd_load3(const float *src, simd_f32 &c0, simd_f32 &c1,
+                              simd_f32 &c2) {
+  c0 = src[0];
+  c1 = src[1];
+  c2 = src[2];
+}
+static inline void simd_load3_u8(const uint8_t *src, simd_f32 &c0,
+                                 simd_f32 &c1, simd_f32 &c2) {
+  c0 = src[0];
+  c1 = src[1];
+  c2 = src[2];
+}
+static inline void simd_load4_u8(const uint8_t *src, simd_f32 &c0,
+                                 simd_f32 &c1, simd_f32 &c2, simd_f32 &c3) {
+  c0 = src[0];
+  c1 = src[1];
+  c2 = src[2];
+  c3 = src[3];
+}
+static inline void simd_store_mask_u8(uint8_t *dst, simd_mask m) {
+  *dst = m ? 1 : 0;
+}
+
+#endif
@@ -0,0 +1,77 @@
+//
+// Long-lived worker threads, see ocr_worker_thread.h
+//
+
+#include "ocr_worker_thread.h"
+#include <algorithm>
+#include <utility>
+
+WorkerThread::WorkerThread() : _thread(&WorkerThread::loop, this) {}
+
+WorkerThread::~WorkerThread() {
+  {
+    std::lock_guard<std::mutex> lock(_mutex);
+    _stop = true;
+  }
+  _wake.notify_one();
+  _thread.join();
+}
+
+void WorkerThread::post(std::function<void()> task) {
+  {
+    std::lock_guard<std::mutex> lock(_mutex);
+    _tasks.push_back(std::move(task));
+  }
+  _wake.notify_one();
+}
+
+void WorkerThread::loop() {
+  for (;;) {
+    std::function<void()> task;
+    {
+      std::unique_lock<std::mutex> lock(_mutex);
+      _wake.wait(lock, [this] { return _stop || !_tasks.empty(); });
+      if (_tasks.empty()) {
+        // stopped and drained
+        return;
+      }
+      task = std::move(_tasks.front());
+      _tasks.pop_front();
+    }
+    task();
+  }
+}
+
+void TaskLatch::count_down() {
+  std::lock_guard<std::mutex> lock(_mutex);
+  if (--_count <= 0) {
+    _done.notify_all();
+  }
+}
+
+void TaskLatch::wait() {
+  std::unique_lock<std::mutex> lock(_mutex);
+  _done.wait(lock, [this] { return _count <= 0; });
+}
+
+WorkerPool::WorkerPool(int thread_num) {
+  for (int i = 1; i < thread_num; i++) {
+    _threads.emplace_back(new WorkerThread());
+  }
+}
+
+void WorkerPool::run(int worker_num, const std::function<void(int)> &worker) {
+  worker_num = std::min(worker_num, size());
+  if (worker_num < 1) {
+    return;
+  }
+  TaskLatch done(worker_num - 1);
+  for (int w = 1; w < worker_num; w++) {
+    _threads[w - 1]->post([&worker, &done, w] {
+      worker(w);
+      done.count_down();
+    });
+  }
+  worker(0);
+  done.wait();
+}
@@ -0,0 +1,85 @@
+//
+// Long-lived worker threads, so the stages that spread work over several
+// threads do not start and join threads on every image. Depends on nothing
+// but the C++ standard library so it builds and runs on a Linux host as well.
+//
+#pragma once
+
+#include <condition_variable>
+#include <deque>
+#include <functional>
+#include <memory>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+/**
+ * One thread running the tasks posted to it in order, started by the
+ * constructor and joined by the destructor once the posted tasks have run
+ */
+class WorkerThread {
+public:
+  WorkerThread();
+
+  ~WorkerThread();
+
+  WorkerThread(const WorkerThread &) = delete;
+  WorkerThread &operator=(const WorkerThread &) = delete;
+
+  void post(std::function<void()> task);
+
+private:
+  void loop();
+
+  std::mutex _mutex;
+  std::condition_variable _wake;
+  std::deque<std::function<void()>> _tasks;
+  bool _stop = false;
+  // last, started once the members above are constructed
+  std::thread _thread;
+};
+
+/**
+ * Lets the thread that posted count tasks wait for all of them
+ */
+class TaskLatch {
+public:
+  explicit TaskLatch(int count) : _count(count) {}
+
+  void count_down();
+
+  void wait();
+
+private:
+  std::mutex _mutex;
+  std::condition_variable _done;
+  int _count;
+};
+
+/**
+ * Threads a data parallel step is spread over, owned by whoever runs the step
+ * on every image. The calling thread is one of them
+ */
+class WorkerPool {
+public:
+  /**
+   * @param thread_num threads including the calling one, thread_num - 1
+   * WorkerThreads are started
+   */
+  explicit WorkerPool(int thread_num);
+
+  /**
+   * @return threads including the calling one
+   */
+  int size() const { return int(_threads.size()) + 1; }
+
+  /**
+   * run worker(w) for w in [0, worker_num), worker 0 on the calling thread,
+   * and return once all of them are done
+   * @param worker_num clamped to size()
+   */
+  void run(int worker_num, const std::function<void(int)> &worker);
+
+private:
+  std::vector<std::unique_ptr<WorkerThread>> _threads;
+};
@@ -2,6 +2,26 @@
 #include "common.h"
 
 namespace ppredictor {
+
+bool read_asset(AAssetManager *asset_manager, const std::string &path,
+                std::string &content) {
+  AAsset *asset =
+      AAssetManager_open(asset_manager, path.c_str(), AASSET_MODE_BUFFER);
+  if (asset == nullptr) {
+    LOGE("asset not found %s", path.c_str());
+    return false;
+  }
+  const void *buffer = AAsset_getBuffer(asset);
+  if (buffer == nullptr) {
+    LOGE("asset cannot be read %s", path.c_str());
+    AAsset_close(asset);
+    return false;
+  }
+  content.assign(reinterpret_cast<const char *>(buffer),
+                 (size_t)AAsset_getLength64(asset));
+  AAsset_close(asset);
+  return true;
+}
 PPredictor::PPredictor(int thread_num, int net_flag,
                        paddle::lite_api::PowerMode mode)
     : _thread_num(thread_num), _net_flag(net_flag), _mode(mode) {}
@@ -1,11 +1,21 @@
 #pragma once
 
 #include "paddle_api.h"
+#include <android/asset_manager.h>
 #include "predictor_input.h"
 #include "predictor_output.h"
 
 namespace ppredictor {
 
+/**
+ * Read an asset into content. Uncompressed assets are mapped straight from
+ * the apk, the only copy made is the one into content; compressed assets are
+ * inflated in memory
+ * @return false if the asset cannot be opened
+ */
+bool read_asset(AAssetManager *asset_manager, const std::string &path,
+                std::string &content);
+
 /**
  * PaddleLite Preditor Common Interface
  */
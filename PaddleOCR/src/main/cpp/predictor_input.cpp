@@ -1,4 +1,5 @@
 #include "predictor_input.h"
+#include <cstring>
 
 namespace ppredictor {
 
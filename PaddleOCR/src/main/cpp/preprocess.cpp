@@ -1,4 +1,8 @@
 #include "preprocess.h"
+#include "ocr_simd.h"
+#include <algorithm>
+#include <cmath>
+#ifdef __ANDROID__
 #include <android/bitmap.h>
 
 cv::Mat bitmap_to_cv_mat(JNIEnv *env, jobject bitmap) {
@@ -26,6 +30,7 @@ cv::Mat bitmap_to_cv_mat(JNIEnv *env, jobject bitmap) {
 
   return mat;
 }
+#endif
 
 cv::Mat resize_img(const cv::Mat &img, int height, int width) {
   if (img.rows == height && img.cols == width) {
@@ -36,7 +41,7 @@ cv::Mat resize_img(const cv::Mat &img, int height, int width) {
   return new_img;
 }
 
-// fill tensor with mean and scale and trans layout: nhwc -> nchw, neon speed up
+// fill tensor with mean and scale and trans layout: nhwc -> nchw, simd speed up
 void neon_mean_scale(const float *din, float *dout, int size,
                      const std::vector<float> &mean,
                      const std::vector<float> &scale) {
@@ -45,38 +50,123 @@ void neon_mean_scale(const float *din, float *dout, int size,
     return;
   }
 
-  float32x4_t vmean0 = vdupq_n_f32(mean[0]);
-  float32x4_t vmean1 = vdupq_n_f32(mean[1]);
-  float32x4_t vmean2 = vdupq_n_f32(mean[2]);
-  float32x4_t vscale0 = vdupq_n_f32(scale[0]);
-  float32x4_t vscale1 = vdupq_n_f32(scale[1]);
-  float32x4_t vscale2 = vdupq_n_f32(scale[2]);
+  const simd_f32 vscale0 = simd_set1(scale[0]);
+  const simd_f32 vscale1 = simd_set1(scale[1]);
+  const simd_f32 vscale2 = simd_set1(scale[2]);
+  const simd_f32 voffset0 = simd_set1(-mean[0] * scale[0]);
+  const simd_f32 voffset1 = simd_set1(-mean[1] * scale[1]);
+  const simd_f32 voffset2 = simd_set1(-mean[2] * scale[2]);
 
   float *dout_c0 = dout;
   float *dout_c1 = dout + size;
   float *dout_c2 = dout + size * 2;
 
   int i = 0;
-  for (; i < size - 3; i += 4) {
-    float32x4x3_t vin3 = vld3q_f32(din);
-    float32x4_t vsub0 = vsubq_f32(vin3.val[0], vmean0);
-    float32x4_t vsub1 = vsubq_f32(vin3.val[1], vmean1);
-    float32x4_t vsub2 = vsubq_f32(vin3.val[2], vmean2);
-    float32x4_t vs0 = vmulq_f32(vsub0, vscale0);
-    float32x4_t vs1 = vmulq_f32(vsub1, vscale1);
-    float32x4_t vs2 = vmulq_f32(vsub2, vscale2);
-    vst1q_f32(dout_c0, vs0);
-    vst1q_f32(dout_c1, vs1);
-    vst1q_f32(dout_c2, vs2);
+  for (; i + SIMD_LANES <= size; i += SIMD_LANES) {
+    simd_f32 v0, v1, v2;
+    simd_load3(din, v0, v1, v2);
+    simd_store(dout_c0, simd_madd(v0, vscale0, voffset0));
+    simd_store(dout_c1, simd_madd(v1, vscale1, voffset1));
+    simd_store(dout_c2, simd_madd(v2, vscale2, voffset2));
 
-    din += 12;
-    dout_c0 += 4;
-    dout_c1 += 4;
-    dout_c2 += 4;
+    din += 3 * SIMD_LANES;
+    dout_c0 += SIMD_LANES;
+    dout_c1 += SIMD_LANES;
+    dout_c2 += SIMD_LANES;
   }
   for (; i < size; i++) {
     *(dout_c0++) = (*(din++) - mean[0]) * scale[0];
     *(dout_c1++) = (*(din++) - mean[1]) * scale[1];
     *(dout_c2++) = (*(din++) - mean[2]) * scale[2];
   }
-}
\ No newline at end of file
+}
+
+cv::Size det_resize_size(int width, int height, int max_side_len, int step) {
+  int max_wh = std::max(width, height);
+  int new_width = width;
+  int new_height = height;
+  if (max_wh > max_side_len) {
+    float ratio = max_side_len * 1.0f / max_wh;
+    new_width = int(std::floor(ratio * width));
+    new_height = int(std::floor(ratio * height));
+  }
+  new_width -= new_width % step;
+  if (new_width == 0) {
+    new_width = step;
+  }
+  new_height -= new_height % step;
+  if (new_height == 0) {
+    new_height = step;
+  }
+  return cv::Size(new_width, new_height);
+}
+
+void det_mean_scale(const cv::Mat &img, float *dout,
+                    const std::vector<float> &mean,
+                    const std::vector<float> &stddev) {
+  if (mean.size() != 3 || stddev.size() != 3) {
+    LOGE("[ERROR] mean or std size must equal to 3");
+    return;
+  }
+  const int cn = img.channels();
+  if (img.depth() != CV_8U || (cn != 3 && cn != 4)) {
+    LOGE("[ERROR] det_mean_scale only accepts CV_8UC3 or CV_8UC4");
+    return;
+  }
+  // source index of output channel B, G, R
+  const int src_idx[3] = {cn == 4 ? 2 : 0, 1, cn == 4 ? 0 : 2};
+  float scale[3];
+  float offset[3];
+  for (int c = 0; c < 3; c++) {
+    scale[c] = 1.0f / (255.0f * stddev[c]);
+    offset[c] = -mean[c] / stddev[c];
+  }
+
+  const simd_f32 vscale0 = simd_set1(scale[0]);
+  const simd_f32 vscale1 = simd_set1(scale[1]);
+  const simd_f32 vscale2 = simd_set1(scale[2]);
+  const simd_f32 voffset0 = simd_set1(offset[0]);
+  const simd_f32 voffset1 = simd_set1(offset[1]);
+  const simd_f32 voffset2 = simd_set1(offset[2]);
+
+  const int width = img.cols;
+  const int size = img.rows * img.cols;
+  float *dout_c0 = dout;
+  float *dout_c1 = dout + size;
+  float *dout_c2 = dout + size * 2;
+  for (int h = 0; h < img.rows; h++) {
+    const uint8_t *din = img.ptr<uint8_t>(h);
+    int w = 0;
+    if (cn == 4) {
+      for (; w + SIMD_LANES <= width; w += SIMD_LANES) {
+        simd_f32 vr, vg, vb, va;
+        simd_load4_u8(din, vr, vg, vb, va);
+        simd_store(dout_c0, simd_madd(vb, vscale0, voffset0));
+        simd_store(dout_c1, simd_madd(vg, vscale1, voffset1));
+        simd_store(dout_c2, simd_madd(vr, vscale2, voffset2));
+        din += 4 * SIMD_LANES;
+        dout_c0 += SIMD_LANES;
+        dout_c1 += SIMD_LANES;
+        dout_c2 += SIMD_LANES;
+      }
+    } else {
+      for (; w + SIMD_LANES <= width; w += SIMD_LANES) {
+        simd_f32 vb, vg, vr;
+        simd_load3_u8(din, vb, vg, vr);
+        simd_store(dout_c0, simd_madd(vb, vscale0, voffset0));
+        simd_store(dout_c1, simd_madd(vg, vscale1, voffset1));
+        simd_store(dout_c2, simd_madd(vr, vscale2, voffset2));
+        din += 3 * SIMD_LANES;
+        dout_c0 += SIMD_LANES;
+        dout_c1 += SIMD_LANES;
+        dout_c2 += SIMD_LANES;
+      }
+    }
+    for (; w < width; w++) {
+      *(dout_c0++) = din[src_idx[0]] * scale[0] + offset[0];
+      *(dout_c1++) = din[src_idx[1]] * scale[1] + offset[1];
+      *(dout_c2++) = din[src_idx[2]] * scale[2] + offset[2];
+      din += cn;
+    }
+  }
+}
@@ -1,12 +1,32 @@
 #pragma once
 
 #include "common.h"
-#include <jni.h>
 #include <opencv2/opencv.hpp>
+
+#ifdef __ANDROID__
+#include <jni.h>
 cv::Mat bitmap_to_cv_mat(JNIEnv *env, jobject bitmap);
+#endif
 
 cv::Mat resize_img(const cv::Mat &img, int height, int width);
 
 void neon_mean_scale(const float *din, float *dout, int size,
                      const std::vector<float> &mean,
                      const std::vector<float> &scale);
+
+/**
+ * Detection input size for an image: the longer side is limited to
+ * max_side_len and both sides are floored to a multiple of step.
+ * Same rule as Utils.resizeWithStep on the java side.
+ */
+cv::Size det_resize_size(int width, int height, int max_side_len,
+                         int step = 32);
+
+/**
+ * Normalize an 8 bit image straight into the det tensor: (v / 255 - mean) / std,
+ * layout hwc -> chw, output channel order BGR.
+ * img is either CV_8UC3 (BGR) or CV_8UC4 (RGBA, as locked from a Bitmap).
+ */
+void det_mean_scale(const cv::Mat &img, float *dout,
+                    const std::vector<float> &mean,
+                    const std::vector<float> &stddev);
@@ -0,0 +1,268 @@
+//
+// Unit test of the greedy CTC decoder on every backend of ocr_simd.h:
+// host/CMakeLists.txt builds it for the host instruction set and with
+// OCR_SIMD_SCALAR. Rows are finite and NaN-free as a softmax output is, the
+// library is built with -ffast-math and does not define the argmax of a NaN
+// or an infinity.
+//
+
+#include "ocr_ctc_decoder.h"
+#include "ocr_simd.h"
+#include "ocr_test.h"
+#include <algorithm>
+#include <cmath>
+#include <cstdio>
+#include <limits>
+#include <random>
+#include <vector>
+
+/**
+ * the decode of probs as written in the CTC definition, on std::max_element
+ */
+static std::vector<int> reference_decode(const std::vector<float> &probs,
+                                         int steps, int classes,
+                                         std::vector<float> &confidences) {
+  std::vector<int> indices;
+  confidences.clear();
+  int last = 0;
+  for (int n = 0; n < steps; n++) {
+    const float *row = probs.data() + n * classes;
+    const float *max = std::max_element(row, row + classes);
+    int idx = int(max - row);
+    if (idx != 0 && idx != last) {
+      indices.push_back(idx);
+      confidences.push_back(*max);
+    }
+    last = idx;
+  }
+  return indices;
+}
+
+/**
+ * ctc_argmax against std::max_element on random rows, rows of few distinct
+ * values so ties land in every lane and in the tail, and sign edge cases
+ */
+static void test_argmax(std::mt19937 &rng) {
+  std::uniform_real_distribution<float> uniform(-4.f, 4.f);
+  std::uniform_int_distribution<int> level(0, 3);
+  const float huge = std::numeric_limits<float>::max();
+  for (int n : {1, 2, 3, 4, 5, 7, 8, 9, 15, 16, 17, 31, 32, 33, 97, 6625}) {
+    for (int round = 0; round < 40; round++) {
+      std::vector<float> row(n);
+      for (float &v : row) {
+        v = round % 2 == 0 ? uniform(rng) : float(level(rng));
+      }
+      if (round % 10 == 5) {
+        std::fill(row.begin(), row.end(), -huge);
+      } else if (round % 10 == 7) {
+        std::fill(row.begin(), row.end(), 0.f);
+        row[n / 2] = -0.f;
+      } else if (round % 10 == 9) {
+        row[n - 1] = huge;
+      }
+      float max_value = 0.f;
+      int idx = ctc_argmax(row.data(), n, max_value);
+      int expected =
+          int(std::max_element(row.begin(), row.end()) - row.begin());
+      OCR_CHECK(idx == expected, "n %d round %d index %d, expected %d", n,
+                round, idx, expected);
+      OCR_CHECK(max_value == row[expected], "n %d round %d value %f, "
+                "expected %f", n, round, max_value, row[expected]);
+    }
+  }
+}
+
+/**
+ * hand-written steps: blanks split repeats, repeats collapse, the
+ * confidences are the max of the first step of every character
+ */
+static void test_collapse_rules() {
+  const int classes = 4;
+  // argmax per step: 1 1 0 1 2 2 3 0 0 3
+  const int path[] = {1, 1, 0, 1, 2, 2, 3, 0, 0, 3};
+  const int steps = int(sizeof(path) / sizeof(path[0]));
+  std::vector<float> probs(steps * classes, 0.1f);
+  for (int n = 0; n < steps; n++) {
+    probs[n * classes + path[n]] = 0.5f + 0.04f * n;
+  }
+  const int expected[] = {1, 1, 2, 3, 3};
+  const float expected_conf[] = {0.5f, 0.62f, 0.66f, 0.74f, 0.86f};
+  std::vector<int> indices(steps, -1);
+  std::vector<float> confidences(steps, -1.f);
+  float score = -1.f;
+  int count = ctc_greedy_decode(probs.data(), steps, classes, indices.data(),
+                                confidences.data(), score);
+  OCR_CHECK(count == 5, "count %d", count);
+  float sum = 0.f;
+  for (int i = 0; i < 5 && i < count; i++) {
+    OCR_CHECK(indices[i] == expected[i], "index %d: %d, expected %d", i,
+              indices[i], expected[i]);
+    OCR_CHECK(std::fabs(confidences[i] - expected_conf[i]) < 1e-6f,
+              "confidence %d: %f, expected %f", i, confidences[i],
+              expected_conf[i]);
+    sum += expected_conf[i];
+  }
+  OCR_CHECK(std::fabs(score - sum / 5) < 1e-6f, "score %f, expected %f",
+            score, sum / 5);
+  // entries past count are left alone
+  OCR_CHECK(indices[5] == -1 && confidences[5] == -1.f,
+            "wrote past count: %d %f", indices[5], confidences[5]);
+
+  // a tie between a character and the blank decodes to the blank, the
+  // lower index as std::max_element
+  std::vector<float> tie(2 * classes, 0.f);
+  tie[0] = tie[2] = 0.5f;
+  tie[classes + 3] = tie[classes + 1] = 0.5f;
+  count = ctc_greedy_decode(tie.data(), 2, classes, indices.data(),
+                            confidences.data(), score);
+  OCR_CHECK(count == 1 && indices[0] == 1, "tie count %d index %d", count,
+            indices[0]);
+}
+
+/**
+ * steps == 0 and all blank rows decode to nothing with a 0 score, and touch
+ * neither output
+ */
+static void test_empty() {
+  const int classes = 9;
+  int index = -1;
+  float confidence = -1.f;
+  float score = -1.f;
+  float unused = 0.f;
+  int count = ctc_greedy_decode(&unused, 0, classes, &index, &confidence,
+                                score);
+  OCR_CHECK(count == 0 && score == 0.f, "steps 0 count %d score %f", count,
+            score);
+  score = -1.f;
+  count = ctc_collapse(&index, &unused, 0, &index, &confidence, score);
+  OCR_CHECK(count == 0 && score == 0.f, "collapse steps 0 count %d score %f",
+            count, score);
+  OCR_CHECK(index == -1 && confidence == -1.f, "steps 0 wrote %d %f", index,
+            confidence);
+
+  const int steps = 6;
+  std::vector<float> blanks(steps * classes, 0.01f);
+  for (int n = 0; n < steps; n++) {
+    blanks[n * classes] = 0.9f;
+  }
+  std::vector<int> indices(steps, -1);
+  score = -1.f;
+  count = ctc_greedy_decode(blanks.data(), steps, classes, indices.data(),
+                            nullptr, score);
+  OCR_CHECK(count == 0 && score == 0.f, "all blank count %d score %f", count,
+            score);
+}
+
+/**
+ * random rec outputs at the dict size and at odd sizes against the
+ * reference, ctc_greedy_decode with and without the confidences buffer and
+ * ctc_argmax_steps + ctc_collapse all have to agree
+ */
+static void test_decode(std::mt19937 &rng) {
+  std::uniform_real_distribution<float> uniform(0.f, 1.f);
+  for (int classes : {2, 5, 8, 13, 6625}) {
+    for (int steps : {1, 2, 25, 80}) {
+      // few distinct values, so steps repeat and tie across classes
+      const bool coarse = classes < 100;
+      std::vector<float> probs(steps * classes);
+      for (float &v : probs) {
+        v = coarse ? std::floor(uniform(rng) * 3.f) : uniform(rng);
+      }
+      std::vector<float> ref_conf;
+      std::vector<int> ref =
+          reference_decode(probs, steps, classes, ref_conf);
+      float ref_score = 0.f;
+      for (float c : ref_conf) {
+        ref_score += c;
+      }
+      ref_score = ref.empty() ? 0.f : ref_score / ref.size();
+
+      std::vector<int> indices(steps);
+      std::vector<float> confidences(steps);
+      float score;
+      int count = ctc_greedy_decode(probs.data(), steps, classes,
+                                    indices.data(), confidences.data(), score);
+      bool same = count == int(ref.size()) &&
+                  std::equal(ref.begin(), ref.end(), indices.begin()) &&
+                  std::equal(ref_conf.begin(), ref_conf.end(),
+                             confidences.begin());
+      OCR_CHECK(same, "%dx%d decode count %d, expected %zu", steps, classes,
+                count, ref.size());
+      OCR_CHECK(std::fabs(score - ref_score) < 1e-5f,
+                "%dx%d score %f, expected %f", steps, classes, score,
+                ref_score);
+
+      std::vector<int> no_conf(steps);
+      float no_conf_score;
+      int no_conf_count = ctc_greedy_decode(probs.data(), steps, classes,
+                                            no_conf.data(), nullptr,
+                                            no_conf_score);
+      OCR_CHECK(no_conf_count == count &&
+                    std::equal(no_conf.begin(), no_conf.begin() + count,
+                               indices.begin()) &&
+                    no_conf_score == score,
+                "%dx%d decode without confidences differs", steps, classes);
+
+      std::vector<int> step_idx(steps);
+      std::vector<float> step_max(steps);
+      ctc_argmax_steps(probs.data(), steps, classes, step_idx.data(),
+                       step_max.data());
+      std::vector<int> split(steps);
+      std::vector<float> split_conf(steps);
+      float split_score;
+      int split_count =
+          ctc_collapse(step_idx.data(), step_max.data(), steps, split.data(),
+                       split_conf.data(), split_score);
+      OCR_CHECK(split_count == count &&
+                    std::equal(split.begin(), split.begin() + count,
+                               indices.begin()) &&
+                    std::equal(split_conf.begin(), split_conf.begin() + count,
+                               confidences.begin()) &&
+                    split_score == score,
+                "%dx%d argmax_steps + collapse differs", steps, classes);
+    }
+  }
+}
+
+/**
+ * a tensor written by write_rec_output reads back as written, a truncated
+ * file is refused
+ */
+static void test_tensor_file() {
+  const char *path = "ctc_decoder_test_probs.bin";
+  const int steps = 3;
+  const int classes = 5;
+  std::vector<float> probs(steps * classes);
+  for (size_t i = 0; i < probs.size(); i++) {
+    probs[i] = 0.25f * i;
+  }
+  OCR_CHECK(write_rec_output(path, probs.data(), steps, classes),
+            "can not write %s", path);
+  std::vector<float> read;
+  int read_steps = 0;
+  int read_classes = 0;
+  OCR_CHECK(read_rec_output(path, read, read_steps, read_classes),
+            "can not read %s", path);
+  OCR_CHECK(read_steps == steps && read_classes == classes && read == probs,
+            "read back %dx%d", read_steps, read_classes);
+
+  FILE *file = fopen(path, "wb");
+  const int header[2] = {steps, classes};
+  fwrite(header, sizeof(header[0]), 2, file);
+  fwrite(probs.data(), sizeof(float), probs.size() - 1, file);
+  fclose(file);
+  OCR_CHECK(!read_rec_output(path, read, read_steps, read_classes),
+            "truncated file read");
+  remove(path);
+}
+
+int main() {
+  printf("ctc decoder test, %d lanes\n", SIMD_LANES);
+  std::mt19937 rng(11);
+  test_argmax(rng);
+  test_collapse_rules();
+  test_empty();
+  test_decode(rng);
+  test_tensor_file();
+  return ocr_test_result("ctc_decoder_test");
+}
@@ -0,0 +1,183 @@
+//
+// Soak test of the DB post-processing: one DBScratch and one WorkerPool over
+// 10k generated det outputs, as OCR_PPredictor runs them. The maps cycle
+// through a fixed set of page layouts at the det input sizes, with new
+// probabilities on every map, so the scratch has seen every input shape once
+// warm-up is over. From then on neither DBScratch::reserved_bytes nor the
+// RSS of the process may grow.
+//
+// Layouts thresholded the same way give the same contours, so the box count
+// of a layout must not change between cycles either, whichever pool thread
+// took which contour.
+//
+
+#include "ocr_db_post_process.h"
+#include "ocr_test.h"
+#include "ocr_worker_thread.h"
+#include <algorithm>
+#include <cstdio>
+#include <random>
+#include <unistd.h>
+#include <vector>
+
+static const int MAP_NUM = 10000;
+static const int LAYOUT_NUM = 97;
+// two cycles: every index of the scratch vectors has been sized by every
+// layout at least once after the first
+static const int WARMUP_NUM = 2 * LAYOUT_NUM;
+// malloc arenas of the pool threads may still move by a few pages, a leak of
+// more than ~400 bytes per map is above it
+static const long RSS_TOLERANCE_BYTES = 4 * 1024 * 1024;
+
+/**
+ * resident set size of the process from /proc/self/statm, 0 if unknown
+ */
+static long resident_bytes() {
+  FILE *file = fopen("/proc/self/statm", "r");
+  if (file == nullptr) {
+    return 0;
+  }
+  long size = 0;
+  long resident = 0;
+  if (fscanf(file, "%ld %ld", &size, &resident) != 2) {
+    resident = 0;
+  }
+  fclose(file);
+  return resident * sysconf(_SC_PAGESIZE);
+}
+
+/**
+ * text mask of a page layout at one of the det input sizes: rows 40 px apart,
+ * each empty or holding a line of 1 to 6 words tilted by up to 2 degrees, so
+ * no two words touch and every word is one contour. Full pages have more
+ * than 64 contours and take the integral image path, and more than 32 are
+ * spread over the pool.
+ */
+static void draw_layout(int layout, cv::Mat &mask) {
+  static const cv::Size sizes[] = {cv::Size(704, 960), cv::Size(960, 704),
+                                   cv::Size(480, 640), cv::Size(320, 96)};
+  std::mt19937 rng(layout);
+  const cv::Size size = sizes[layout % 4];
+  mask.create(size, CV_8UC1);
+  mask.setTo(0);
+  const float fill = std::uniform_real_distribution<float>(0.f, 1.f)(rng);
+  std::uniform_real_distribution<float> uniform(0.f, 1.f);
+  std::uniform_int_distribution<int> words(1, 6);
+  for (int row_y = 20; row_y + 20 <= size.height; row_y += 40) {
+    if (uniform(rng) > fill) {
+      continue;
+    }
+    const float line_h = 6.f + 14.f * uniform(rng);
+    const float line_angle = -2.f + 4.f * uniform(rng);
+    const int word_num = words(rng);
+    // 3 px gaps, words 8 to 237 px wide, so a tilted word stays within 15 px
+    // of its row
+    float word_x = 4.f + (size.width - 8.f) * 0.5f * uniform(rng);
+    const float word_step = std::min(
+        240.f,
+        std::max(11.f, (size.width - 4.f - word_x) * uniform(rng) / word_num));
+    for (int w = 0; w < word_num && word_x + word_step < size.width; w++) {
+      cv::RotatedRect word(cv::Point2f(word_x + word_step * 0.5f, row_y),
+                           cv::Size2f(word_step - 3.f, line_h), line_angle);
+      cv::Point2f corners[4];
+      word.points(corners);
+      cv::Point pts[4];
+      for (int i = 0; i < 4; i++) {
+        pts[i] = cv::Point(cvRound(corners[i].x), cvRound(corners[i].y));
+      }
+      cv::fillConvexPoly(mask, pts, 4, cv::Scalar(1));
+      word_x += word_step;
+    }
+  }
+}
+
+/**
+ * probabilities of a det output with the text of mask: text in (0.8, 1],
+ * background in [0, 0.2), so the map thresholds back to mask and every word
+ * scores well above box_thresh whatever the noise
+ */
+static void fill_pred(const cv::Mat &mask, const std::vector<float> &noise,
+                      int offset, cv::Mat &pred) {
+  pred.create(mask.size(), CV_32F);
+  const uint8_t *m = mask.ptr<uint8_t>();
+  float *p = pred.ptr<float>();
+  const float *n = noise.data() + offset;
+  const int size = int(mask.total());
+  for (int i = 0; i < size; i++) {
+    p[i] = m[i] ? 1.f - 0.199f * n[i] : 0.199f * n[i];
+  }
+}
+
+int main() {
+  const int thread_num = 4;
+  WorkerPool pool(thread_num);
+  DBConfig config;
+  config.threads = thread_num;
+  DBScratch scratch;
+  cv::Mat mask;
+  cv::Mat pred;
+
+  // one buffer of noise, read at a different offset by every map
+  const int max_pixels = 960 * 704;
+  std::vector<float> noise(max_pixels + 4096);
+  std::mt19937 rng(16);
+  std::uniform_real_distribution<float> uniform(0.f, 1.f);
+  for (float &v : noise) {
+    v = uniform(rng);
+  }
+
+  std::vector<int> layout_boxes(LAYOUT_NUM, -1);
+  size_t warmup_bytes = 0;
+  long warmup_rss = 0;
+  size_t max_bytes = 0;
+  long max_rss = 0;
+  long total_boxes = 0;
+  for (int map = 0; map < MAP_NUM; map++) {
+    const int layout = map % LAYOUT_NUM;
+    draw_layout(layout, mask);
+    fill_pred(mask, noise, (map * 31) % 4096, pred);
+
+    scratch.reset();
+    scratch.bitmap.create(pred.size(), CV_8UC1);
+    threshold_to_bitmap(pred.ptr<float>(), int(pred.total()), config.thresh,
+                        scratch.bitmap.data);
+    boxes_from_bitmap(pred, scratch.bitmap, config, scratch, scratch.boxes,
+                      &pool);
+
+    const int box_num = int(scratch.boxes.size());
+    total_boxes += box_num;
+    if (layout_boxes[layout] < 0) {
+      layout_boxes[layout] = box_num;
+    }
+    OCR_CHECK(box_num == layout_boxes[layout],
+              "map %d layout %d: %d boxes, %d in the first cycle", map, layout,
+              box_num, layout_boxes[layout]);
+
+    const size_t bytes = scratch.reserved_bytes();
+    const long rss = resident_bytes();
+    if (map < WARMUP_NUM) {
+      warmup_bytes = std::max(warmup_bytes, bytes);
+      warmup_rss = std::max(warmup_rss, rss);
+      continue;
+    }
+    max_bytes = std::max(max_bytes, bytes);
+    max_rss = std::max(max_rss, rss);
+    if (map % 1000 == 0) {
+      printf("map %5d scratch %zu bytes rss %ld kB\n", map, bytes,
+             rss / 1024);
+    }
+  }
+
+  printf("warm-up: scratch %zu bytes rss %ld kB, after: scratch %zu bytes "
+         "rss %ld kB, %ld boxes\n",
+         warmup_bytes, warmup_rss / 1024, max_bytes, max_rss / 1024,
+         total_boxes);
+  OCR_CHECK(total_boxes > 0, "no boxes found, the maps test nothing");
+  OCR_CHECK(max_bytes <= warmup_bytes,
+            "scratch grew after warm-up from %zu to %zu bytes", warmup_bytes,
+            max_bytes);
+  OCR_CHECK(max_rss <= warmup_rss + RSS_TOLERANCE_BYTES,
+            "rss grew after warm-up from %ld to %ld kB", warmup_rss / 1024,
+            max_rss / 1024);
+  return ocr_test_result("db_soak_test");
+}
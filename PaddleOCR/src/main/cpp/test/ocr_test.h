@@ -0,0 +1,33 @@
+//
+// Minimal check macros of the host tests built by host/CMakeLists.txt. A
+// test binary prints every failed check and exits non-zero if there was one,
+// which is all CTest needs.
+//
+#pragma once
+
+#include <cstdio>
+
+static int ocr_test_failures = 0;
+
+/**
+ * count and report a failed condition, the test carries on
+ */
+#define OCR_CHECK(cond, ...)                                                   \
+  do {                                                                         \
+    if (!(cond)) {                                                             \
+      ocr_test_failures++;                                                     \
+      std::fprintf(stderr, "%s:%d: CHECK(%s) failed: ", __FILE__, __LINE__,    \
+                   #cond);                                                     \
+      std::fprintf(stderr, __VA_ARGS__);                                       \
+      std::fprintf(stderr, "\n");                                              \
+    }                                                                          \
+  } while (0)
+
+/**
+ * @return the exit code of the test binary
+ */
+static int ocr_test_result(const char *name) {
+  std::printf("%s: %s, %d failed checks\n", name,
+              ocr_test_failures == 0 ? "passed" : "FAILED", ocr_test_failures);
+  return ocr_test_failures == 0 ? 0 : 1;
+}
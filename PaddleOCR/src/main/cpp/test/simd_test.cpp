@@ -0,0 +1,254 @@
+//
+// Checks the backend of ocr_simd.h this binary is built for, and the kernels
+// written on top of it, against plain scalar C++. host/CMakeLists.txt builds
+// it twice, for the host instruction set (AVX or SSE2 on x86) and with
+// OCR_SIMD_SCALAR, so both backends are held to the same reference.
+//
+
+#include "ocr_ctc_decoder.h"
+#include "ocr_db_post_process.h"
+#include "ocr_resize_norm.h"
+#include "ocr_simd.h"
+#include "ocr_test.h"
+#include "preprocess.h"
+#include <algorithm>
+#include <cmath>
+#include <cstdint>
+#include <random>
+#include <vector>
+
+static const char *backend_name() {
+#if defined(OCR_SIMD_NEON)
+  return "neon";
+#elif defined(OCR_SIMD_AVX)
+  return "avx";
+#elif defined(OCR_SIMD_SSE2)
+  return "sse2";
+#else
+  return "scalar";
+#endif
+}
+
+static void test_primitives(std::mt19937 &rng) {
+  const int n = 4 * SIMD_LANES;
+  std::vector<float> a(n), b(n), c(n);
+  std::vector<uint8_t> u8(n);
+  std::uniform_real_distribution<float> dist(-100.f, 100.f);
+  for (int i = 0; i < n; i++) {
+    a[i] = dist(rng);
+    b[i] = i % 3 == 0 ? a[i] : dist(rng); // some equal lanes for gt
+    c[i] = dist(rng);
+    u8[i] = uint8_t(rng());
+  }
+  float out[4][SIMD_LANES];
+
+  simd_f32 va = simd_load(a.data());
+  simd_f32 vb = simd_load(b.data());
+  simd_f32 vc = simd_load(c.data());
+  simd_store(out[0], simd_add(va, vb));
+  simd_store(out[1], simd_mul(va, vb));
+  simd_store(out[2], simd_max(va, vb));
+  simd_store(out[3], simd_select(simd_gt(va, vb), va, vc));
+  for (int l = 0; l < SIMD_LANES; l++) {
+    OCR_CHECK(out[0][l] == a[l] + b[l], "add lane %d", l);
+    OCR_CHECK(out[1][l] == a[l] * b[l], "mul lane %d", l);
+    OCR_CHECK(out[2][l] == std::max(a[l], b[l]), "max lane %d", l);
+    OCR_CHECK(out[3][l] == (a[l] > b[l] ? a[l] : c[l]), "gt/select lane %d",
+              l);
+  }
+
+  // fused on NEON, may round once instead of twice
+  simd_store(out[0], simd_madd(va, vb, vc));
+  simd_store(out[1], simd_set1(3.5f));
+  simd_store(out[2], simd_iota());
+  for (int l = 0; l < SIMD_LANES; l++) {
+    float ref = a[l] * b[l] + c[l];
+    OCR_CHECK(std::fabs(out[0][l] - ref) <= 1e-3f * (1 + std::fabs(ref)),
+              "madd lane %d: %f vs %f", l, out[0][l], ref);
+    OCR_CHECK(out[1][l] == 3.5f, "set1 lane %d", l);
+    OCR_CHECK(out[2][l] == float(l), "iota lane %d", l);
+  }
+
+  simd_f32 v0, v1, v2, v3;
+  simd_load3(a.data(), v0, v1, v2);
+  simd_store(out[0], v0);
+  simd_store(out[1], v1);
+  simd_store(out[2], v2);
+  for (int l = 0; l < SIMD_LANES; l++) {
+    for (int k = 0; k < 3; k++) {
+      OCR_CHECK(out[k][l] == a[3 * l + k], "load3 lane %d channel %d", l, k);
+    }
+  }
+  simd_load3_u8(u8.data(), v0, v1, v2);
+  simd_store(out[0], v0);
+  simd_store(out[1], v1);
+  simd_store(out[2], v2);
+  for (int l = 0; l < SIMD_LANES; l++) {
+    for (int k = 0; k < 3; k++) {
+      OCR_CHECK(out[k][l] == u8[3 * l + k], "load3_u8 lane %d channel %d", l,
+                k);
+    }
+  }
+  simd_load4_u8(u8.data(), v0, v1, v2, v3);
+  simd_store(out[0], v0);
+  simd_store(out[1], v1);
+  simd_store(out[2], v2);
+  simd_store(out[3], v3);
+  for (int l = 0; l < SIMD_LANES; l++) {
+    for (int k = 0; k < 4; k++) {
+      OCR_CHECK(out[k][l] == u8[4 * l + k], "load4_u8 lane %d channel %d", l,
+                k);
+    }
+  }
+
+  uint8_t mask[SIMD_LANES];
+  simd_store_mask_u8(mask, simd_gt(va, vb));
+  for (int l = 0; l < SIMD_LANES; l++) {
+    OCR_CHECK(mask[l] == (a[l] > b[l] ? 1 : 0), "store_mask_u8 lane %d", l);
+  }
+}
+
+static void test_ctc_argmax(std::mt19937 &rng) {
+  // lengths around the lane count and the tails, plus the rec class count
+  std::vector<int> lengths = {1, 2, 3, 7, 8, 9, 15, 16, 17, 31, 33, 6625};
+  std::uniform_real_distribution<float> dist(0.f, 1.f);
+  for (int n : lengths) {
+    for (int rep = 0; rep < 20; rep++) {
+      std::vector<float> row(n);
+      for (float &v : row) {
+        // coarse values so ties are common
+        v = rep % 2 == 0 ? dist(rng) : float(rng() % 8);
+      }
+      float max_value = -1;
+      int idx = ctc_argmax(row.data(), n, max_value);
+      int ref = int(std::max_element(row.begin(), row.end()) - row.begin());
+      OCR_CHECK(idx == ref, "ctc_argmax n %d: %d vs %d", n, idx, ref);
+      OCR_CHECK(max_value == row[ref], "ctc_argmax n %d value", n);
+    }
+  }
+}
+
+/**
+ * source taps of cv::resize INTER_LINEAR for output index i
+ */
+static double linear_tap(int src, int dst, int i, int &i0, int &i1) {
+  double s = (i + 0.5) * src / dst - 0.5;
+  if (s < 0) {
+    s = 0;
+  }
+  i0 = int(std::floor(s));
+  if (i0 >= src - 1) {
+    i0 = i1 = src - 1;
+    return 0;
+  }
+  i1 = i0 + 1;
+  return s - i0;
+}
+
+static void test_resize_norm_chw(std::mt19937 &rng) {
+  const float scale = 2 / 255.f, bias = -1, pad = -7;
+  double worst = 0;
+  for (int it = 0; it < 200; it++) {
+    int src_w = 1 + rng() % 400, src_h = 1 + rng() % 80;
+    int resize_w = 1 + rng() % 300, resize_h = 1 + rng() % 64;
+    int out_w = resize_w + rng() % 20;
+    size_t step = src_w * 3 + rng() % 7;
+    std::vector<uint8_t> img(step * src_h);
+    for (uint8_t &v : img) {
+      v = uint8_t(rng());
+    }
+    std::vector<float> out(3 * resize_h * out_w);
+    resize_norm_chw(img.data(), src_w, src_h, step, resize_w, resize_h, out_w,
+                    scale, bias, pad, out.data());
+    for (int c = 0; c < 3; c++) {
+      for (int y = 0; y < resize_h; y++) {
+        int y0, y1;
+        double fy = linear_tap(src_h, resize_h, y, y0, y1);
+        for (int x = 0; x < out_w; x++) {
+          double ref = pad;
+          if (x < resize_w) {
+            int x0, x1;
+            double fx = linear_tap(src_w, resize_w, x, x0, x1);
+            auto px = [&](int yy, int xx) {
+              return double(img[yy * step + 3 * xx + c]);
+            };
+            double v = (px(y0, x0) * (1 - fx) + px(y0, x1) * fx) * (1 - fy) +
+                       (px(y1, x0) * (1 - fx) + px(y1, x1) * fx) * fy;
+            ref = v * scale + bias;
+          }
+          float got = out[(c * resize_h + y) * out_w + x];
+          worst = std::max(worst, std::fabs(got - ref));
+        }
+      }
+    }
+  }
+  // float weights against double, about 5e-5 on every backend
+  OCR_CHECK(worst < 1e-4, "resize_norm_chw max error %g", worst);
+}
+
+static void test_det_mean_scale(std::mt19937 &rng) {
+  const std::vector<float> mean = {0.485f, 0.456f, 0.406f};
+  const std::vector<float> stddev = {0.229f, 0.224f, 0.225f};
+  // odd widths leave a scalar tail on every row
+  for (int width : {1, 7, 8, 17, 736}) {
+    for (int cn : {3, 4}) {
+      const int height = 5;
+      cv::Mat img(height, width, CV_MAKETYPE(CV_8U, cn));
+      for (int y = 0; y < height; y++) {
+        uint8_t *row = img.ptr<uint8_t>(y);
+        for (int i = 0; i < width * cn; i++) {
+          row[i] = uint8_t(rng());
+        }
+      }
+      const int size = width * height;
+      std::vector<float> out(3 * size);
+      det_mean_scale(img, out.data(), mean, stddev);
+      // BGR input keeps its order, RGBA is swapped to BGR
+      const int src_idx[3] = {cn == 4 ? 2 : 0, 1, cn == 4 ? 0 : 2};
+      float worst = 0;
+      for (int y = 0; y < height; y++) {
+        const uint8_t *row = img.ptr<uint8_t>(y);
+        for (int x = 0; x < width; x++) {
+          for (int c = 0; c < 3; c++) {
+            float v = row[x * cn + src_idx[c]];
+            float ref = (v / 255.f - mean[c]) / stddev[c];
+            worst = std::max(worst,
+                             std::fabs(out[c * size + y * width + x] - ref));
+          }
+        }
+      }
+      OCR_CHECK(worst < 1e-5f, "det_mean_scale width %d channels %d error %g",
+                width, cn, worst);
+    }
+  }
+}
+
+static void test_threshold_to_bitmap(std::mt19937 &rng) {
+  const float thresh = 0.3f;
+  for (int size : {1, 7, 8, 9, 33, 1000}) {
+    std::vector<float> pred(size);
+    for (int i = 0; i < size; i++) {
+      // exact threshold values must stay 0
+      pred[i] = i % 5 == 0 ? thresh : float(rng() % 1000) / 1000;
+    }
+    std::vector<uint8_t> bitmap(size, 7);
+    threshold_to_bitmap(pred.data(), size, thresh, bitmap.data());
+    int mismatches = 0;
+    for (int i = 0; i < size; i++) {
+      mismatches += bitmap[i] != (pred[i] > thresh ? 1 : 0);
+    }
+    OCR_CHECK(mismatches == 0, "threshold_to_bitmap size %d: %d mismatches",
+              size, mismatches);
+  }
+}
+
+int main() {
+  std::printf("backend %s, %d lanes\n", backend_name(), SIMD_LANES);
+  std::mt19937 rng(7);
+  test_primitives(rng);
+  test_ctc_argmax(rng);
+  test_resize_norm_chw(rng);
+  test_det_mean_scale(rng);
+  test_threshold_to_bitmap(rng);
+  return ocr_test_result("simd_test");
+}
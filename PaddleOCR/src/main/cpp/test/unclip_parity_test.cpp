@@ -0,0 +1,98 @@
+//
+// Parity of the closed form unclip (UNCLIP_QUAD) with the Clipper offset it
+// replaced (UNCLIP_CLIPPER) over the box corpus test/data/unclip_boxes.txt,
+// at the default unclip_ratio.
+//
+//   unclip_parity_test <box corpus>
+//
+// The two differ most on small boxes: the Clipper path truncates the corners
+// to whole pixels, which on a 3 px box moves every side by up to a third of
+// it. The IoU bounds are per short side of the box before unclip, a box
+// below its bucket's min or a bucket mean below its mean fails the test.
+//
+
+#include "ocr_db_post_process.h"
+#include "ocr_test.h"
+#include <algorithm>
+#include <cstdio>
+
+/**
+ * IoU bounds of the boxes whose short side is below max_side
+ */
+struct ParityBound {
+  float max_side;
+  float min_iou;
+  float mean_iou;
+};
+
+static const ParityBound BOUNDS[] = {
+    {8.f, 0.55f, 0.85f},
+    {24.f, 0.85f, 0.93f},
+    {1e9f, 0.92f, 0.97f},
+};
+static const int BOUND_NUM = int(sizeof(BOUNDS) / sizeof(BOUNDS[0]));
+
+int main(int argc, char *argv[]) {
+  if (argc < 2) {
+    fprintf(stderr, "usage: unclip_parity_test <box corpus>\n");
+    return 1;
+  }
+  FILE *file = fopen(argv[1], "r");
+  if (file == nullptr) {
+    fprintf(stderr, "can not open box corpus %s\n", argv[1]);
+    return 1;
+  }
+
+  const float unclip_ratio = DBConfig().unclip_ratio;
+  DBContourScratch scratch;
+  int count[BOUND_NUM] = {0};
+  double iou_sum[BOUND_NUM] = {0};
+  float min_iou[BOUND_NUM];
+  std::fill(min_iou, min_iou + BOUND_NUM, 1.f);
+  char line[256];
+  int line_no = 0;
+  while (fgets(line, sizeof(line), file) != nullptr) {
+    line_no++;
+    if (line[0] == '#' || line[0] == '\n') {
+      continue;
+    }
+    float cx, cy, width, height, angle;
+    if (sscanf(line, "%f %f %f %f %f", &cx, &cy, &width, &height, &angle) !=
+        5) {
+      OCR_CHECK(false, "%s:%d: not a box: %s", argv[1], line_no, line);
+      continue;
+    }
+    cv::RotatedRect box(cv::Point2f(cx, cy), cv::Size2f(width, height), angle);
+    cv::RotatedRect quad =
+        unclip_box(box, unclip_ratio, UNCLIP_QUAD, scratch);
+    cv::RotatedRect clipper =
+        unclip_box(box, unclip_ratio, UNCLIP_CLIPPER, scratch);
+    float iou = rotated_rect_iou(quad, clipper);
+
+    float side = std::min(width, height);
+    int b = 0;
+    while (b + 1 < BOUND_NUM && side >= BOUNDS[b].max_side) {
+      b++;
+    }
+    count[b]++;
+    iou_sum[b] += iou;
+    min_iou[b] = std::min(min_iou[b], iou);
+    OCR_CHECK(iou >= BOUNDS[b].min_iou,
+              "%s:%d: box %.2f %.2f %.2fx%.2f %.2f deg iou %f < %.2f", argv[1],
+              line_no, cx, cy, width, height, angle, iou, BOUNDS[b].min_iou);
+  }
+  fclose(file);
+
+  int total = 0;
+  for (int b = 0; b < BOUND_NUM; b++) {
+    float mean_iou = count[b] == 0 ? 1.f : float(iou_sum[b] / count[b]);
+    printf("short side < %g: %d boxes, min iou %f mean iou %f\n",
+           BOUNDS[b].max_side, count[b], min_iou[b], mean_iou);
+    OCR_CHECK(mean_iou >= BOUNDS[b].mean_iou,
+              "short side < %g mean iou %f < %.2f", BOUNDS[b].max_side,
+              mean_iou, BOUNDS[b].mean_iou);
+    total += count[b];
+  }
+  OCR_CHECK(total > 0, "no boxes in %s", argv[1]);
+  return ocr_test_result("unclip_parity_test");
+}
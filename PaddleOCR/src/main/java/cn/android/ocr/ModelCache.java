@@ -0,0 +1,305 @@
+package cn.android.ocr;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * assets 中的模型无法直接读取（被压缩打包）时使用的缓存目录。
+ * <p>
+ * 每个应用版本只复制一次：复制完成后在目录中写入清单，记录应用版本与每个文件的大小和 SHA-256，
+ * 之后的启动只检查清单与文件大小，不再读写模型。文件先写入临时文件，校验通过后再重命名，
+ * 中途被杀进程不会留下不完整的模型。如 assets 中存在 &lt;文件名&gt;.sha256，复制结果须与其一致。
+ * <p>
+ * 同一目录的复制在进程内与进程间都串行进行，等到锁后先重新检查清单，其他调用方刚复制完成时直接命中。
+ */
+public class ModelCache {
+    private static final String TAG = ModelCache.class.getSimpleName();
+    private static final String MANIFEST_NAME = "models.properties";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String LOCK_NAME = ".lock";
+    // 每个缓存目录一个进程内的锁，FileLock 只在进程间互斥，同一进程重复加锁会抛出异常
+    private static final Map<String, Object> dirLocks = new HashMap<>();
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    public static class Stats {
+        // 清单与应用版本一致，没有复制
+        public boolean hit;
+        public int copiedFiles;
+        public long copiedBytes;
+        public float copyTime;
+
+        @Override
+        public String toString() {
+            return "hit=" + hit + " copiedFiles=" + copiedFiles + " copiedBytes=" + copiedBytes
+                    + " copyTime=" + copyTime;
+        }
+    }
+
+    private final Context appCtx;
+    private final Stats stats = new Stats();
+
+    public ModelCache(Context appCtx) {
+        this.appCtx = appCtx;
+    }
+
+    public Stats stats() {
+        return stats;
+    }
+
+    /**
+     * 确保 assetDir 下的 fileNames 已复制到 dstDir 且为当前应用版本
+     *
+     * @return dstDir
+     * @throws IOException 复制或校验失败，此时 dstDir 中不会留下该版本的清单
+     */
+    public File ensure(String assetDir, String[] fileNames, File dstDir) throws IOException {
+        long start = System.nanoTime();
+        String version = appVersion();
+        File manifestFile = new File(dstDir, MANIFEST_NAME);
+        if (isValid(readManifest(manifestFile), version, fileNames, dstDir)) {
+            onHit(dstDir, version, start);
+            return dstDir;
+        }
+
+        synchronized (dirLock(dstDir)) {
+            if (!dstDir.exists() && !dstDir.mkdirs()) {
+                throw new IOException("Create model cache dir failed " + dstDir);
+            }
+            RandomAccessFile lockFile = new RandomAccessFile(new File(dstDir, LOCK_NAME), "rw");
+            try {
+                FileChannel channel = lockFile.getChannel();
+                FileLock lock = channel.lock();
+                try {
+                    // 等锁期间可能已由其他调用方复制完成
+                    if (isValid(readManifest(manifestFile), version, fileNames, dstDir)) {
+                        onHit(dstDir, version, start);
+                        return dstDir;
+                    }
+                    fill(assetDir, fileNames, dstDir, manifestFile, version, start);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        }
+        return dstDir;
+    }
+
+    private static Object dirLock(File dstDir) throws IOException {
+        String path = dstDir.getCanonicalPath();
+        synchronized (dirLocks) {
+            Object lock = dirLocks.get(path);
+            if (lock == null) {
+                lock = new Object();
+                dirLocks.put(path, lock);
+            }
+            return lock;
+        }
+    }
+
+    private void onHit(File dstDir, String version, long start) {
+        stats.hit = true;
+        stats.copyTime = (System.nanoTime() - start) / 1000000.0f;
+        Log.i(TAG, "model cache hit " + dstDir + " version " + version);
+    }
+
+    /**
+     * 复制全部文件并写入清单，调用方持有 dstDir 的锁
+     */
+    private void fill(String assetDir, String[] fileNames, File dstDir, File manifestFile, String version,
+                      long start) throws IOException {
+        // 先删除旧清单，复制中途失败时下次启动会重新复制
+        if (manifestFile.exists() && !manifestFile.delete()) {
+            throw new IOException("Delete model cache manifest failed " + manifestFile);
+        }
+        Properties newManifest = new Properties();
+        newManifest.setProperty("version", version);
+        stats.hit = false;
+        stats.copiedFiles = 0;
+        stats.copiedBytes = 0;
+        for (String fileName : fileNames) {
+            String assetPath = assetDir + File.separator + fileName;
+            File dst = new File(dstDir, fileName);
+            String digest = copy(assetPath, dst);
+            String expected = readExpectedDigest(assetPath + ".sha256");
+            if (expected != null && !expected.equalsIgnoreCase(digest)) {
+                dst.delete();
+                throw new IOException("Checksum mismatch " + assetPath + " expected " + expected + " got " + digest);
+            }
+            newManifest.setProperty(fileName + ".size", Long.toString(dst.length()));
+            newManifest.setProperty(fileName + ".sha256", digest);
+            stats.copiedFiles++;
+            stats.copiedBytes += dst.length();
+        }
+        writeManifest(newManifest, manifestFile);
+        stats.copyTime = (System.nanoTime() - start) / 1000000.0f;
+        Log.i(TAG, "model cache filled " + dstDir + " version " + version + " " + stats);
+    }
+
+    private String appVersion() throws IOException {
+        try {
+            PackageInfo info = appCtx.getPackageManager().getPackageInfo(appCtx.getPackageName(), 0);
+            // 同一 versionCode 重新安装时 lastUpdateTime 也会变化
+            return info.versionCode + "-" + info.lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            throw new IOException("Package info not found " + appCtx.getPackageName(), e);
+        }
+    }
+
+    private static boolean isValid(Properties manifest, String version, String[] fileNames, File dstDir) {
+        if (manifest == null || !version.equals(manifest.getProperty("version"))) {
+            return false;
+        }
+        for (String fileName : fileNames) {
+            String size = manifest.getProperty(fileName + ".size");
+            File file = new File(dstDir, fileName);
+            if (size == null || !file.isFile() || file.length() != Long.parseLong(size)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 复制到临时文件，落盘后重新读取校验，再重命名为 dst
+     *
+     * @return SHA-256
+     */
+    private String copy(String assetPath, File dst) throws IOException {
+        File temp = new File(dst.getPath() + TEMP_SUFFIX);
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream is = appCtx.getAssets().open(assetPath);
+        try {
+            FileOutputStream os = new FileOutputStream(temp);
+            try {
+                int length;
+                while ((length = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, length);
+                    digest.update(buffer, 0, length);
+                }
+                os.getFD().sync();
+            } finally {
+                os.close();
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            is.close();
+        }
+
+        String copied = toHex(digest.digest());
+        String written = fileDigest(temp, buffer);
+        if (!copied.equals(written)) {
+            temp.delete();
+            throw new IOException("Verify copied model failed " + dst);
+        }
+        if (!temp.renameTo(dst)) {
+            temp.delete();
+            throw new IOException("Rename " + temp + " to " + dst + " failed");
+        }
+        return copied;
+    }
+
+    private static String fileDigest(File file, byte[] buffer) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream is = new FileInputStream(file);
+        try {
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, length);
+            }
+        } finally {
+            is.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return assets 中随模型发布的 SHA-256，不存在时为 null
+     */
+    private String readExpectedDigest(String assetPath) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(appCtx.getAssets().open(assetPath)));
+            try {
+                String line = reader.readLine();
+                // 兼容 sha256sum 的输出格式 "<hash>  <文件名>"
+                return line == null ? null : line.trim().split("\\s+")[0];
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Properties readManifest(File manifestFile) {
+        if (!manifestFile.isFile()) {
+            return null;
+        }
+        Properties manifest = new Properties();
+        try {
+            InputStream is = new FileInputStream(manifestFile);
+            try {
+                manifest.load(is);
+            } finally {
+                is.close();
+            }
+            return manifest;
+        } catch (IOException e) {
+            Log.w(TAG, "Read model cache manifest failed " + manifestFile, e);
+            return null;
+        }
+    }
+
+    private static void writeManifest(Properties manifest, File manifestFile) throws IOException {
+        File temp = new File(manifestFile.getPath() + TEMP_SUFFIX);
+        FileOutputStream os = new FileOutputStream(temp);
+        try {
+            manifest.store(os, null);
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!temp.renameTo(manifestFile)) {
+            temp.delete();
+            throw new IOException("Rename " + temp + " to " + manifestFile + " failed");
+        }
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -1,16 +1,22 @@
 package cn.android.ocr;
 
+import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class OCRPredictorNative {
+    private static final String TAG = "OCRPredictorNative";
 
     private static final AtomicBoolean isSOLoaded = new AtomicBoolean();
-    private static final ReentrantLock lock = new ReentrantLock();
 
     public static void loadLibrary() throws RuntimeException {
         if (!isSOLoaded.get() && isSOLoaded.compareAndSet(false, true)) {
@@ -27,91 +33,374 @@ public class OCRPredictorNative {
 
     private long nativePointer = 0;
 
+    // 每个实例持有独立的 native predictor，只需串行化同一实例上的调用。
+    // det 与 cls/rec 使用不同的 paddle predictor，分别加锁以便流水线并行；需要两把锁时先 det 后 rec
+    private final ReentrantLock detLock = new ReentrantLock();
+    private final ReentrantLock recLock = new ReentrantLock();
+    // awaitLoaded 只持读锁等待加载，不占用 det/rec 锁；destroy 持写锁，等待中的 native 引擎不会被释放
+    private final ReentrantReadWriteLock waitLock = new ReentrantReadWriteLock();
+    // forward 的输入形状，在 detLock 内复用
+    private final float[] forwardDims = new float[4];
+
+    // 加载状态，见 native 层 LOAD_STATE
+    public static final int LOAD_LOADING = 0;
+    public static final int LOAD_READY = 1;
+    public static final int LOAD_FAILED = 2;
+
+    /**
+     * 只创建 native 引擎并开始加载，det/rec/cls 在后台线程并行加载后立即返回；
+     * 推理调用会等待所需的模型加载完成，也可用 {@link #awaitLoaded} 提前等待。
+     */
     public OCRPredictorNative(Config config) {
-        lock.lock();
+        detLock.lock();
         try {
             this.config = config;
             loadLibrary();
             nativePointer = init(config.detModelFilename, config.recModelFilename, config.clsModelFilename,
-                    config.cpuThreadNum, config.cpuPower);
-            Log.i("OCRPredictorNative", "load success " + nativePointer);
+                    config.cpuThreadNum, config.cpuPower, Math.max(1, config.recReplicas),
+                    Math.max(1, config.recBatchSize), config.recBucketWidths, config.clsMode,
+                    config.lazyCls, config.lazyRec, config.warmupDetSizes, config.warmupRec,
+                    config.db, config.assetManager);
+            if (nativePointer == 0) {
+                throw new RuntimeException("Load models failed " + config.detModelFilename);
+            }
+            Log.i(TAG, "load started " + nativePointer);
         } finally {
-            lock.unlock();
+            detLock.unlock();
         }
 
     }
 
+    public Config getConfig() {
+        return config;
+    }
+
+    /**
+     * 等待非延迟加载的模型加载完成
+     *
+     * @return LOAD_LOADING（超时）、LOAD_READY 或 LOAD_FAILED
+     */
+    public int awaitLoaded(long timeout, TimeUnit unit) {
+        waitLock.readLock().lock();
+        try {
+            if (nativePointer == 0) {
+                return LOAD_FAILED;
+            }
+            return waitLoaded(nativePointer, (int) Math.min(Integer.MAX_VALUE, unit.toMillis(timeout)));
+        } finally {
+            waitLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 不阻塞地查询加载状态
+     */
+    public int loadState() {
+        return awaitLoaded(0, TimeUnit.MILLISECONDS);
+    }
+
 
     public ArrayList<OcrResultModel> runImage(float[] inputData, int width, int height, int channels, Bitmap originalImage) {
-        lock.lock();
+        return runImage(inputData, width, height, channels, originalImage, null);
+    }
+
+    /**
+     * @param detPostprocessTime 非空时 [0] 写入本次检测把模型输出转换为文本框的耗时（毫秒），与结果在同一次加锁调用内取得
+     */
+    public ArrayList<OcrResultModel> runImage(float[] inputData, int width, int height, int channels, Bitmap originalImage,
+                                              float[] detPostprocessTime) {
+        detLock.lock();
+        recLock.lock();
+        try {
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "begin to run image " + inputData.length + " " + width + " " + height);
+            }
+            float[] dims = forwardDims;
+            dims[0] = 1;
+            dims[1] = channels;
+            dims[2] = height;
+            dims[3] = width;
+            ByteBuffer rawResults = forward(nativePointer, inputData, dims, originalImage);
+            return postprocess(rawResults, detPostprocessTime);
+        } finally {
+            recLock.unlock();
+            detLock.unlock();
+        }
+    }
+
+    /**
+     * 直接传入 Bitmap（须为 ARGB_8888），缩放到 32 的整数倍与归一化都在 native 层完成，
+     * 直接写入检测模型的输入张量。
+     *
+     * @param maxSideLen 检测输入长边上限
+     * @param mean       BGR 顺序的均值
+     * @param std        BGR 顺序的标准差
+     */
+    public ArrayList<OcrResultModel> runImage(Bitmap originalImage, int maxSideLen, float[] mean, float[] std) {
+        return runImage(originalImage, maxSideLen, mean, std, null);
+    }
+
+    /**
+     * @param detPostprocessTime 非空时 [0] 写入本次检测把模型输出转换为文本框的耗时（毫秒），与结果在同一次加锁调用内取得
+     */
+    public ArrayList<OcrResultModel> runImage(Bitmap originalImage, int maxSideLen, float[] mean, float[] std,
+                                              float[] detPostprocessTime) {
+        detLock.lock();
+        recLock.lock();
+        try {
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "begin to run bitmap " + originalImage.getWidth() + " " + originalImage.getHeight());
+            }
+            ByteBuffer rawResults = forwardBitmap(nativePointer, originalImage, maxSideLen, mean, std);
+            return postprocess(rawResults, detPostprocessTime);
+        } finally {
+            recLock.unlock();
+            detLock.unlock();
+        }
+    }
+
+    /**
+     * 流水线第一段：只运行检测模型并裁剪文本框，返回 native 层持有的裁剪结果句柄，
+     * 返回后 originalImage 即可回收。句柄必须交给 {@link #recognize(long)} 或 {@link #releaseDetResult(long)}。
+     * 可与同一实例上另一张图片的 {@link #recognize(long)} 并行。
+     *
+     * @return 句柄，失败时为 0
+     */
+    public long detect(Bitmap originalImage, int maxSideLen, float[] mean, float[] std) {
+        detLock.lock();
+        try {
+            return detect(nativePointer, originalImage, maxSideLen, mean, std);
+        } finally {
+            detLock.unlock();
+        }
+    }
+
+    /**
+     * 流水线第二段：对 {@link #detect} 的裁剪结果运行方向分类与识别，并释放句柄。
+     */
+    public ArrayList<OcrResultModel> recognize(long detResult) {
+        return recognize(detResult, null);
+    }
+
+    /**
+     * @param detPostprocessTime 非空时 [0] 写入该句柄对应检测的后处理耗时（毫秒）
+     */
+    public ArrayList<OcrResultModel> recognize(long detResult, float[] detPostprocessTime) {
+        if (detResult == 0) {
+            return new ArrayList<OcrResultModel>();
+        }
+        recLock.lock();
         try {
-            Log.i("OCRPredictorNative", "begin to run image " + inputData.length + " " + width + " " + height);
-            float[] dims = new float[]{1, channels, height, width};
-            float[] rawResults = forward(nativePointer, inputData, dims, originalImage);
-            return postprocess(rawResults);
+            ByteBuffer rawResults = recognize(nativePointer, detResult);
+            return postprocess(rawResults, detPostprocessTime);
         } finally {
-            lock.unlock();
+            recLock.unlock();
+            releaseDetResult(detResult);
+        }
+    }
+
+    /**
+     * 对同一张图片的文本框分别按逐个识别与按 {@link Config#recBatchSize} 分批识别计时，
+     * 用于在目标设备上选择批大小与宽度分档。
+     *
+     * @param iterations 每种方式的计时次数，另有一次不计时的预热
+     * @return 每次识别的平均耗时(ms)，{逐个, 分批}；失败时为 null
+     */
+    public float[] benchmarkRec(Bitmap originalImage, int maxSideLen, float[] mean, float[] std, int iterations) {
+        long detResult = detect(originalImage, maxSideLen, mean, std);
+        if (detResult == 0) {
+            return null;
+        }
+        recLock.lock();
+        try {
+            return benchmarkRec(nativePointer, detResult, iterations);
+        } finally {
+            recLock.unlock();
+            releaseDetResult(detResult);
+        }
+    }
+
+    /**
+     * 识别输入形状的复用情况，形状为 {批大小, 宽度}，每个 rec 副本首次运行某形状时计为未命中
+     *
+     * @return {命中, 未命中}
+     */
+    public long[] recShapeStats() {
+        recLock.lock();
+        try {
+            if (nativePointer == 0) {
+                return new long[]{0, 0};
+            }
+            return recShapeStats(nativePointer);
+        } finally {
+            recLock.unlock();
         }
     }
 
     public static class Config {
+        // 每个文本框都运行方向分类
+        public static final int CLS_ALWAYS = 0;
+        // 已知页面为正向，跳过方向分类
+        public static final int CLS_UPRIGHT = 1;
+        // 已知页面倒置，所有文本框旋转 180 度，跳过方向分类
+        public static final int CLS_ROTATED = 2;
+        // 只对最宽的几个文本框做方向分类，均为正向时认为整页正向，否则再分类其余文本框
+        public static final int CLS_AUTO = 3;
+
         public int cpuThreadNum;
         public String cpuPower;
         public String detModelFilename;
         public String recModelFilename;
         public String clsModelFilename;
+        // 非空时 *ModelFilename 为 assets 中的路径，模型由 native 层直接从 apk 读取；
+        // 须以不压缩方式打包（aaptOptions noCompress "nb"），否则会在内存中解压
+        public AssetManager assetManager = null;
+        // cls/rec 模型副本数，同一张图片的多个文本框在副本间并行识别；cpuThreadNum 在副本间平分。
+        // 每个副本各自加载一份 cls/rec 模型
+        public int recReplicas = 1;
+        // 每次送入识别模型的最大文本框数，1 为逐个识别。文本框按宽高比排序，
+        // 右侧补齐到 recBucketWidths 中的宽度后组成 {B,3,32,W} 识别；
+        // 不满一批时以空行补足 B = recBatchSize，每个宽度分档只有一种输入形状
+        public int recBatchSize = 1;
+        // 识别输入的宽度分档，升序；null 使用 native 层默认值。
+        // 宽于最后一档的文本行切成相互重叠的多段分别识别，解码时拼接
+        public int[] recBucketWidths = null;
+        // 方向分类策略，横排印刷文档可用 CLS_UPRIGHT 或 CLS_AUTO 省去大部分方向分类开销
+        public int clsMode = CLS_ALWAYS;
+        // 首次使用时才加载方向分类模型；CLS_UPRIGHT 与 CLS_ROTATED 下总是延迟加载，即不会加载
+        public boolean lazyCls = false;
+        // 首次使用时才加载识别模型，只做检测时可省去识别模型的加载
+        public boolean lazyRec = false;
+        // 加载后在后台预跑的检测输入尺寸，按 {宽, 高, 宽, 高, ...} 排列，须为 32 的倍数；
+        // 就绪探测通过后引擎即就绪，预跑不阻塞请求：每次只占用模型运行一个尺寸，第一个请求到达后跳过剩余尺寸。
+        // 每个尺寸的耗时输出到日志
+        public int[] warmupDetSizes = null;
+        // 加载后在后台按每个识别宽度分档预跑一次，同样在第一个识别请求到达后停止
+        public boolean warmupRec = false;
+        // 检测后处理参数，null 使用默认值
+        public DbConfig db = new DbConfig();
 
     }
 
+    /**
+     * 检测模型输出的后处理（DB）参数，在召回率与耗时之间取舍。
+     * 例如价签扫描只需最大的几行文字时，可将 maxCandidates 设为 20。
+     */
+    public static class DbConfig {
+        // 直接按旋转矩形外扩，默认
+        public static final int UNCLIP_QUAD = 0;
+        // 使用 Clipper 多边形外扩，较慢
+        public static final int UNCLIP_CLIPPER = 1;
+        // 输出 Clipper 结果，并在日志中输出与 UNCLIP_QUAD 结果的 IoU，用于校验
+        public static final int UNCLIP_PARITY = 2;
+
+        // 概率图二值化阈值
+        public float thresh = 0.3f;
+        // 文本框内平均概率低于该值时丢弃
+        public float boxThresh = 0.5f;
+        // 外扩前文本框短边的最小长度
+        public int minSize = 3;
+        // 每张图片最多处理的轮廓数，按面积从大到小选取；小于 1 时不限制
+        public int maxCandidates = 1000;
+        // 文本框外扩比例
+        public float unclipRatio = 2.0f;
+        public int unclipMode = UNCLIP_QUAD;
+        // 后处理的最大线程数，小于 1 时使用 cpuThreadNum；线程取自引擎按 cpuThreadNum 创建的常驻线程池
+        public int threads = 0;
+
+        public DbConfig copy() {
+            DbConfig copy = new DbConfig();
+            copy.thresh = thresh;
+            copy.boxThresh = boxThresh;
+            copy.minSize = minSize;
+            copy.maxCandidates = maxCandidates;
+            copy.unclipRatio = unclipRatio;
+            copy.unclipMode = unclipMode;
+            copy.threads = threads;
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return "thresh=" + thresh + " boxThresh=" + boxThresh + " minSize=" + minSize
+                    + " maxCandidates=" + maxCandidates + " unclipRatio=" + unclipRatio
+                    + " unclipMode=" + unclipMode + " threads=" + threads;
+        }
+    }
+
+    /**
+     * 释放 native 内存，使用者须显式调用；
+     * 由 {@link OcrEngineRegistry} 取得的引擎须调用 {@link OcrEngineRegistry#release}
+     */
     public void destroy() {
-        if (nativePointer != 0) {
-            release(nativePointer);
-            nativePointer = 0;
+        detLock.lock();
+        recLock.lock();
+        waitLock.writeLock().lock();
+        try {
+            if (nativePointer != 0) {
+                release(nativePointer);
+                nativePointer = 0;
+            }
+        } finally {
+            waitLock.writeLock().unlock();
+            recLock.unlock();
+            detLock.unlock();
         }
     }
 
-    protected native long init(String detModelPath, String recModelPath, String clsModelPath, int threadNum, String cpuMode);
+    protected native long init(String detModelPath, String recModelPath, String clsModelPath, int threadNum, String cpuMode,
+                               int recReplicas, int recBatchSize, int[] recBucketWidths, int clsMode,
+                               boolean lazyCls, boolean lazyRec, int[] warmupDetSizes, boolean warmupRec,
+                               DbConfig dbConfig, AssetManager assetManager);
 
-    protected native float[] forward(long pointer, float[] buf, float[] ddims, Bitmap originalImage);
+    protected native ByteBuffer forward(long pointer, float[] buf, float[] ddims, Bitmap originalImage);
 
-    protected native void release(long pointer);
+    protected native ByteBuffer forwardBitmap(long pointer, Bitmap originalImage, int maxSideLen, float[] mean, float[] std);
 
-    private ArrayList<OcrResultModel> postprocess(float[] raw) {
-        ArrayList<OcrResultModel> results = new ArrayList<OcrResultModel>();
-        int begin = 0;
+    protected native long detect(long pointer, Bitmap originalImage, int maxSideLen, float[] mean, float[] std);
 
-        while (begin < raw.length) {
-            int point_num = Math.round(raw[begin]);
-            int word_num = Math.round(raw[begin + 1]);
-            OcrResultModel model = parse(raw, begin + 2, point_num, word_num);
-            begin += 2 + 1 + point_num * 2 + word_num;
-            results.add(model);
-        }
+    protected native ByteBuffer recognize(long pointer, long detResult);
 
-        return results;
-    }
+    protected native float[] benchmarkRec(long pointer, long detResult, int iterations);
+
+    protected native void releaseDetResult(long detResult);
 
-    private OcrResultModel parse(float[] raw, int begin, int pointNum, int wordNum) {
-        int current = begin;
-        OcrResultModel model = new OcrResultModel();
-        model.setConfidence(raw[current]);
-        current++;
-        for (int i = 0; i < pointNum; i++) {
-            model.addPoints(Math.round(raw[current + i * 2]), Math.round(raw[current + i * 2 + 1]));
+    protected native int waitLoaded(long pointer, int timeoutMs);
+
+    protected native long[] recShapeStats(long pointer);
+
+    protected native void release(long pointer);
+
+    /**
+     * 解析 native 层写入的结果缓冲区，布局见 native.cpp 中 results_to_byte_buffer。
+     * 缓冲区由 native predictor 持有，只在下一次 forward 之前有效，须在锁内解析完毕。
+     *
+     * @param detPostprocessTime 非空时 [0] 写入缓冲区头部的检测后处理耗时
+     */
+    private ArrayList<OcrResultModel> postprocess(ByteBuffer raw, float[] detPostprocessTime) {
+        if (raw == null) {
+            return new ArrayList<OcrResultModel>();
         }
-        current += (pointNum * 2);
-        for (int i = 0; i < wordNum; i++) {
-            int index = Math.round(raw[current + i]);
-            model.addWordIndex(index);
+        IntBuffer ints = raw.order(ByteOrder.nativeOrder()).asIntBuffer();
+        float postprocessTime = Float.intBitsToFloat(ints.get());
+        if (detPostprocessTime != null && detPostprocessTime.length > 0) {
+            detPostprocessTime[0] = postprocessTime;
         }
-        Log.i("OCRPredictorNative", "word finished " + wordNum);
-        return model;
-    }
-
-    // 重写 finalize 确保对象被GC回收时native内存能被释放
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-        destroy();
+        int boxNum = ints.get();
+        ArrayList<OcrResultModel> results = new ArrayList<OcrResultModel>(boxNum);
+        for (int i = 0; i < boxNum; i++) {
+            int pointNum = ints.get();
+            int wordNum = ints.get();
+            float confidence = Float.intBitsToFloat(ints.get());
+            int[] points = new int[pointNum * 2];
+            ints.get(points);
+            int[] wordIndex = new int[wordNum];
+            ints.get(wordIndex);
+            results.add(new OcrResultModel(points, wordIndex, confidence));
+        }
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "parse finished " + boxNum);
+        }
+        return results;
     }
 }
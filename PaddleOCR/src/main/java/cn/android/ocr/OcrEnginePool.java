@@ -0,0 +1,213 @@
+package cn.android.ocr;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 持有 N 个相互独立的 native 引擎，供多个线程并发识别。
+ * <p>
+ * 每个引擎各自加载一份模型并使用 config.cpuThreadNum 个线程，调用方通过
+ * {@link #acquire()} / {@link #release(OCRPredictorNative)} 租用，或直接使用 {@link #runImage}。
+ * 一般 poolSize * cpuThreadNum 不超过设备核数，例如 8 核设备 4 个引擎各 2 线程。
+ */
+public class OcrEnginePool {
+    private static final String TAG = OcrEnginePool.class.getSimpleName();
+    // 等待空闲引擎时分段检查 destroyed，destroy 后等待者最迟在一个分段内醒来
+    private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    public interface Task<T> {
+        T run(OCRPredictorNative engine);
+    }
+
+    public static class Stats {
+        public int poolSize;
+        public int idle;
+        public long leases;
+        public long completed;
+        public int waiting;
+        public float averageWaitTime;
+        public float maxWaitTime;
+        public float averageRunTime;
+        // 自创建以来每秒完成的租用次数
+        public float throughput;
+
+        @Override
+        public String toString() {
+            return "poolSize=" + poolSize + " idle=" + idle + " waiting=" + waiting + " leases=" + leases
+                    + " completed=" + completed + " averageWaitTime=" + averageWaitTime
+                    + " maxWaitTime=" + maxWaitTime + " averageRunTime=" + averageRunTime
+                    + " throughput=" + throughput;
+        }
+    }
+
+    private final List<OCRPredictorNative> engines;
+    private final BlockingQueue<OCRPredictorNative> idleEngines;
+    private final long createTime = System.nanoTime();
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong waiting = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong totalRunNanos = new AtomicLong();
+    private volatile List<String> wordLabels = null;
+    // 归还与 destroy 在 lock 内读写 destroyed 并操作 idleEngines，归还的引擎不会进入已释放的池
+    private final Object lock = new Object();
+    private volatile boolean destroyed = false;
+
+    public OcrEnginePool(OCRPredictorNative.Config config, int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("poolSize should be at least 1");
+        }
+        engines = new ArrayList<>(poolSize);
+        idleEngines = new ArrayBlockingQueue<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            OCRPredictorNative engine = new OCRPredictorNative(config);
+            engines.add(engine);
+            idleEngines.add(engine);
+        }
+        Log.i(TAG, "pool created, size " + poolSize + " threads per engine " + config.cpuThreadNum);
+    }
+
+    /**
+     * 设置后 {@link #runImage} 返回的结果会带上文本
+     */
+    public void setWordLabels(List<String> wordLabels) {
+        this.wordLabels = wordLabels;
+    }
+
+    public int size() {
+        return engines.size();
+    }
+
+    /**
+     * 租用一个空闲引擎，没有空闲时阻塞等待。用完必须调用 {@link #release(OCRPredictorNative)}。
+     *
+     * @throws IllegalStateException 池已释放，包括等待期间被释放
+     */
+    public OCRPredictorNative acquire() throws InterruptedException {
+        return lease(false, 0);
+    }
+
+    /**
+     * 同 {@link #acquire()}，超时返回 null
+     */
+    public OCRPredictorNative acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        return lease(true, unit.toNanos(timeout));
+    }
+
+    private OCRPredictorNative lease(boolean timed, long timeoutNanos) throws InterruptedException {
+        long start = System.nanoTime();
+        waiting.incrementAndGet();
+        OCRPredictorNative engine = null;
+        try {
+            while (engine == null) {
+                if (destroyed) {
+                    throw new IllegalStateException("pool is destroyed");
+                }
+                long slice = WAIT_SLICE_NANOS;
+                if (timed) {
+                    long remaining = timeoutNanos - (System.nanoTime() - start);
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    slice = Math.min(slice, remaining);
+                }
+                engine = idleEngines.poll(slice, TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+        onLeased(System.nanoTime() - start);
+        return engine;
+    }
+
+    private void onLeased(long waitNanos) {
+        leases.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        long max;
+        while (waitNanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+            // retry
+        }
+    }
+
+    /**
+     * 归还引擎，池已释放时直接释放该引擎
+     */
+    public void release(OCRPredictorNative engine) {
+        completed.incrementAndGet();
+        synchronized (lock) {
+            if (!destroyed) {
+                idleEngines.offer(engine);
+                return;
+            }
+        }
+        engine.destroy();
+    }
+
+    public <T> T execute(Task<T> task) throws InterruptedException {
+        OCRPredictorNative engine = acquire();
+        long start = System.nanoTime();
+        try {
+            return task.run(engine);
+        } finally {
+            totalRunNanos.addAndGet(System.nanoTime() - start);
+            release(engine);
+        }
+    }
+
+    public ArrayList<OcrResultModel> runImage(final Bitmap image, final int maxSideLen, final float[] mean,
+                                              final float[] std) throws InterruptedException {
+        ArrayList<OcrResultModel> results = execute(new Task<ArrayList<OcrResultModel>>() {
+            @Override
+            public ArrayList<OcrResultModel> run(OCRPredictorNative engine) {
+                return engine.runImage(image, maxSideLen, mean, std);
+            }
+        });
+        List<String> labels = wordLabels;
+        if (labels != null) {
+            Predictor.applyLabels(results, labels);
+        }
+        return results;
+    }
+
+    public Stats stats() {
+        Stats stats = new Stats();
+        stats.poolSize = engines.size();
+        stats.idle = idleEngines.size();
+        stats.waiting = (int) waiting.get();
+        stats.leases = leases.get();
+        stats.completed = completed.get();
+        stats.averageWaitTime = stats.leases == 0 ? 0 : totalWaitNanos.get() / 1000000.0f / stats.leases;
+        stats.maxWaitTime = maxWaitNanos.get() / 1000000.0f;
+        stats.averageRunTime = stats.completed == 0 ? 0 : totalRunNanos.get() / 1000000.0f / stats.completed;
+        float elapsedSeconds = (System.nanoTime() - createTime) / 1000000000.0f;
+        stats.throughput = elapsedSeconds <= 0 ? 0 : stats.completed / elapsedSeconds;
+        return stats;
+    }
+
+    /**
+     * 释放空闲引擎，仍被租用的引擎在归还时释放，正在等待的 {@link #acquire()} 抛出 IllegalStateException
+     */
+    public void destroy() {
+        List<OCRPredictorNative> idle = new ArrayList<>(engines.size());
+        synchronized (lock) {
+            if (destroyed) {
+                return;
+            }
+            destroyed = true;
+            idleEngines.drainTo(idle);
+        }
+        // native 释放要等加载结束，不在锁内进行
+        for (OCRPredictorNative engine : idle) {
+            engine.destroy();
+        }
+        Log.i(TAG, "pool destroyed " + stats());
+    }
+}
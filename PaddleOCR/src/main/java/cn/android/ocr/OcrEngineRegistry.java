@@ -0,0 +1,109 @@
+package cn.android.ocr;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 按模型与线程配置共享 native 引擎，配置相同的 {@link Predictor} 只加载一份模型。
+ * <p>
+ * {@link #acquire} 与 {@link #release} 成对调用，引用计数归零时立即释放 native 内存，不依赖 GC。
+ * 共享的引擎同一时刻只执行一个调用（见 {@link OCRPredictorNative} 的锁），需要并发时使用 {@link OcrEnginePool}。
+ */
+public class OcrEngineRegistry {
+    private static final String TAG = OcrEngineRegistry.class.getSimpleName();
+
+    private static class Entry {
+        final String key;
+        final OCRPredictorNative engine;
+        int refCount;
+
+        Entry(String key, OCRPredictorNative engine) {
+            this.key = key;
+            this.engine = engine;
+        }
+    }
+
+    private static final Map<String, Entry> entries = new HashMap<>();
+
+    private OcrEngineRegistry() {
+    }
+
+    /**
+     * 取得与 config 对应的引擎，没有时创建
+     */
+    public static synchronized OCRPredictorNative acquire(OCRPredictorNative.Config config) {
+        String key = keyOf(config);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, new OCRPredictorNative(config));
+            entries.put(key, entry);
+            Log.i(TAG, "engine created " + key);
+        }
+        entry.refCount++;
+        return entry.engine;
+    }
+
+    /**
+     * 为已持有的引擎再增加一个引用，例如单次调用期间防止引擎被切换后释放
+     *
+     * @return 引擎已释放或不是由本类创建时返回 false
+     */
+    public static synchronized boolean retain(OCRPredictorNative engine) {
+        for (Entry entry : entries.values()) {
+            if (entry.engine == engine) {
+                entry.refCount++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 归还 {@link #acquire} 或 {@link #retain} 取得的引用，最后一个使用者归还时释放。
+     * 释放在锁外进行，destroy 要等加载与预热结束，期间不阻塞其他引擎的 acquire/retain/release
+     */
+    public static void release(OCRPredictorNative engine) {
+        String key = removeReference(engine);
+        if (key != null) {
+            engine.destroy();
+            Log.i(TAG, "engine destroyed " + key);
+        }
+    }
+
+    /**
+     * @return 引用计数归零、已从表中移除时返回其 key，否则返回 null
+     */
+    private static synchronized String removeReference(OCRPredictorNative engine) {
+        for (Entry entry : entries.values()) {
+            if (entry.engine != engine) {
+                continue;
+            }
+            entry.refCount--;
+            if (entry.refCount > 0) {
+                return null;
+            }
+            entries.remove(entry.key);
+            return entry.key;
+        }
+        Log.w(TAG, "release an engine not from the registry");
+        return null;
+    }
+
+    public static synchronized int size() {
+        return entries.size();
+    }
+
+    private static String keyOf(OCRPredictorNative.Config config) {
+        return (config.assetManager != null ? "asset:" : "file:")
+                + config.detModelFilename + ";" + config.recModelFilename + ";" + config.clsModelFilename
+                + ";threads=" + config.cpuThreadNum + ";power=" + config.cpuPower
+                + ";recReplicas=" + config.recReplicas + ";recBatchSize=" + config.recBatchSize
+                + ";recBucketWidths=" + Arrays.toString(config.recBucketWidths)
+                + ";clsMode=" + config.clsMode + ";lazyCls=" + config.lazyCls + ";lazyRec=" + config.lazyRec
+                + ";warmupDetSizes=" + Arrays.toString(config.warmupDetSizes) + ";warmupRec=" + config.warmupRec
+                + ";db=" + config.db;
+    }
+}
@@ -0,0 +1,181 @@
+package cn.android.ocr;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多张图片的流水线识别：调用线程对第 N+1 张图片做检测时，识别线程同时对第 N 张图片的裁剪结果做方向分类与识别，
+ * 两段之间通过有界队列交接（队列中只有 native 层的裁剪结果句柄，不持有 Bitmap）。
+ * <p>
+ * 适合图库索引这类批量场景，单张图片的延迟基本不变，整体吞吐提高。非线程安全，同一时刻只能有一个批次。
+ */
+public class OcrPipeline {
+    private static final String TAG = OcrPipeline.class.getSimpleName();
+    private static final long OFFER_TIMEOUT_MS = 100;
+
+    public interface Callback {
+        /**
+         * 在识别线程中回调，index 为图片在批次中的下标
+         */
+        void onResult(int index, ArrayList<OcrResultModel> results);
+    }
+
+    public static class Stats {
+        public long images;
+        public float detTime;
+        public float recTime;
+        // 检测线程因队列已满而等待的时间
+        public float handoffWaitTime;
+        public float totalTime;
+
+        public float imagesPerSecond() {
+            return totalTime <= 0 ? 0 : images * 1000.0f / totalTime;
+        }
+
+        @Override
+        public String toString() {
+            return "images=" + images + " detTime=" + detTime + " recTime=" + recTime
+                    + " handoffWaitTime=" + handoffWaitTime + " totalTime=" + totalTime
+                    + " imagesPerSecond=" + imagesPerSecond();
+        }
+    }
+
+    private static class DetItem {
+        final int index;
+        final long detResult;
+
+        DetItem(int index, long detResult) {
+            this.index = index;
+            this.detResult = detResult;
+        }
+    }
+
+    private final OCRPredictorNative engine;
+    private final int queueCapacity;
+    private final ExecutorService recWorker;
+    private List<String> wordLabels = null;
+    private final Stats stats = new Stats();
+
+    /**
+     * @param queueCapacity 检测结果最多可领先识别的图片数
+     */
+    public OcrPipeline(OCRPredictorNative engine, int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity should be at least 1");
+        }
+        this.engine = engine;
+        this.queueCapacity = queueCapacity;
+        this.recWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "OcrPipeline Rec Worker");
+            }
+        });
+    }
+
+    /**
+     * 设置后结果会带上文本
+     */
+    public void setWordLabels(List<String> wordLabels) {
+        this.wordLabels = wordLabels;
+    }
+
+    public Stats stats() {
+        return stats;
+    }
+
+    public List<ArrayList<OcrResultModel>> runImages(List<Bitmap> images, int maxSideLen, float[] mean, float[] std)
+            throws InterruptedException {
+        return runImages(images, maxSideLen, mean, std, null);
+    }
+
+    /**
+     * @return 与 images 一一对应的识别结果
+     */
+    public List<ArrayList<OcrResultModel>> runImages(List<Bitmap> images, int maxSideLen, float[] mean,
+                                                     float[] std, final Callback callback)
+            throws InterruptedException {
+        final int count = images.size();
+        final List<ArrayList<OcrResultModel>> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            results.add(null);
+        }
+        final BlockingQueue<DetItem> queue = new ArrayBlockingQueue<>(queueCapacity);
+        final List<String> labels = wordLabels;
+        long batchStart = System.nanoTime();
+        Future<Long> recFuture = recWorker.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                long recNanos = 0;
+                for (int done = 0; done < count; done++) {
+                    DetItem item = queue.take();
+                    long start = System.nanoTime();
+                    ArrayList<OcrResultModel> models = engine.recognize(item.detResult);
+                    if (labels != null) {
+                        Predictor.applyLabels(models, labels);
+                    }
+                    recNanos += System.nanoTime() - start;
+                    results.set(item.index, models);
+                    if (callback != null) {
+                        callback.onResult(item.index, models);
+                    }
+                }
+                return recNanos;
+            }
+        });
+
+        long detNanos = 0;
+        long waitNanos = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                long start = System.nanoTime();
+                long detResult = engine.detect(images.get(i), maxSideLen, mean, std);
+                long detected = System.nanoTime();
+                detNanos += detected - start;
+                DetItem item = new DetItem(i, detResult);
+                while (!queue.offer(item, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    if (recFuture.isDone()) {
+                        // 识别线程已异常退出
+                        engine.releaseDetResult(detResult);
+                        throw new IllegalStateException("rec stage stopped unexpectedly");
+                    }
+                }
+                waitNanos += System.nanoTime() - detected;
+            }
+            long recNanos = recFuture.get();
+            stats.images += count;
+            stats.detTime += detNanos / 1000000.0f;
+            stats.recTime += recNanos / 1000000.0f;
+            stats.handoffWaitTime += waitNanos / 1000000.0f;
+            stats.totalTime += (System.nanoTime() - batchStart) / 1000000.0f;
+            Log.i(TAG, "batch finished " + count + ", " + stats);
+            return results;
+        } catch (ExecutionException e) {
+            throw new RuntimeException("rec stage failed", e.getCause());
+        } finally {
+            if (!recFuture.isDone()) {
+                recFuture.cancel(true);
+            }
+            DetItem item;
+            while ((item = queue.poll()) != null) {
+                engine.releaseDetResult(item.detResult);
+            }
+        }
+    }
+
+    public void shutdown() {
+        recWorker.shutdown();
+    }
+}
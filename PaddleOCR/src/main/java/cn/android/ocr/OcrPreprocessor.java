@@ -0,0 +1,219 @@
+package cn.android.ocr;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.util.Log;
+
+/**
+ * 检测模型输入预处理：Bitmap -> 归一化的 CHW float 数组。
+ * <p>
+ * 缩放目标 Bitmap、像素缓冲与张量缓冲按尺寸缓存复用，归一化 (c / 255 - mean) / std 预先折算为
+ * 每通道 256 项查找表，稳定运行后每次调用不产生任何 Java 堆垃圾，{@link Stats#allocations} 保持不变。
+ * 非线程安全，每个 {@link Predictor} 持有一个实例。
+ */
+public class OcrPreprocessor {
+    private static final String TAG = OcrPreprocessor.class.getSimpleName();
+    // 缓存的尺寸个数，横竖两种检测尺寸之外再留一些余量
+    private static final int MAX_CACHED_SIZES = 4;
+
+    public static class Stats {
+        public long runs;
+        public long allocations;
+        public long allocatedBytes;
+        public float lastPreprocessTime;
+
+        @Override
+        public String toString() {
+            return "runs=" + runs + " allocations=" + allocations + " allocatedBytes=" + allocatedBytes
+                    + " lastPreprocessTime=" + lastPreprocessTime;
+        }
+    }
+
+    private final int channels;
+    // channelIdx[c] 为第 c 个输出通道取自 RGB 中的哪个分量
+    private final int[] channelIdx;
+    // 三通道: lut[c * 256 + v] = (v / 255 - mean[c]) / std[c]
+    // 单通道: lut[r + g + b] = ((r + g + b) / 3 / 255 - mean[0]) / std[0]
+    private final float[] lut;
+    private final int[][] pixelBuffers = new int[MAX_CACHED_SIZES][];
+    private final float[][] tensorBuffers = new float[MAX_CACHED_SIZES][];
+    private final Bitmap[] scaledBitmaps = new Bitmap[MAX_CACHED_SIZES];
+    private final Canvas[] scaledCanvases = new Canvas[MAX_CACHED_SIZES];
+    // 双线性缩放，与 Bitmap.createScaledBitmap(..., true) 相同；SRC 模式直接覆盖目标中上一帧的像素
+    private final Paint scalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect scaleRect = new Rect();
+    private int nextPixelSlot = 0;
+    private int nextTensorSlot = 0;
+    private int nextScaledSlot = 0;
+    private final Stats stats = new Stats();
+
+    public OcrPreprocessor(int channels, String inputColorFormat, float[] inputMean, float[] inputStd) {
+        if (channels != 1 && channels != 3) {
+            throw new IllegalArgumentException("Unsupported channel size " + channels
+                    + ", only channel 1 and 3 is supported!");
+        }
+        if (inputMean.length < channels || inputStd.length < channels) {
+            throw new IllegalArgumentException("Size of input mean/std should be: " + channels);
+        }
+        if (inputColorFormat.equalsIgnoreCase("RGB")) {
+            channelIdx = new int[]{0, 1, 2};
+        } else if (inputColorFormat.equalsIgnoreCase("BGR")) {
+            channelIdx = new int[]{2, 1, 0};
+        } else {
+            throw new IllegalArgumentException("Unknown color format " + inputColorFormat
+                    + ", only RGB and BGR color format is supported!");
+        }
+        this.channels = channels;
+        scalePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        if (channels == 3) {
+            this.lut = new float[3 * 256];
+            for (int c = 0; c < 3; c++) {
+                float scale = 1.0f / (255.0f * inputStd[c]);
+                float offset = -inputMean[c] / inputStd[c];
+                for (int v = 0; v < 256; v++) {
+                    lut[c * 256 + v] = v * scale + offset;
+                }
+            }
+        } else {
+            this.lut = new float[3 * 255 + 1];
+            float scale = 1.0f / (3.0f * 255.0f * inputStd[0]);
+            float offset = -inputMean[0] / inputStd[0];
+            for (int v = 0; v < lut.length; v++) {
+                lut[v] = v * scale + offset;
+            }
+        }
+    }
+
+    public int channels() {
+        return channels;
+    }
+
+    public Stats stats() {
+        return stats;
+    }
+
+    /**
+     * 与 {@link Utils#resizeWithStep} 相同的缩放，结果画在按尺寸缓存的 Bitmap 上。
+     * 返回的 Bitmap 由本对象持有，下次同尺寸调用时会被覆盖，调用方不得回收；尺寸不变时直接返回 image。
+     */
+    public Bitmap scale(Bitmap image, int maxLength, int step) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        float ratio = Utils.resizeRatio(width, height, maxLength);
+        int newWidth = Utils.lengthWithStep(width, ratio, step);
+        int newHeight = Utils.lengthWithStep(height, ratio, step);
+        if (newWidth == width && newHeight == height) {
+            return image;
+        }
+        int slot = obtainScaledSlot(newWidth, newHeight);
+        scaleRect.set(0, 0, newWidth, newHeight);
+        scaledCanvases[slot].drawBitmap(image, null, scaleRect, scalePaint);
+        return scaledBitmaps[slot];
+    }
+
+    /**
+     * 将 image 转换为归一化后的 CHW 张量。返回的数组由本对象持有，
+     * 长度恰为 channels * width * height，下次同尺寸调用时会被覆盖。
+     */
+    public float[] process(Bitmap image) {
+        long start = System.nanoTime();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int size = width * height;
+        int[] pixels = obtainPixels(size);
+        float[] inputData = obtainTensor(channels * size);
+        image.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        if (channels == 3) {
+            // 通道 0/1/2 分别取 RGB 中 channelIdx 指定的分量，(2 - idx) * 8 为该分量在 ARGB 中的位移
+            int shift0 = (2 - channelIdx[0]) * 8;
+            int shift1 = (2 - channelIdx[1]) * 8;
+            int shift2 = (2 - channelIdx[2]) * 8;
+            int stride1 = size;
+            int stride2 = size * 2;
+            for (int i = 0; i < size; i++) {
+                int color = pixels[i];
+                inputData[i] = lut[(color >> shift0) & 0xFF];
+                inputData[i + stride1] = lut[256 + ((color >> shift1) & 0xFF)];
+                inputData[i + stride2] = lut[512 + ((color >> shift2) & 0xFF)];
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                int color = pixels[i];
+                inputData[i] = lut[((color >> 16) & 0xFF) + ((color >> 8) & 0xFF) + (color & 0xFF)];
+            }
+        }
+        stats.runs++;
+        stats.lastPreprocessTime = (System.nanoTime() - start) / 1000000.0f;
+        return inputData;
+    }
+
+    /**
+     * 释放缓存的缓冲区，下次调用 {@link #process(Bitmap)} 时重新分配。
+     */
+    public void clear() {
+        for (int i = 0; i < MAX_CACHED_SIZES; i++) {
+            pixelBuffers[i] = null;
+            tensorBuffers[i] = null;
+            if (scaledBitmaps[i] != null) {
+                scaledBitmaps[i].recycle();
+                scaledBitmaps[i] = null;
+                scaledCanvases[i] = null;
+            }
+        }
+    }
+
+    private int obtainScaledSlot(int width, int height) {
+        for (int i = 0; i < MAX_CACHED_SIZES; i++) {
+            Bitmap bitmap = scaledBitmaps[i];
+            if (bitmap != null && bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                return i;
+            }
+        }
+        int slot = nextScaledSlot;
+        nextScaledSlot = (nextScaledSlot + 1) % MAX_CACHED_SIZES;
+        if (scaledBitmaps[slot] != null) {
+            scaledBitmaps[slot].recycle();
+        }
+        scaledBitmaps[slot] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        scaledCanvases[slot] = new Canvas(scaledBitmaps[slot]);
+        onAllocate(width * height * 4L);
+        return slot;
+    }
+
+    private int[] obtainPixels(int length) {
+        for (int[] buffer : pixelBuffers) {
+            if (buffer != null && buffer.length == length) {
+                return buffer;
+            }
+        }
+        int[] buffer = new int[length];
+        pixelBuffers[nextPixelSlot] = buffer;
+        nextPixelSlot = (nextPixelSlot + 1) % MAX_CACHED_SIZES;
+        onAllocate(length * 4L);
+        return buffer;
+    }
+
+    private float[] obtainTensor(int length) {
+        for (float[] buffer : tensorBuffers) {
+            if (buffer != null && buffer.length == length) {
+                return buffer;
+            }
+        }
+        float[] buffer = new float[length];
+        tensorBuffers[nextTensorSlot] = buffer;
+        nextTensorSlot = (nextTensorSlot + 1) % MAX_CACHED_SIZES;
+        onAllocate(length * 4L);
+        return buffer;
+    }
+
+    private void onAllocate(long bytes) {
+        stats.allocations++;
+        stats.allocatedBytes += bytes;
+        Log.i(TAG, "allocate buffer " + bytes + " bytes, total allocations " + stats.allocations);
+    }
+}
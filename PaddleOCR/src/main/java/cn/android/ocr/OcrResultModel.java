@@ -3,35 +3,97 @@ package cn.android.ocr;
 import android.graphics.Point;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * 单个文本框的识别结果，坐标与字符索引以 int 数组保存，避免逐点 Point 对象与逐字 Integer 装箱。
+ */
 public class OcrResultModel {
-    private List<Point> points;
-    private List<Integer> wordIndex;
+    private static final int[] EMPTY = new int[0];
+
+    // x0, y0, x1, y1 ...
+    private int[] points;
+    private int pointCount;
+    private int[] wordIndex;
+    private int wordCount;
     private String label;
     private float confidence;
 
     public OcrResultModel() {
         super();
-        points = new ArrayList<>();
-        wordIndex = new ArrayList<>();
+        points = EMPTY;
+        wordIndex = EMPTY;
+    }
+
+    /**
+     * @param points    交错存放的坐标 x0, y0, x1, y1 ...，由本对象持有
+     * @param wordIndex 字符在标签表中的索引，由本对象持有
+     */
+    OcrResultModel(int[] points, int[] wordIndex, float confidence) {
+        this.points = points;
+        this.pointCount = points.length / 2;
+        this.wordIndex = wordIndex;
+        this.wordCount = wordIndex.length;
+        this.confidence = confidence;
     }
 
     public void addPoints(int x, int y) {
-        Point point = new Point(x, y);
-        points.add(point);
+        if (pointCount * 2 + 2 > points.length) {
+            points = Arrays.copyOf(points, Math.max(8, points.length * 2));
+        }
+        points[pointCount * 2] = x;
+        points[pointCount * 2 + 1] = y;
+        pointCount++;
     }
 
     public void addWordIndex(int index) {
-        wordIndex.add(index);
+        if (wordCount + 1 > wordIndex.length) {
+            wordIndex = Arrays.copyOf(wordIndex, Math.max(16, wordIndex.length * 2));
+        }
+        wordIndex[wordCount++] = index;
+    }
+
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    public int getPointX(int i) {
+        return points[i * 2];
+    }
+
+    public int getPointY(int i) {
+        return points[i * 2 + 1];
+    }
+
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    public int getWordIndexAt(int i) {
+        return wordIndex[i];
     }
 
+    /**
+     * 每次调用都会新建 Point 对象，热路径请使用 {@link #getPointX(int)} / {@link #getPointY(int)}
+     */
     public List<Point> getPoints() {
-        return points;
+        List<Point> list = new ArrayList<>(pointCount);
+        for (int i = 0; i < pointCount; i++) {
+            list.add(new Point(points[i * 2], points[i * 2 + 1]));
+        }
+        return list;
     }
 
+    /**
+     * 每次调用都会装箱，热路径请使用 {@link #getWordIndexAt(int)}
+     */
     public List<Integer> getWordIndex() {
-        return wordIndex;
+        List<Integer> list = new ArrayList<>(wordCount);
+        for (int i = 0; i < wordCount; i++) {
+            list.add(wordIndex[i]);
+        }
+        return list;
     }
 
     public String getLabel() {
@@ -1,45 +1,61 @@
 package cn.android.ocr;
 
-import static android.graphics.Color.blue;
-import static android.graphics.Color.green;
-import static android.graphics.Color.red;
-
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
-import android.graphics.Point;
 import android.graphics.Rect;
-import android.util.Base64;
 import android.util.Log;
 import android.webkit.JavascriptInterface;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class Predictor {
     private static final String TAG = Predictor.class.getSimpleName();
     public boolean modelLoaded = false;
     public boolean useSlim = true;
-    protected OCRPredictorNative mPaddlePredictorNative;
-    public int warmupIterNum = 1;
+    // 引擎加载后在后台按 warmupDetSizes / warmupRec 预跑，默认不再用首张图片预跑
+    public int warmupIterNum = 0;
     public int inferIterNum = 1;
     public int cpuThreadNum = 1;
+    // 识别模型副本数，见 OCRPredictorNative.Config#recReplicas
+    public int recReplicas = 1;
+    // 识别批大小，见 OCRPredictorNative.Config#recBatchSize
+    public int recBatchSize = 1;
+    // 方向分类策略，见 OCRPredictorNative.Config#clsMode
+    public int clsMode = OCRPredictorNative.Config.CLS_ALWAYS;
+    // 首次使用时才加载方向分类模型，见 OCRPredictorNative.Config#lazyCls
+    public boolean lazyCls = false;
+    // 加载后在后台预跑的检测输入尺寸（宽, 高 成对），默认只预跑竖拍 4:3 相机画面缩放后的 704x960；
+    // 预跑与首个请求争用 CPU，其他常见尺寸按需添加，见 OCRPredictorNative.Config#warmupDetSizes
+    public int[] warmupDetSizes = new int[]{704, 960};
+    // 识别宽度分档较多，默认不预跑，见 OCRPredictorNative.Config#warmupRec
+    public boolean warmupRec = false;
+    // 检测后处理参数，加载模型时复制到引擎配置，见 OCRPredictorNative.DbConfig
+    public OCRPredictorNative.DbConfig dbConfig = new OCRPredictorNative.DbConfig();
     public String cpuPowerMode = "LITE_POWER_HIGH";
     public String modelPath = "";
     public String modelName = "";
-    protected OCRPredictorNative paddlePredictor = null;
+    // 切换模型时由后台线程替换，读写都在 engineLock 内，见 swapModels
+    protected volatile OCRPredictorNative paddlePredictor = null;
     protected float inferenceTime = 0;
     // Only for object detection
-    protected Vector<String> wordLabels = new Vector<String>();
+    // loadLabel 整体替换引用，applyLabels 读到的总是完整的一份
+    protected volatile Vector<String> wordLabels = new Vector<String>();
     protected String inputColorFormat = "BGR";
     protected long[] inputShape = new long[]{1, 3, 960};
     protected float[] inputMean = new float[]{0.485f, 0.456f, 0.406f};
@@ -50,9 +66,29 @@ public class Predictor {
     protected volatile String outputResult = "";
     protected float preprocessTime = 0;
     protected float postprocessTime = 0;
+    // 每次识别复用，同 postprocessTime 一样只保留最近一次的值
+    private final float[] detPostprocessTime = new float[1];
+    // 启动时复制模型的耗时，直接从 assets 加载或缓存命中时接近 0
+    protected float modelCopyTime = 0;
+    protected OcrPreprocessor preprocessor = null;
+    // 由 native 层直接从 Bitmap 生成检测输入
+    public boolean useNativePreprocess = true;
 
     public boolean initSuccess = false;
-    private int retryTime = 1;
+    // 等待模型加载与就绪探测的上限
+    private static final long LOAD_TIMEOUT_SECONDS = 60;
+    private final Object engineLock = new Object();
+    private ExecutorService swapExecutor = null;
+    private Future<Boolean> pendingSwap = null;
+    private String pendingSwapPath = null;
+    // releaseModel 时递增，之前发起的切换完成后不再装入新引擎
+    private int engineGeneration = 0;
+    // 最近一次失败的切换，同一模型在退避时间内不再由 ocr/initOcr 自动重试，读写在 engineLock 内
+    private static final long SWAP_RETRY_MIN_MS = 5000;
+    private static final long SWAP_RETRY_MAX_MS = 5 * 60 * 1000;
+    private String failedSwapPath = null;
+    private int failedSwapCount = 0;
+    private long failedSwapTime = 0;
 
     public Predictor() {
     }
@@ -106,6 +142,7 @@ public class Predictor {
         this.inputMean = inputMean;
         this.inputStd = inputStd;
         this.scoreThreshold = scoreThreshold;
+        this.preprocessor = null;
         return true;
     }
 
@@ -114,54 +151,240 @@ public class Predictor {
         releaseModel();
 
         // Load model
+        OCRPredictorNative.Config config = createConfig(appCtx, modelPath, cpuThreadNum, cpuPowerMode);
+        if (config == null) {
+            return false;
+        }
+        // 配置相同的 Predictor 共享同一个引擎
+        OCRPredictorNative engine = OcrEngineRegistry.acquire(config);
+        synchronized (engineLock) {
+            paddlePredictor = engine;
+        }
+
+        this.cpuThreadNum = cpuThreadNum;
+        this.cpuPowerMode = cpuPowerMode;
+        setModelPath(config);
+        return true;
+    }
+
+    /**
+     * 准备模型文件（必要时复制到缓存）并生成引擎配置
+     *
+     * @return 模型不可用时为 null
+     */
+    private OCRPredictorNative.Config createConfig(Context appCtx, String modelPath, int cpuThreadNum,
+                                                   String cpuPowerMode) {
         if (modelPath.isEmpty()) {
             Log.i(TAG, "modelPath.isEmpty() ");
-            return false;
+            return null;
         }
+        OCRPredictorNative.Config config = new OCRPredictorNative.Config();
         String realPath = modelPath;
+        modelCopyTime = 0;
         if (!modelPath.substring(0, 1).equals("/")) {
             // Read model files from custom path if the first character of mode path is '/'
-            // otherwise copy model to cache from assets
-            realPath = appCtx.getCacheDir() + "/" + modelPath;
-            Log.i(TAG, "realPath.isEmpty() " + realPath);
-            Utils.copyDirectoryFromAssets(appCtx, modelPath, realPath);
+            // otherwise load them from assets, directly when stored uncompressed in the apk
+            if (Utils.isUncompressedAsset(appCtx, modelPath + File.separator + "ch_ppocr_mobile_v2.0_det_opt.nb")
+                    && Utils.isUncompressedAsset(appCtx, modelPath + File.separator + "ch_ppocr_mobile_v2.0_rec_opt.nb")
+                    && Utils.isUncompressedAsset(appCtx, modelPath + File.separator + "ch_ppocr_mobile_v2.0_cls_opt.nb")) {
+                config.assetManager = appCtx.getAssets();
+                Log.i(TAG, "load models from assets " + modelPath);
+            } else {
+                // copy model to cache from assets, once per app version
+                realPath = appCtx.getCacheDir() + "/" + modelPath;
+                Log.i(TAG, "realPath.isEmpty() " + realPath);
+                ModelCache cache = new ModelCache(appCtx);
+                try {
+                    cache.ensure(modelPath, new String[]{"ch_ppocr_mobile_v2.0_det_opt.nb",
+                            "ch_ppocr_mobile_v2.0_rec_opt.nb", "ch_ppocr_mobile_v2.0_cls_opt.nb"}, new File(realPath));
+                } catch (IOException e) {
+                    Log.e(TAG, "Copy models to cache failed", e);
+                    return null;
+                } finally {
+                    modelCopyTime = cache.stats().copyTime;
+                }
+            }
         }
         if (realPath.isEmpty()) {
             Log.i(TAG, "realPath.isEmpty() ");
-            return false;
+            return null;
         }
 
-        OCRPredictorNative.Config config = new OCRPredictorNative.Config();
         config.cpuThreadNum = cpuThreadNum;
         config.detModelFilename = realPath + File.separator + "ch_ppocr_mobile_v2.0_det_opt.nb";
         config.recModelFilename = realPath + File.separator + "ch_ppocr_mobile_v2.0_rec_opt.nb";
         config.clsModelFilename = realPath + File.separator + "ch_ppocr_mobile_v2.0_cls_opt.nb";
         Log.i("Predictor", "model path" + config.detModelFilename + " ; " + config.recModelFilename + ";" + config.clsModelFilename);
         config.cpuPower = cpuPowerMode;
-        paddlePredictor = new OCRPredictorNative(config);
+        config.recReplicas = recReplicas;
+        config.recBatchSize = recBatchSize;
+        config.clsMode = clsMode;
+        config.lazyCls = lazyCls;
+        config.warmupDetSizes = warmupDetSizes;
+        config.warmupRec = warmupRec;
+        config.db = dbConfig == null ? null : dbConfig.copy();
+        return config;
+    }
 
-        this.cpuThreadNum = cpuThreadNum;
-        this.cpuPowerMode = cpuPowerMode;
+    private void setModelPath(OCRPredictorNative.Config config) {
+        String realPath = new File(config.detModelFilename).getParent();
         this.modelPath = realPath;
         this.modelName = realPath.substring(realPath.lastIndexOf("/") + 1);
-        this.mPaddlePredictorNative = new OCRPredictorNative(config);
         Log.i(TAG, "realPath " + realPath);
+    }
+
+    /**
+     * 在后台加载 modelPath 的模型并切换过去，加载期间当前引擎照常处理请求。
+     * <p>
+     * 新引擎就绪后原子地替换 paddlePredictor，之后的请求使用新引擎；
+     * 正在旧引擎上执行的请求持有自己的引用（见 detectAndRecognize），全部结束后旧引擎才被释放。
+     * 新引擎加载失败时保留旧引擎。相同 modelPath 的切换进行中时返回同一个 Future。
+     *
+     * @return 切换成功时为 true
+     */
+    public Future<Boolean> swapModels(final Context appCtx, final String modelPath, final int cpuThreadNum,
+                                      final String cpuPowerMode) {
+        synchronized (engineLock) {
+            if (pendingSwap != null && !pendingSwap.isDone() && modelPath.equals(pendingSwapPath)) {
+                return pendingSwap;
+            }
+            if (swapExecutor == null) {
+                swapExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "Predictor Model Swap");
+                    }
+                });
+            }
+            final int generation = engineGeneration;
+            pendingSwapPath = modelPath;
+            pendingSwap = swapExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return doSwap(appCtx, modelPath, cpuThreadNum, cpuPowerMode, generation);
+                }
+            });
+            return pendingSwap;
+        }
+    }
+
+    private boolean doSwap(Context appCtx, String modelPath, int cpuThreadNum, String cpuPowerMode, int generation) {
+        long start = System.nanoTime();
+        OCRPredictorNative.Config config = createConfig(appCtx, modelPath, cpuThreadNum, cpuPowerMode);
+        if (config == null) {
+            onSwapFailed(modelPath);
+            return false;
+        }
+        OCRPredictorNative engine = OcrEngineRegistry.acquire(config);
+        int state = engine.awaitLoaded(LOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (state != OCRPredictorNative.LOAD_READY) {
+            Log.e(TAG, "swap to " + modelPath + " failed, load state " + state);
+            OcrEngineRegistry.release(engine);
+            onSwapFailed(modelPath);
+            return false;
+        }
+        OCRPredictorNative old;
+        synchronized (engineLock) {
+            if (generation != engineGeneration) {
+                // 切换期间模型已被释放
+                OcrEngineRegistry.release(engine);
+                return false;
+            }
+            old = paddlePredictor;
+            paddlePredictor = engine;
+            this.cpuThreadNum = cpuThreadNum;
+            this.cpuPowerMode = cpuPowerMode;
+            setModelPath(config);
+            // 与引擎替换在同一次代数检查内更新，切换失败时 useSlim 保持旧值，退避后重试
+            useSlim = isSlimModel(modelPath);
+            failedSwapPath = null;
+            failedSwapCount = 0;
+            modelLoaded = true;
+            initSuccess = true;
+        }
+        if (old != null && old != engine) {
+            // 仍在旧引擎上执行的请求归还引用后才真正释放
+            OcrEngineRegistry.release(old);
+        } else if (old == engine) {
+            // 切换到与当前相同的配置，撤销多取得的引用
+            OcrEngineRegistry.release(engine);
+        }
+        Log.i(TAG, "swapped to " + modelPath + " in " + (System.nanoTime() - start) / 1000000.0f + " ms");
         return true;
     }
 
-    public void release() {
-        if (this.mPaddlePredictorNative != null) {
-            this.mPaddlePredictorNative.destroy();
-            this.mPaddlePredictorNative = null;
+    private static boolean isSlimModel(String modelPath) {
+        return modelPath.endsWith("(slim)");
+    }
+
+    private static String ocrModelPath(boolean useSlim) {
+        return useSlim ? "models/ocr_v2_for_cpu(slim)" : "models/ocr_v2_for_cpu";
+    }
+
+    private void onSwapFailed(String modelPath) {
+        synchronized (engineLock) {
+            failedSwapCount = modelPath.equals(failedSwapPath) ? failedSwapCount + 1 : 1;
+            failedSwapPath = modelPath;
+            failedSwapTime = System.nanoTime();
         }
+    }
 
-        this.modelLoaded = false;
+    /**
+     * 是否应自动发起切换到 modelPath：已有切换进行中，或该模型上次切换失败且仍在退避时间内时为 false。
+     * 退避时间从 SWAP_RETRY_MIN_MS 起每次失败翻倍，最长 SWAP_RETRY_MAX_MS
+     */
+    private boolean shouldRequestSwap(String modelPath) {
+        synchronized (engineLock) {
+            if (pendingSwap != null && !pendingSwap.isDone()) {
+                return false;
+            }
+            if (!modelPath.equals(failedSwapPath)) {
+                return true;
+            }
+            long backoff = SWAP_RETRY_MIN_MS << Math.min(failedSwapCount - 1, 6);
+            return System.nanoTime() - failedSwapTime
+                    >= TimeUnit.MILLISECONDS.toNanos(Math.min(backoff, SWAP_RETRY_MAX_MS));
+        }
+    }
+
+    /**
+     * 取得当前引擎并增加引用，调用结束后须 {@link OcrEngineRegistry#release}
+     *
+     * @return 没有可用引擎时为 null
+     */
+    private OCRPredictorNative retainEngine() {
+        synchronized (engineLock) {
+            OCRPredictorNative engine = paddlePredictor;
+            if (engine == null || !OcrEngineRegistry.retain(engine)) {
+                return null;
+            }
+            return engine;
+        }
+    }
+
+    public void release() {
+        releaseModel();
+        synchronized (engineLock) {
+            if (swapExecutor != null) {
+                swapExecutor.shutdown();
+                swapExecutor = null;
+            }
+        }
     }
 
     public void releaseModel() {
-        if (paddlePredictor != null) {
-            paddlePredictor.destroy();
+        OCRPredictorNative engine;
+        synchronized (engineLock) {
+            engine = paddlePredictor;
             paddlePredictor = null;
+            engineGeneration++;
+        }
+        if (engine != null) {
+            OcrEngineRegistry.release(engine);
+        }
+        initSuccess = false;
+        if (preprocessor != null) {
+            preprocessor.clear();
         }
         modelLoaded = false;
         cpuThreadNum = 4;
@@ -171,8 +394,8 @@ public class Predictor {
     }
 
     protected boolean loadLabel(Context appCtx, String labelPath) {
-        wordLabels.clear();
-        wordLabels.add("black");
+        Vector<String> labels = new Vector<String>();
+        labels.add("black");
         // Load word labels from file
         try {
             InputStream assetsInputStream = appCtx.getAssets().open(labelPath);
@@ -183,9 +406,10 @@ public class Predictor {
             String words = new String(lines);
             String[] contents = words.split("\n");
             for (String content : contents) {
-                wordLabels.add(content);
+                labels.add(content);
             }
-            Log.i(TAG, "Word label size: " + wordLabels.size());
+            wordLabels = labels;
+            Log.i(TAG, "Word label size: " + labels.size());
         } catch (Exception e) {
             Log.e(TAG, e.getMessage());
             return false;
@@ -194,7 +418,7 @@ public class Predictor {
     }
 
     public boolean modelLoaded() {
-        return this.mPaddlePredictorNative != null && this.modelLoaded;
+        return paddlePredictor != null && this.modelLoaded;
     }
 
     public String modelPath() {
@@ -237,6 +461,10 @@ public class Predictor {
         return postprocessTime;
     }
 
+    public float modelCopyTime() {
+        return modelCopyTime;
+    }
+
     public void setInputImage(Bitmap image) {
         if (image == null) {
             return;
@@ -245,9 +473,17 @@ public class Predictor {
     }
 
     private ArrayList<OcrResultModel> postprocess(ArrayList<OcrResultModel> results) {
+        return applyLabels(results, wordLabels);
+    }
+
+    /**
+     * 按标签表将字符索引转换为文本
+     */
+    static ArrayList<OcrResultModel> applyLabels(ArrayList<OcrResultModel> results, List<String> wordLabels) {
         for (OcrResultModel r : results) {
             StringBuffer word = new StringBuffer();
-            for (int index : r.getWordIndex()) {
+            for (int i = 0; i < r.getWordCount(); i++) {
+                int index = r.getWordIndexAt(i);
                 if (index >= 0 && index < wordLabels.size()) {
                     word.append(wordLabels.get(index));
                 } else {
@@ -260,76 +496,116 @@ public class Predictor {
         return results;
     }
 
-    public boolean runModel() {
-        if (inputImage == null || !modelLoaded()) {
-            return false;
+    private OcrPreprocessor obtainPreprocessor() {
+        if (preprocessor == null) {
+            try {
+                preprocessor = new OcrPreprocessor((int) inputShape[1], inputColorFormat, inputMean, inputStd);
+            } catch (IllegalArgumentException e) {
+                Log.i(TAG, e.getMessage());
+                return null;
+            }
         }
+        return preprocessor;
+    }
 
-        // Pre-process image, and feed input tensor with pre-processed data
+    private float[] preprocess(Bitmap scaleImage) {
+        OcrPreprocessor preprocessor = obtainPreprocessor();
+        if (preprocessor == null) {
+            return null;
+        }
+        float[] pixels = preprocessor.process(scaleImage);
+        // 拼接字符串每帧都会分配，只在 adb shell setprop log.tag.Predictor VERBOSE 后输出
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, "pixels " + pixels[0] + " " + pixels[1] + " " + pixels[2] + " " + pixels[3]
+                    + " " + pixels[pixels.length / 2] + " " + pixels[pixels.length / 2 + 1] + " " + pixels[pixels.length - 2] + " " + pixels[pixels.length - 1]);
+        }
+        return pixels;
+    }
+
+    public OcrPreprocessor.Stats preprocessStats() {
+        OcrPreprocessor preprocessor = obtainPreprocessor();
+        return preprocessor == null ? null : preprocessor.stats();
+    }
 
-        Bitmap scaleImage = Utils.resizeWithStep(inputImage, Long.valueOf(inputShape[2]).intValue(), 32);
+    /**
+     * 检测+识别，并更新 preprocessTime、inferenceTime 与 postprocessTime（检测后处理，包含在 inferenceTime 中）。
+     * ARGB_8888 的 BGR 三通道输入直接交给 native 层缩放与归一化，不再经过 Java float 数组。
+     */
+    private ArrayList<OcrResultModel> detectAndRecognize(Bitmap image) {
+        // 持有引用期间引擎即使被 swapModels 换下也不会释放
+        OCRPredictorNative engine = retainEngine();
+        if (engine == null) {
+            return null;
+        }
+        try {
+            return detectAndRecognize(engine, image);
+        } finally {
+            OcrEngineRegistry.release(engine);
+        }
+    }
 
-        Date start = new Date();
+    private ArrayList<OcrResultModel> detectAndRecognize(OCRPredictorNative engine, Bitmap image) {
+        int maxSideLen = Long.valueOf(inputShape[2]).intValue();
         int channels = (int) inputShape[1];
-        int width = scaleImage.getWidth();
-        int height = scaleImage.getHeight();
-        float[] inputData = new float[channels * width * height];
-        if (channels == 3) {
-            int[] channelIdx = null;
-            if (inputColorFormat.equalsIgnoreCase("RGB")) {
-                channelIdx = new int[]{0, 1, 2};
-            } else if (inputColorFormat.equalsIgnoreCase("BGR")) {
-                channelIdx = new int[]{2, 1, 0};
-            } else {
-                Log.i(TAG, "Unknown color format " + inputColorFormat + ", only RGB and BGR color format is " +
-                        "supported!");
-                return false;
+        if (useNativePreprocess && channels == 3 && inputColorFormat.equalsIgnoreCase("BGR")
+                && image.getConfig() == Bitmap.Config.ARGB_8888) {
+            preprocessTime = 0;
+            // Warm up
+            for (int i = 0; i < warmupIterNum; i++) {
+                engine.runImage(image, maxSideLen, inputMean, inputStd);
             }
+            warmupIterNum = 0; // do not need warm
+            // Run inference
+            long start = System.nanoTime();
+            ArrayList<OcrResultModel> results = engine.runImage(image, maxSideLen, inputMean, inputStd,
+                    detPostprocessTime);
+            inferenceTime = (System.nanoTime() - start) / 1000000.0f;
+            postprocessTime = detPostprocessTime[0];
+            return results;
+        }
 
-            int[] channelStride = new int[]{width * height, width * height * 2};
-            int[] pixels = new int[width * height];
-            scaleImage.getPixels(pixels, 0, scaleImage.getWidth(), 0, 0, scaleImage.getWidth(), scaleImage.getHeight());
-            for (int i = 0; i < pixels.length; i++) {
-                int color = pixels[i];
-                float[] rgb = new float[]{(float) red(color) / 255.0f, (float) green(color) / 255.0f,
-                        (float) blue(color) / 255.0f};
-                inputData[i] = (rgb[channelIdx[0]] - inputMean[0]) / inputStd[0];
-                inputData[i + channelStride[0]] = (rgb[channelIdx[1]] - inputMean[1]) / inputStd[1];
-                inputData[i + channelStride[1]] = (rgb[channelIdx[2]] - inputMean[2]) / inputStd[2];
-            }
-        } else if (channels == 1) {
-            int[] pixels = new int[width * height];
-            scaleImage.getPixels(pixels, 0, scaleImage.getWidth(), 0, 0, scaleImage.getWidth(), scaleImage.getHeight());
-            for (int i = 0; i < pixels.length; i++) {
-                int color = pixels[i];
-                float gray = (float) (red(color) + green(color) + blue(color)) / 3.0f / 255.0f;
-                inputData[i] = (gray - inputMean[0]) / inputStd[0];
-            }
-        } else {
-            Log.i(TAG, "Unsupported channel size " + Integer.toString(channels) + ",  only channel 1 and 3 is " +
-                    "supported!");
-            return false;
+        // Pre-process image, and feed input tensor with pre-processed data
+        OcrPreprocessor preprocessor = obtainPreprocessor();
+        if (preprocessor == null) {
+            return null;
         }
-        float[] pixels = inputData;
-        Log.i(TAG, "pixels " + pixels[0] + " " + pixels[1] + " " + pixels[2] + " " + pixels[3]
-                + " " + pixels[pixels.length / 2] + " " + pixels[pixels.length / 2 + 1] + " " + pixels[pixels.length - 2] + " " + pixels[pixels.length - 1]);
-        Date end = new Date();
-        preprocessTime = (float) (end.getTime() - start.getTime());
+        long start = System.nanoTime();
+        // 缩放目标按尺寸复用，不再每帧创建 Bitmap
+        Bitmap scaleImage = preprocessor.scale(image, maxSideLen, 32);
+        int width = scaleImage.getWidth();
+        int height = scaleImage.getHeight();
+        float[] inputData = preprocess(scaleImage);
+        preprocessTime = (System.nanoTime() - start) / 1000000.0f;
 
         // Warm up
         for (int i = 0; i < warmupIterNum; i++) {
-            paddlePredictor.runImage(inputData, width, height, channels, inputImage);
+            engine.runImage(inputData, width, height, channels, image);
         }
         warmupIterNum = 0; // do not need warm
         // Run inference
-        start = new Date();
-        ArrayList<OcrResultModel> results = paddlePredictor.runImage(inputData, width, height, channels, inputImage);
-        end = new Date();
-        inferenceTime = (end.getTime() - start.getTime()) / (float) inferIterNum;
+        start = System.nanoTime();
+        ArrayList<OcrResultModel> results = engine.runImage(inputData, width, height, channels, image,
+                detPostprocessTime);
+        inferenceTime = (System.nanoTime() - start) / 1000000.0f;
+        postprocessTime = detPostprocessTime[0];
+        return results;
+    }
+
+    public boolean runModel() {
+        if (inputImage == null || !modelLoaded()) {
+            return false;
+        }
+
+        ArrayList<OcrResultModel> results = detectAndRecognize(inputImage);
+        if (results == null) {
+            return false;
+        }
+        inferenceTime = inferenceTime / (float) inferIterNum;
 
         results = postprocess(results);
         Log.i(TAG, "[stat] Preprocess Time: " + preprocessTime
-                + " ; Inference Time: " + inferenceTime + " ;Box Size " + results.size());
+                + " ; Inference Time: " + inferenceTime + " ; Det Postprocess Time: " + postprocessTime
+                + " ;Box Size " + results.size());
         drawResults(results);
 
         return true;
@@ -347,8 +623,8 @@ public class Predictor {
             sb.append(result.getLabel());
             sb.append(" ").append(result.getConfidence());
             sb.append("; Points: ");
-            for (Point p : result.getPoints()) {
-                sb.append("(").append(p.x).append(",").append(p.y).append(") ");
+            for (int j = 0; j < result.getPointCount(); j++) {
+                sb.append("(").append(result.getPointX(j)).append(",").append(result.getPointY(j)).append(") ");
             }
             Log.i(TAG, sb.toString()); // show LOG in Logcat panel
             outputResultSb.append(i + 1).append(": ").append(result.getLabel()).append("\n");
@@ -368,11 +644,9 @@ public class Predictor {
 
         for (OcrResultModel result : results) {
             Path path = new Path();
-            List<Point> points = result.getPoints();
-            path.moveTo(points.get(0).x, points.get(0).y);
-            for (int i = points.size() - 1; i >= 0; i--) {
-                Point p = points.get(i);
-                path.lineTo(p.x, p.y);
+            path.moveTo(result.getPointX(0), result.getPointY(0));
+            for (int i = result.getPointCount() - 1; i >= 0; i--) {
+                path.lineTo(result.getPointX(i), result.getPointY(i));
             }
             canvas.drawPath(path, paint);
             canvas.drawPath(path, paintFillAlpha);
@@ -380,8 +654,17 @@ public class Predictor {
     }
 
     public void initOcr(Context appCtx, int cpuThreadNum, boolean useSlim) {
-        loadLabel(appCtx, "labels/ppocr_keys_v1.txt");
-        if (!this.modelLoaded || (this.useSlim != useSlim)) {
+        // 两个模型共用一份字典，只加载一次
+        if (wordLabels.isEmpty()) {
+            loadLabel(appCtx, "labels/ppocr_keys_v1.txt");
+        }
+        if (this.modelLoaded && paddlePredictor != null && this.useSlim != useSlim) {
+            // 已有可用引擎时在后台切换，切换完成前继续使用当前模型
+            String modelPath = ocrModelPath(useSlim);
+            if (shouldRequestSwap(modelPath)) {
+                swapModels(appCtx, modelPath, cpuThreadNum, "LITE_POWER_HIGH");
+            }
+        } else if (!this.modelLoaded || (this.useSlim != useSlim)) {
             if (useSlim) {
                 // WebView中开多进程会导致UI崩溃
                 // "Using WebView from more than one process at once with the same data directory is not supported. https://crbug.com/558377 : Current process...“
@@ -392,12 +675,15 @@ public class Predictor {
 //                } else {
 //                    loadModel(appCtx, "models/ocr_v2_for_cpu(slim)", 1, "LITE_POWER_HIGH");
 //                }
-                loadModel(appCtx, "models/ocr_v2_for_cpu(slim)", cpuThreadNum, "LITE_POWER_HIGH");
+                this.modelLoaded = loadModel(appCtx, "models/ocr_v2_for_cpu(slim)", cpuThreadNum, "LITE_POWER_HIGH");
             } else {
-                loadModel(appCtx, "models/ocr_v2_for_cpu", cpuThreadNum, "LITE_POWER_HIGH");
+                this.modelLoaded = loadModel(appCtx, "models/ocr_v2_for_cpu", cpuThreadNum, "LITE_POWER_HIGH");
+            }
+            // 加载失败时保持旧值，下次调用重新加载
+            if (this.modelLoaded) {
+                this.useSlim = useSlim;
             }
         }
-        this.useSlim = useSlim;
         Log.i(TAG, "initSuccess: " + this.initSuccess);
     }
 
@@ -419,27 +705,28 @@ public class Predictor {
         }
         List<OcrResult> words_result = new ArrayList<>();
         for (OcrResultModel model : OcrResultModelList) {
-            List<Point> pointList = model.getPoints();
-            if (pointList.isEmpty()) {
+            int pointCount = model.getPointCount();
+            if (pointCount == 0) {
                 continue;
             }
-            Point firstPoint = pointList.get(0);
-            int left = firstPoint.x;
-            int top = firstPoint.y;
-            int right = firstPoint.x;
-            int bottom = firstPoint.y;
-            for (Point p : pointList) {
-                if (p.x < left) {
-                    left = p.x;
+            int left = model.getPointX(0);
+            int top = model.getPointY(0);
+            int right = left;
+            int bottom = top;
+            for (int i = 1; i < pointCount; i++) {
+                int x = model.getPointX(i);
+                int y = model.getPointY(i);
+                if (x < left) {
+                    left = x;
                 }
-                if (p.x > right) {
-                    right = p.x;
+                if (x > right) {
+                    right = x;
                 }
-                if (p.y < top) {
-                    top = p.y;
+                if (y < top) {
+                    top = y;
                 }
-                if (p.y > bottom) {
-                    bottom = p.y;
+                if (y > bottom) {
+                    bottom = y;
                 }
             }
             OcrResult ocrResult = new OcrResult();
@@ -455,24 +742,18 @@ public class Predictor {
         return words_result;
     }
 
+    /**
+     * 等待引擎加载完成。引擎在加载后对每个模型做一次就绪探测，结果由引擎缓存，
+     * 这里只读取状态，不会运行 OCR 或重新加载模型
+     */
     public boolean checkInitSuccess() {
         if (this.initSuccess) return true;
-        String CHECK_IMG_BASE64 =
-                "iVBORw0KGgoAAAANSUhEUgAAAFQAAAA5CAYAAACoAQxFAAAAAXNSR0IArs4c6QAAAARzQklUCAgICHwIZIgAAAqMSURBVHic7ZtrUJTVH8c/uzyIxHpLLgUiKOM4kZYUqVM4I5lW5IsUm14x2kz2JotxhkVDMbSmbBvUmhhzAsRmEF5oeKlmGk0MzNKGmClDZfICm+AukagtsBf2+b9g9vQ87oV9lvX2n/28Ovucy3P2y9lzfpeDTpZlmQhhQ3+3J/D/RkTQMBMRNMxEBA0zEUHDTETQMBMRNMxEBA0zEUHDTETQMBMRNMxEBA0zEUHDjHS3J3CvcfPmTZxOJwDjx49HkrRJNOIKdbvdWCyW0GYXAo2NjRQUFFBQUMDZs2dHbH/x4kX++uuvsL3/448/ZuXKlaxcuZJLly6J54ODg0H1Dyi/2Wzm008/paurC5PJREpKiqr+xIkTDA0NaZpwdnY2cXFxfuvtdjt9fX0AuFwuv+2GhoZoaGigtraWxMRETCYTEyZM0DQXX+j1/60xt9uNy+Vi9+7dnD59mnfffZcpU6YE7B9Q0L1793Lu3DkAysrKMJlMTJo0SdRv374dh8OhacKff/55QEGD5dq1azQ0NOByuejq6uLDDz9ky5YtjBkzZlTjKgWVZZmmpiYOHToEgNFopLS0lMzMTP/9f/nlF7+Vb7/9NhkZGQBcvXqVLVu20N/fP6oJe3A6ndTW1lJbW8v58+c194+Pj8doNKLT6QD4448/qKioYLQJiKioKFGWZZlnn32WVatWAfDvv/+yYcMGTp486be/NG3aNL+VsbGxbNy4kaKiInp7e/nzzz8xmUxs3LhRtVnPnTuXF154we84LS0tfPPNN6pnTqeT+vp6ACZNmsTMmTMDflFfzJkzh4KCAr788ksAjh07Rnp6OsuWLdM8lgfPHwiGf/IA+fn5xMbGsnPnTlwuF1u3bmXHjh1Mnz7dq78UHx8f8AXx8fGUlpaybt067HY7LS0tfPbZZxQWFoo2SUlJPPXUU37H6O3t1fq9gmbFihW0t7fz888/A7B7927S0tJ44oknQhpPuUKV50NeXh6yLLNnzx6MRqNPMSFIOzQjI4OioiIAJkyYwLx581R/ybuJTqejsLCQ5ORkYPhnevTo0ZDHi46OFmXPCvXw0ksvUVVVFXDxBG1kzZ8/n/Xr15OZmak6mG7lxIkTDAwMIEkSubm5wQ4/KgwGA++88w4bNmygoKCA559/HoCTJ09y8OBBTWO1tbWJ8kgH0Pz58722F8loNPL6668HtYc988wzI7apqanBYrEQGxt7xwQFSE9Pp7q6mpiYGPGsr69PJVAoBOqfnp7u9Uw6d+5c0EbrvY5STABJkoiNjdU0xsDAgOpzoP6+TDQJ4OGHH/bZwWKxcObMGRYtWqRpUvcKS5YsYcmSJZr61NTUsH//fgCKi4tZsGCBpv5SdHQ0vk76o0ePsmvXLgYHB3E4HLz44ouaBr6dXLt2zeevKioqisTExFGNrTyU7Ha75v5SRkaGyjvwEBMTIya9c+dODAaD5r/W7aKyspKmpiav58nJyezatWtUYyu3jVAE1S9cuNBnxYIFC4SHIMsy5eXltLS0hDDF+wvlvqjVrQbQL1682G9lfn4+eXl5wLCR+8EHHwjf/m7yyCOPkJubS25uLk8//XRYxx47dqwoh+JmSyMFE9544w0sFgstLS04HA4qKysxmUw+t4k7xdKlS0XZarX69a2dTifff/99UGMaDAZycnJUp7rNZtM8txEN+6ioKIxGI+vWrePRRx/ltddeu6tiasFut1NRURFU29TU1DsjKEBcXBzl5eVedp4vPP6v0ie+n1CGFm/cuKG5f9CuZzBiAiJ9oDQ/7hZjx46lrKxM9Uz5+c033yQhIQH4z4A3GAyiPiRBbTZbWAK+Hjwn470gqCRJPPnkk6pnycnJdHV1AcPZg1tt8HHjxonyP//8o/md+pqamqAa/vTTT3R0dARs43a7he2q1eW7Vxg/fryIpPX29mpO8UjZ2dlBNfziiy/o6ekhLS2N7du3+1yBN27cEBHzyZMna5rIvYJerychIQGr1Yosy1y/fp0HH3ww+P7z5s0bsVF3dzc9PT3A8F7q7+fsSa7B/SsowEMPPSTKVqtVU9+g7B9lCCtQJLyzs1OUR8oO3m7cbndIZg+og0VaBQ3qlP/9999Fefbs2aK8Z88e4L8DSJlsO3XqFMuXLwdg0aJF5OTkAPDAAw9ommCoVFZWkpmZKd6rBWW63Gw2e9VbLBYSEhJ82uMjrlBZlmltbQWGT01lINpgMGAwGIiJicHlcvHDDz+Iura2Nqqrq5FlmejoaNH2TjgFdXV1HD58mIsXL4bUf+rUqaKsvOzgobq6mtWrV/PVV1951enXrFmjWoG30tXVJcyH2bNn+7VHm5ubuX79uupZQ0MDFRUVXrkZGLYC6urqqKur47nnnvP7fq18/fXX7N27FyBkQZWR+La2Nq/UtMViwWq1+ox46Ts6OryEUPLbb7+JclZWls82fX19VFdXi8+rVq0S9tx3331HeXm51y0QnU4nVu1oLyd4sFqtInwnSZII7ASL51CdPHmyiKvevHlTdTbIsizsWE9iUIkE+Awwe/j1119FWbl/enC5XGzbtk1MZu7cueTn55OVlUVJSQk2m42mpibsdjvFxcVhE8+DxzPzzAWGxSwpKfGZnVTalQcPHsThcNDZ2cnly5ex2Wzilkh2djbffvstMHyvIC0tDRgObnvSJL4yHQFTIA6HQwhqMBi8ctEul4tPPvlE7LFxcXGsXr0agOnTp/Pee+9RWlqKzWbj1KlTvP/++5SUlKhCZIEECiZVfetFsaioKCHm+fPn6e7u5sqVK1y5cgWz2ay6+HbgwAFV31svb3gEPXbsGMuWLUOn06lWq68knX7ixIl+L1mdPXtWuJJZWVmqA6W/v5+tW7dy/Phx8eWLi4tVNtyMGTPYvHmz8JpaW1vZvHlzQHPmwoULohyM+3rkyBFR1ul0GI1GsTIrKiooLy+nvr6e5uZmLl++HHAspe38+OOPM3HiRAA6Ojr48ccfAfUv1mfWM5BZ4Vl5MHztxYPZbOajjz5SuaJr1qzxaaPOnDmTsrIyNm3ahN1u58yZM7S2tpKTk8Phw4cZGBggOjqaoaEhLl26RHNzs+jrCVz4w263q+ZQWFioSnU/9thjPk/ppKQkpk2bxtSpU0lNTWXKlCmkpKSo3GVJkli+fLk4G7Zt20ZjYyOeu2Djxo3zuo0IIL388st+J3z69GlRnjVrFjAcMFi7dq3It+h0OtauXRswB5+ZmcmmTZsoKyvj1VdfFbZhe3u7WOG3MmvWrBFdvpiYGEpKSigqKuKVV17xys5mZWXR09MjhEtJSSElJSXglqMkLy+PI0eOYDabcTqdKj0WLlzo0wTU+ft/+cHBQdavX8+FCxdITEykqqpK1NXX11NbW0tcXBxGo9ErouMPs9lMamqq+Lxv3z7hHCiZM2cOb731VtAZzPb2dmbMmHFbrgd1d3dTWlqq2nvj4+PZsWOHz63Sr6DKAa9evaoymdxuN1VVVSxdutTvgRYMf//9N52dnej1eiRJYsyYMSQlJYXl4mw46e/vp7GxEbPZTGJiIosXL1aF+ZSMKGgEbdwfyaH7iIigYSYiaJiJCBpmIoKGmYigYeZ/jd/+RcTqcugAAAAASUVORK5CYII=";
-        Bitmap checkingBitmap = BitmapFactory.decodeByteArray(
-                Base64.decode(
-                        CHECK_IMG_BASE64,
-                        Base64.DEFAULT
-                ), 0, Base64.decode(CHECK_IMG_BASE64, Base64.DEFAULT).length
-        );
-        List<OcrResult> checkingResults = runOcr(checkingBitmap, 4, true);
-        StringBuilder sb = new StringBuilder();
-        for (OcrResult checkingResult : checkingResults) {
-            sb.append(checkingResult.words);
-        }
-        this.initSuccess = (sb.toString().contains("测")) || sb.toString().contains("试");
-        Log.i(TAG, "第" + retryTime + "次校验\t" + "结果: " + sb.toString() + "\t是否成功: " + this.initSuccess);
-        return this.initSuccess || retryTime++ >= 5;
+        OCRPredictorNative engine = paddlePredictor;
+        if (engine == null) return false;
+        int state = engine.awaitLoaded(LOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        this.initSuccess = state == OCRPredictorNative.LOAD_READY;
+        Log.i(TAG, "engine load state " + state + "\t是否成功: " + this.initSuccess);
+        return this.initSuccess;
     }
 
     public List<OcrResult> runOcr(Bitmap inputImage, int cpuThreadNum, boolean useSlim) {
@@ -481,73 +762,24 @@ public class Predictor {
         if (inputImage == null) {
             return Collections.emptyList();
         }
-        // Pre-process image, and feed input tensor with pre-processed data
-        Bitmap scaleImage = Utils.resizeWithStep(inputImage, Long.valueOf(inputShape[2]).intValue(), 32);
-        Date start = new Date();
-        int channels = (int) inputShape[1];
-        int width = scaleImage.getWidth();
-        int height = scaleImage.getHeight();
-        float[] inputData = new float[channels * width * height];
-        if (channels == 3) {
-            int[] channelIdx = null;
-            if (inputColorFormat.equalsIgnoreCase("RGB")) {
-                channelIdx = new int[]{0, 1, 2};
-            } else if (inputColorFormat.equalsIgnoreCase("BGR")) {
-                channelIdx = new int[]{2, 1, 0};
-            } else {
-                Log.i(TAG, "Unknown color format " + inputColorFormat + ", only RGB and BGR color format is " +
-                        "supported!");
-                return Collections.emptyList();
-            }
-            int[] channelStride = new int[]{width * height, width * height * 2};
-            int[] pixels = new int[width * height];
-            scaleImage.getPixels(pixels, 0, scaleImage.getWidth(), 0, 0, scaleImage.getWidth(), scaleImage.getHeight());
-            for (int i = 0; i < pixels.length; i++) {
-                int color = pixels[i];
-                float[] rgb = new float[]{(float) red(color) / 255.0f, (float) green(color) / 255.0f,
-                        (float) blue(color) / 255.0f};
-                inputData[i] = (rgb[channelIdx[0]] - inputMean[0]) / inputStd[0];
-                inputData[i + channelStride[0]] = (rgb[channelIdx[1]] - inputMean[1]) / inputStd[1];
-                inputData[i + channelStride[1]] = (rgb[channelIdx[2]] - inputMean[2]) / inputStd[2];
-            }
-        } else if (channels == 1) {
-            int[] pixels = new int[width * height];
-            scaleImage.getPixels(pixels, 0, scaleImage.getWidth(), 0, 0, scaleImage.getWidth(), scaleImage.getHeight());
-            for (int i = 0; i < pixels.length; i++) {
-                int color = pixels[i];
-                float gray = (float) (red(color) + green(color) + blue(color)) / 3.0f / 255.0f;
-                inputData[i] = (gray - inputMean[0]) / inputStd[0];
-            }
-        } else {
-            Log.i(TAG, "Unsupported channel size " + Integer.toString(channels) + ",  only channel 1 and 3 is " +
-                    "supported!");
+        resultList = detectAndRecognize(inputImage);
+        if (resultList == null) {
             return Collections.emptyList();
         }
-        float[] pixels = inputData;
-        Log.i(TAG, "pixels " + pixels[0] + " " + pixels[1] + " " + pixels[2] + " " + pixels[3]
-                + " " + pixels[pixels.length / 2] + " " + pixels[pixels.length / 2 + 1] + " " + pixels[pixels.length - 2] + " " + pixels[pixels.length - 1]);
-        Date end = new Date();
-        preprocessTime = (float) (end.getTime() - start.getTime());
-
-        // Warm up
-        for (int i = 0; i < warmupIterNum; i++) {
-            paddlePredictor.runImage(inputData, width, height, channels, inputImage);
-        }
-        warmupIterNum = 0; // do not need warm
-        // Run inference
-        start = new Date();
-        resultList = paddlePredictor.runImage(inputData, width, height, channels, inputImage);
-        end = new Date();
-        inferenceTime = (float) (end.getTime() - start.getTime());
         resultList = postprocess(resultList);
         return transformData(resultList);
     }
 
     @JavascriptInterface
     public List<OcrResult> ocr(Context appCtx, Bitmap inputImage, int cpuThreadNum, boolean useSlim) {
-        while (paddlePredictor == null || !checkInitSuccess()) {
+        // 切换进行中或失败退避期间继续使用当前模型，不重复发起
+        if (paddlePredictor == null || (this.useSlim != useSlim && shouldRequestSwap(ocrModelPath(useSlim)))) {
             initOcr(appCtx, cpuThreadNum, useSlim);
         }
+        if (!checkInitSuccess()) {
+            Log.e(TAG, "OCR engine is not ready");
+            return Collections.emptyList();
+        }
         return runOcr(inputImage, cpuThreadNum, useSlim);
     }
 
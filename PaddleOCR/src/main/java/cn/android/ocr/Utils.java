@@ -1,6 +1,7 @@
 package cn.android.ocr;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.media.ExifInterface;
@@ -41,6 +42,28 @@ public class Utils {
         }
     }
 
+    /**
+     * 未压缩的 asset 可以直接以文件描述符打开，native 层可直接映射读取，无需复制到存储
+     */
+    public static boolean isUncompressedAsset(Context appCtx, String path) {
+        AssetFileDescriptor fd = null;
+        try {
+            fd = appCtx.getAssets().openFd(path);
+            return true;
+        } catch (IOException e) {
+            // 被压缩或不存在
+            return false;
+        } finally {
+            if (fd != null) {
+                try {
+                    fd.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
     public static void copyDirectoryFromAssets(Context appCtx, String srcDir, String dstDir) {
         if (srcDir.isEmpty() || dstDir.isEmpty()) {
             return;
@@ -104,25 +127,27 @@ public class Utils {
     public static Bitmap resizeWithStep(Bitmap bitmap, int maxLength, int step) {
         int width = bitmap.getWidth();
         int height = bitmap.getHeight();
+        float ratio = resizeRatio(width, height, maxLength);
+        int newWidth = lengthWithStep(width, ratio, step);
+        int newHeight = lengthWithStep(height, ratio, step);
+        return Bitmap.createScaledBitmap(bitmap, newWidth, newHeight, true);
+    }
+
+    /**
+     * 长边缩放到 maxLength 以内的比例，不放大
+     */
+    public static float resizeRatio(int width, int height, int maxLength) {
         int maxWH = Math.max(width, height);
-        float ratio = 1;
-        int newWidth = width;
-        int newHeight = height;
-        if (maxWH > maxLength) {
-            ratio = maxLength * 1.0f / maxWH;
-            newWidth = (int) Math.floor(ratio * width);
-            newHeight = (int) Math.floor(ratio * height);
-        }
+        return maxWH > maxLength ? maxLength * 1.0f / maxWH : 1;
+    }
 
-        newWidth = newWidth - newWidth % step;
-        if (newWidth == 0) {
-            newWidth = step;
-        }
-        newHeight = newHeight - newHeight % step;
-        if (newHeight == 0) {
-            newHeight = step;
-        }
-        return Bitmap.createScaledBitmap(bitmap, newWidth, newHeight, true);
+    /**
+     * 按 ratio 缩放后向下取整到 step 的整数倍，至少为 step
+     */
+    public static int lengthWithStep(int length, float ratio, int step) {
+        int newLength = ratio < 1 ? (int) Math.floor(ratio * length) : length;
+        newLength = newLength - newLength % step;
+        return newLength == 0 ? step : newLength;
     }
 
     public static Bitmap rotateBitmap(Bitmap bitmap, int orientation) {